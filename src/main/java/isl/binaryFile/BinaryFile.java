@@ -32,7 +32,13 @@ import isl.dbms.DBCollection;
 import isl.dbms.DBFile;
 import isl.dbms.DBMSException;
 import isl.dms.DMSConfig;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -49,6 +55,8 @@ import java.util.regex.Pattern;
 public class BinaryFile {
     
     private static final String PARAMETER = "___XXX___";
+    /** Strings longer than this are encoded through a stream in {@link #set(String)}. */
+    private static final int LARGE_CONTENT = 64 * 1024;
     /**
      * a <CODE>DMSConfig</CODE> object
      */
@@ -117,15 +125,54 @@ public class BinaryFile {
      */
     public void set(String content) throws DBMSException {
         try {
-            this.DBfile.setBinary(content.getBytes("UTF-8"));
+            if (content.length() > LARGE_CONTENT) {
+                // encode through a spooled stream instead of a second full copy in memory
+                Writer out = new OutputStreamWriter(this.DBfile.setBinaryAsStream(), "UTF-8");
+                try {
+                    out.write(content);
+                } finally {
+                    out.close();
+                }
+            } else {
+                this.DBfile.setBinary(content.getBytes("UTF-8"));
+            }
             this.DBfile.store();
-        } catch (UnsupportedEncodingException ex) {
+        } catch (IOException ex) {
             ex.printStackTrace();
         } catch (DBMSException ex) {
             ex.printStackTrace();
         }
     }
     
+    /**
+     * Sets the binary content for this <code>BinaryFile</code> using an
+     * <code>InputStream</code> as the source. The content is read and stored
+     * in chunks. The stream is not closed.
+     *
+     * @param content
+     *            the <code>InputStream</code> to read the new content from.
+     * @throws DBMSException
+     *             with expected error codes.
+     */
+    public void set(InputStream content) throws DBMSException {
+        this.DBfile.setBinary(content);
+        this.DBfile.store();
+    }
+    
+    /**
+     * Sets the binary content for this <code>BinaryFile</code> using a file
+     * as the source. The file is uploaded in chunks.
+     *
+     * @param file
+     *            the file holding the new content.
+     * @throws DBMSException
+     *             with expected error codes.
+     */
+    public void set(Path file) throws DBMSException {
+        this.DBfile.setBinary(file);
+        this.DBfile.store();
+    }
+    
     
     /**
      * Returns the binary content of this <code>BinaryFile</code> as an array of
@@ -140,6 +187,31 @@ public class BinaryFile {
         return this.DBfile.getBinary();
     }
     
+    /**
+     * Returns the binary content of this <code>BinaryFile</code> as an
+     * <code>InputStream</code>, read from the database in chunks.
+     *
+     * @return an <code>InputStream</code> over the binary content.
+     * @throws DBMSException
+     *             with expected error codes.
+     */
+    public InputStream getAsStream() throws DBMSException {
+        return this.DBfile.getBinaryAsStream();
+    }
+    
+    /**
+     * Writes the binary content of this <code>BinaryFile</code> to an
+     * <code>OutputStream</code>, in chunks. The stream is not closed.
+     *
+     * @param out
+     *            the <code>OutputStream</code> to write to.
+     * @throws DBMSException
+     *             with expected error codes.
+     */
+    public void get(OutputStream out) throws DBMSException {
+        this.DBfile.getBinary(out);
+    }
+    
     /**
      * Returns a <code>String</code> representing the content
      * of the <code>BinaryFile</code>.
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <code>AsyncExecutor</code> runs the <code>*Async</code> operations of
+ * <code>DBCollection</code>, <code>DBFile</code> and <code>DMSFile</code>,
+ * which return a <code>CompletableFuture</code> instead of blocking the
+ * caller on the database. Independent lookups can then overlap, e.g.
+ *
+ * <pre>
+ * CompletableFuture&lt;String[]&gt; user = users.queryStringAsync(q1);
+ * CompletableFuture&lt;String[]&gt; tags = tags.queryStringAsync(q2);
+ * CompletableFuture.allOf(user, tags).join();
+ * </pre>
+ *
+ * By default operations run on a bounded pool of
+ * <code>DEFAULT_THREADS</code> daemon threads with a bounded queue; when the
+ * queue is full the caller runs the operation itself. On runtimes with
+ * virtual threads, <code>useVirtualThreads</code> runs every operation on
+ * its own virtual thread, with at most <code>maxConcurrency</code> running
+ * at once. Any other <code>Executor</code> can be set with
+ * <code>setExecutor</code>. <br> <br>
+ * Failures complete the future exceptionally with the
+ * <code>DBMSException</code> or <code>DMSException</code> the blocking
+ * operation throws.
+ */
+public final class AsyncExecutor {
+
+    /**
+     * Number of threads of the default pool.
+     */
+    public static final int DEFAULT_THREADS = 16;
+    private static final int QUEUE_SIZE = 1024;
+    private static Executor executor;
+    /** The executor created here, shut down when it is replaced. */
+    private static ExecutorService owned;
+
+    /**
+     * An operation to run asynchronously.
+     *
+     * @param <T> the type of the result.
+     */
+    public interface Task<T> {
+
+        T call() throws Exception;
+    }
+
+    private AsyncExecutor() {
+    }
+
+    /**
+     * Runs an operation on the executor.
+     *
+     * @param <T> the type of the result.
+     * @param task the operation.
+     * @return a future completed with the result of the operation, or
+     * exceptionally with the exception it throws.
+     */
+    public static <T> CompletableFuture<T> supply(Task<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        try {
+            getExecutor().execute(() -> {
+                if (future.isDone()) {
+                    return; // cancelled before it started
+                }
+                try {
+                    future.complete(task.call());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            future.completeExceptionally(new DBMSException("Operation rejected: " + ex.getMessage()));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for a set of futures and collects their results in order.
+     *
+     * @param <T> the type of the results.
+     * @param futures the futures.
+     * @return a future completed with the results when all futures are,
+     * or exceptionally as soon as one of them fails.
+     */
+    public static <T> CompletableFuture<List<T>> all(List<? extends CompletableFuture<? extends T>> futures) {
+        CompletableFuture<List<T>> result = new CompletableFuture<List<T>>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]))
+                .whenComplete((ignored, failure) -> {
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                        return;
+                    }
+                    List<T> values = new ArrayList<T>(futures.size());
+                    for (CompletableFuture<? extends T> f : futures) {
+                        values.add(f.join());
+                    }
+                    result.complete(values);
+                });
+        for (CompletableFuture<? extends T> f : futures) {
+            // fail fast instead of waiting for the slowest lookup
+            f.whenComplete((ignored, failure) -> {
+                if (failure != null) {
+                    result.completeExceptionally(failure);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * @return the executor that runs asynchronous operations.
+     */
+    public static synchronized Executor getExecutor() {
+        if (executor == null) {
+            useThreadPool(DEFAULT_THREADS);
+        }
+        return executor;
+    }
+
+    /**
+     * Sets the executor that runs asynchronous operations. The caller is
+     * responsible for shutting it down.
+     *
+     * @param newExecutor the executor.
+     */
+    public static synchronized void setExecutor(Executor newExecutor) {
+        replace(newExecutor, null);
+    }
+
+    /**
+     * Runs asynchronous operations on a bounded pool of daemon threads.
+     *
+     * @param threads the number of threads.
+     */
+    public static synchronized void useThreadPool(int threads) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), daemonThreads(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        replace(pool, pool);
+    }
+
+    /**
+     * Runs every asynchronous operation on its own virtual thread, if the
+     * runtime supports virtual threads.
+     *
+     * @param maxConcurrency the maximum number of operations running at
+     * once.
+     * @return <code>true</code> if virtual threads are used,
+     * <code>false</code> if the runtime does not support them (the executor
+     * is then left unchanged).
+     */
+    public static synchronized boolean useVirtualThreads(int maxConcurrency) {
+        ExecutorService threads;
+        try {
+            // Java 21+, looked up reflectively so that the API runs on Java 8
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            threads = (ExecutorService) factory.invoke(null);
+        } catch (Exception unsupported) {
+            return false;
+        }
+        Semaphore permits = new Semaphore(maxConcurrency);
+        replace(command -> threads.execute(() -> {
+            // blocking a virtual thread is cheap
+            permits.acquireUninterruptibly();
+            try {
+                command.run();
+            } finally {
+                permits.release();
+            }
+        }), threads);
+        return true;
+    }
+
+    private static void replace(Executor newExecutor, ExecutorService newOwned) {
+        if (owned != null) {
+            owned.shutdown();
+        }
+        executor = newExecutor;
+        owned = newOwned;
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "DMS-async-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
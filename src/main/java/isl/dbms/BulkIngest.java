@@ -0,0 +1,444 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>BulkIngest</code> stores many files from disk into a
+ * <code>DBCollection</code> over several connections at once:
+ *
+ * <pre>
+ * BulkIngest.Report report = collection.bulkIngest().threads(8).storeAll(Paths.get("/data/archive"));
+ * System.out.println(report);
+ * </pre>
+ *
+ * Every file is uploaded from disk in chunks by the driver, without being
+ * read into memory. Files whose extension is one of the XML extensions are
+ * stored as XML files, all others as binary files. <code>storeAll(Path
+ * directory)</code> mirrors the sub-directories as child collections. <br>
+ * <br>
+ * A file that cannot be stored does not stop the ingest: the error is kept
+ * in the <code>Report</code> and passed to the <code>Listener</code>, which
+ * also receives every stored file and, every
+ * <code>progressInterval</code> files, a snapshot of the report with the
+ * documents per second and MB per second so far. <br>
+ * <br>
+ * At the end of the ingest, <code>flush</code> is called on every collection
+ * that files were stored into, so that work they defer (such as the
+ * permissions of an <code>ExistCollection</code> set in batches) is
+ * completed. Child collections are created through the target, so they
+ * carry its settings.
+ */
+public class BulkIngest {
+
+    private static final Set<String> XML_EXTENSIONS = new HashSet<String>(Arrays.asList(
+            "xml", "xsl", "xslt", "xsd", "rdf", "owl", "svg", "xhtml", "xq", "xql", "xqm"));
+    private final DBCollection target;
+    private int threads = 4;
+    private int progressInterval = 1000;
+    private Set<String> xmlExtensions = XML_EXTENSIONS;
+    private Listener listener = new Listener() {
+    };
+
+    /**
+     * Receives the progress of a <code>BulkIngest</code>. Methods are
+     * called from the uploading threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called after a file has been stored.
+         *
+         * @param file the file.
+         * @param bytes the size of the file.
+         */
+        default void stored(Path file, long bytes) {
+        }
+
+        /**
+         * Called when a file could not be stored.
+         *
+         * @param file the file.
+         * @param error the error.
+         */
+        default void failed(Path file, Exception error) {
+        }
+
+        /**
+         * Called every <code>progressInterval</code> files.
+         *
+         * @param progress a snapshot of the report so far.
+         */
+        default void progress(Report progress) {
+        }
+    }
+
+    /**
+     * Creates a bulk ingest into a collection. See
+     * <code>DBCollection.bulkIngest()</code>.
+     *
+     * @param target the collection to store the files into.
+     */
+    public BulkIngest(DBCollection target) {
+        this.target = target;
+    }
+
+    /**
+     * @param threads the number of files uploaded at once (each over its own
+     * connection).
+     * @return this <code>BulkIngest</code>.
+     */
+    public BulkIngest threads(int threads) {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * @param listener the listener to notify.
+     * @return this <code>BulkIngest</code>.
+     */
+    public BulkIngest listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param files the number of files between progress reports.
+     * @return this <code>BulkIngest</code>.
+     */
+    public BulkIngest progressInterval(int files) {
+        this.progressInterval = Math.max(files, 1);
+        return this;
+    }
+
+    /**
+     * @param extensions the extensions (without the dot) of the files to
+     * store as XML files.
+     * @return this <code>BulkIngest</code>.
+     */
+    public BulkIngest xmlExtensions(String... extensions) {
+        Set<String> set = new HashSet<String>();
+        for (String e : extensions) {
+            set.add(e.toLowerCase(Locale.ROOT));
+        }
+        this.xmlExtensions = set;
+        return this;
+    }
+
+    /**
+     * Stores all files under a directory. Files are stored under their own
+     * name, and sub-directories become child collections (created if they
+     * are missing).
+     *
+     * @param directory the directory.
+     * @return the report of the ingest.
+     * @throws DBMSException if the directory cannot be read.
+     */
+    public Report storeAll(final Path directory) throws DBMSException {
+        final Run run = new Run();
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                private final LinkedHashMap<Path, DBCollection> collections = new LinkedHashMap<Path, DBCollection>();
+
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    Path relative = directory.relativize(dir);
+                    if (relative.toString().isEmpty()) {
+                        collections.put(dir, target);
+                        return FileVisitResult.CONTINUE;
+                    }
+                    try {
+                        collections.put(dir, collections.get(dir.getParent()).createCollection(
+                                relative.getFileName().toString()));
+                        return FileVisitResult.CONTINUE;
+                    } catch (DBMSException ex) {
+                        run.failed(dir, ex);
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                }
+
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        run.submit(collections.get(file.getParent()), file, attrs.size());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    run.failed(file, ex);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                public FileVisitResult postVisitDirectory(Path dir, IOException ex) {
+                    collections.remove(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException IOEx) {
+            run.finish();
+            throw new DBMSException(IOEx);
+        }
+        return run.finish();
+    }
+
+    /**
+     * Stores a set of files into the collection, under their own names.
+     *
+     * @param files the files.
+     * @return the report of the ingest.
+     */
+    public Report storeAll(Iterable<Path> files) {
+        Run run = new Run();
+        for (Path file : files) {
+            try {
+                run.submit(this.target, file, Files.size(file));
+            } catch (IOException ex) {
+                run.failed(file, ex);
+            }
+        }
+        return run.finish();
+    }
+
+    private boolean isXML(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && this.xmlExtensions.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * One execution of <code>storeAll</code>.
+     */
+    private class Run {
+
+        private final ExecutorService workers;
+        /** Bounds the files waiting to be uploaded, so a huge tree is not queued at once. */
+        private final Semaphore pending;
+        private final Report report = new Report();
+        /** The collections stored into, with the directory each stands for. */
+        private final Map<DBCollection, Path> collections = new LinkedHashMap<DBCollection, Path>();
+
+        Run() {
+            final AtomicInteger count = new AtomicInteger();
+            this.workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "DMS-ingest-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            this.pending = new Semaphore(threads * 4);
+        }
+
+        void submit(final DBCollection collection, final Path file, final long size) {
+            if (!this.collections.containsKey(collection)) {
+                this.collections.put(collection, file.toAbsolutePath().getParent());
+            }
+            this.pending.acquireUninterruptibly();
+            this.workers.execute(() -> {
+                try {
+                    collection.storeFile(file.getFileName().toString(), file, !isXML(file));
+                } catch (Exception ex) {
+                    failed(file, ex);
+                    return;
+                } finally {
+                    this.pending.release();
+                }
+                long done = this.report.stored(size);
+                listener.stored(file, size);
+                progress(done);
+            });
+        }
+
+        void failed(Path file, Exception ex) {
+            long done = this.report.failed(file, ex);
+            listener.failed(file, ex);
+            progress(done);
+        }
+
+        /**
+         * Reports the progress when the file counted as number
+         * <code>done</code> closes an interval; the count comes from the
+         * increment, so each interval is reported exactly once.
+         */
+        private void progress(long done) {
+            if (done % progressInterval == 0) {
+                listener.progress(this.report.snapshot());
+            }
+        }
+
+        Report finish() {
+            this.workers.shutdown();
+            try {
+                while (!this.workers.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // keep waiting for the uploads
+                }
+            } catch (InterruptedException ex) {
+                this.workers.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            for (Map.Entry<DBCollection, Path> collection : this.collections.entrySet()) {
+                try {
+                    collection.getKey().flush();
+                } catch (DBMSException ex) {
+                    failed(collection.getValue(), ex);
+                }
+            }
+            this.report.end = System.nanoTime();
+            return this.report.snapshot();
+        }
+    }
+
+    /**
+     * The outcome (or, during the ingest, the progress) of a
+     * <code>BulkIngest</code>.
+     */
+    public static class Report {
+
+        final long start;
+        volatile long end;
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong stored = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<Path, String> errors = Collections.synchronizedMap(new LinkedHashMap<Path, String>());
+
+        Report() {
+            this(System.nanoTime());
+        }
+
+        private Report(long start) {
+            this.start = start;
+        }
+
+        /**
+         * @return the number of files done, with this one.
+         */
+        long stored(long size) {
+            this.bytes.addAndGet(size);
+            this.stored.incrementAndGet();
+            return this.files.incrementAndGet();
+        }
+
+        /**
+         * @return the number of files done, with this one.
+         */
+        long failed(Path file, Exception ex) {
+            this.errors.put(file, ex.getMessage());
+            this.failed.incrementAndGet();
+            return this.files.incrementAndGet();
+        }
+
+        Report snapshot() {
+            Report r = new Report(this.start);
+            r.end = (this.end != 0) ? this.end : System.nanoTime();
+            r.files.set(this.files.get());
+            r.stored.set(this.stored.get());
+            r.failed.set(this.failed.get());
+            r.bytes.set(this.bytes.get());
+            synchronized (this.errors) {
+                r.errors.putAll(this.errors);
+            }
+            return r;
+        }
+
+        /**
+         * @return the number of files stored.
+         */
+        public long getStored() {
+            return this.stored.get();
+        }
+
+        /**
+         * @return the number of files that could not be stored.
+         */
+        public long getFailed() {
+            return this.failed.get();
+        }
+
+        /**
+         * @return the number of bytes stored.
+         */
+        public long getBytes() {
+            return this.bytes.get();
+        }
+
+        /**
+         * @return the files that could not be stored, with the (last) error
+         * for each.
+         */
+        public Map<Path, String> getErrors() {
+            return Collections.unmodifiableMap(this.errors);
+        }
+
+        /**
+         * @return the time the ingest took (so far), in milliseconds.
+         */
+        public long getElapsedMillis() {
+            long to = (this.end != 0) ? this.end : System.nanoTime();
+            return TimeUnit.NANOSECONDS.toMillis(to - this.start);
+        }
+
+        /**
+         * @return the files stored per second.
+         */
+        public double getDocumentsPerSecond() {
+            long ms = Math.max(getElapsedMillis(), 1);
+            return getStored() * 1000.0 / ms;
+        }
+
+        /**
+         * @return the megabytes (2<sup>20</sup> bytes) stored per second.
+         */
+        public double getMegabytesPerSecond() {
+            long ms = Math.max(getElapsedMillis(), 1);
+            return getBytes() * 1000.0 / ms / (1024 * 1024);
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT, "BulkIngest[stored=%d, failed=%d, bytes=%d, ms=%d, docs/s=%.1f, MB/s=%.2f]",
+                    getStored(), getFailed(), getBytes(), getElapsedMillis(), getDocumentsPerSecond(),
+                    getMegabytesPerSecond());
+        }
+    }
+}
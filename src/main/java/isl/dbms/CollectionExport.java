@@ -0,0 +1,451 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import org.xmldb.api.base.Resource;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+
+/**
+ * A <code>CollectionExport</code> writes a <code>DBCollection</code>, with
+ * its child collections, as a ZIP or TAR archive for data exchange:
+ *
+ * <pre>
+ * collection.export().format(CollectionExport.Format.TAR).threads(8).writeTo(Paths.get("archive.tar"));
+ * </pre>
+ *
+ * Files are fetched by <code>threads</code> readers at once, each file in
+ * chunks, and written to the archive in the order of the collection tree
+ * (entries are named by their path relative to the exported collection).
+ * At most <code>2 * threads</code> files are fetched ahead of the writer,
+ * and each of them is held in memory only up to
+ * <code>MEMORY_THRESHOLD</code> bytes and spooled to a temporary file
+ * beyond that, so memory stays bounded whatever the size of the collection.
+ * <br> <br>
+ * With <code>serverSide(true)</code> a ZIP archive is built by the
+ * compression module of eXist instead and only downloaded: less traffic and
+ * client work, but the whole archive is held in memory on the server and
+ * the client.
+ */
+public class CollectionExport {
+
+    /**
+     * Size in bytes above which a fetched file is spooled to disk.
+     */
+    public static final int MEMORY_THRESHOLD = 256 * 1024;
+    private static final String SERVER_ZIP = "declare namespace compression=\"http://exist-db.org/xquery/compression\";\n"
+            + "declare variable $collection external;\n"
+            + "compression:zip(xs:anyURI($collection), true())";
+
+    /**
+     * Archive formats.
+     */
+    public enum Format {
+        ZIP, TAR
+    }
+
+    private final DBCollection source;
+    private Format format = Format.ZIP;
+    private int threads = 4;
+    private int level = java.util.zip.Deflater.DEFAULT_COMPRESSION;
+    private boolean serverSide = false;
+
+    /**
+     * Creates an export of a collection. See
+     * <code>DBCollection.export()</code>.
+     *
+     * @param source the collection to export.
+     */
+    public CollectionExport(DBCollection source) {
+        this.source = source;
+    }
+
+    /**
+     * @param format the format of the archive.
+     * @return this <code>CollectionExport</code>.
+     */
+    public CollectionExport format(Format format) {
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * @param threads the number of files fetched at once.
+     * @return this <code>CollectionExport</code>.
+     */
+    public CollectionExport threads(int threads) {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * @param level the ZIP compression level (0-9).
+     * @return this <code>CollectionExport</code>.
+     */
+    public CollectionExport compressionLevel(int level) {
+        this.level = level;
+        return this;
+    }
+
+    /**
+     * @param serverSide <code>true</code> to have the database build a ZIP
+     * archive.
+     * @return this <code>CollectionExport</code>.
+     */
+    public CollectionExport serverSide(boolean serverSide) {
+        this.serverSide = serverSide;
+        return this;
+    }
+
+    /**
+     * Writes the archive to a file.
+     *
+     * @param file the file to write.
+     * @return the number of files exported.
+     * @throws DBMSException with expected error codes.
+     */
+    public long writeTo(Path file) throws DBMSException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            return writeTo(out);
+        } catch (IOException IOEx) {
+            throw new DBMSException(IOEx);
+        }
+    }
+
+    /**
+     * Writes the archive to a channel. The channel is not closed.
+     *
+     * @param out the channel to write to.
+     * @return the number of files exported.
+     * @throws DBMSException with expected error codes.
+     */
+    public long writeTo(WritableByteChannel out) throws DBMSException {
+        return writeTo(Channels.newOutputStream(out));
+    }
+
+    /**
+     * Writes the archive to a stream. The stream is not closed.
+     *
+     * @param out the stream to write to.
+     * @return the number of files exported, or -1 for a server-side archive.
+     * @throws DBMSException with expected error codes.
+     */
+    public long writeTo(OutputStream out) throws DBMSException {
+        try {
+            if (this.serverSide && this.format == Format.ZIP) {
+                writeServerZip(out);
+                return -1;
+            }
+            if (this.format == Format.ZIP) {
+                ZipOutputStream zip = new ZipOutputStream(out);
+                zip.setLevel(this.level);
+                long count = write(new ZipSink(zip));
+                zip.finish();
+                return count;
+            }
+            TarOutputStream tar = new TarOutputStream(out);
+            long count = write(new TarSink(tar));
+            tar.finish();
+            return count;
+        } catch (IOException IOEx) {
+            throw new DBMSException(IOEx);
+        }
+    }
+
+    private long write(Sink sink) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService readers = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "DMS-export-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        ArrayDeque<Future<Fetched>> window = new ArrayDeque<Future<Fetched>>();
+        long written = 0;
+        try {
+            ArrayDeque<Object[]> collections = new ArrayDeque<Object[]>();
+            collections.add(new Object[]{this.source, ""});
+            while (!collections.isEmpty()) {
+                Object[] next = collections.poll();
+                DBCollection collection = (DBCollection) next[0];
+                String prefix = (String) next[1];
+                // one describe query per collection, not one per file
+                for (DBFile file : collection.getFiles()) {
+                    String entry = prefix + file.getName();
+                    window.add(readers.submit(() -> fetch(file, entry)));
+                    if (window.size() >= 2 * this.threads) {
+                        written += drain(window.poll(), sink);
+                    }
+                }
+                for (String child : collection.listChildCollections()) {
+                    DBCollection c = collection.getChildCollection(child);
+                    if (c != null) {
+                        collections.add(new Object[]{c, prefix + child + "/"});
+                    }
+                }
+            }
+            while (!window.isEmpty()) {
+                written += drain(window.poll(), sink);
+            }
+            return written;
+        } finally {
+            // tasks not yet started are dropped by shutdownNow and never complete
+            readers.shutdownNow();
+            try {
+                readers.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            // remove what was fetched but not written
+            for (Future<Fetched> f : window) {
+                if (!f.isDone()) {
+                    f.cancel(true);
+                    continue;
+                }
+                try {
+                    f.get().discard();
+                } catch (Exception ignored) {
+                    // failed or cancelled, nothing was spooled
+                }
+            }
+        }
+    }
+
+    private static long drain(Future<Fetched> future, Sink sink) throws IOException {
+        Fetched fetched;
+        try {
+            fetched = future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Export interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause.getMessage());
+        }
+        try {
+            sink.put(fetched.name, fetched.size(), fetched.modified);
+            fetched.copyTo(sink.stream());
+            sink.closeEntry();
+        } finally {
+            fetched.discard();
+        }
+        return 1;
+    }
+
+    private static Fetched fetch(DBFile file, String entry) throws IOException {
+        Date modified = file.getLastModificationTime();
+        Fetched fetched = new Fetched(entry, modified != null ? modified.getTime() : System.currentTimeMillis());
+        try {
+            if (file.getType().equals("BinaryDBFile")) {
+                file.getBinary(fetched);
+            } else {
+                file.getXML(fetched);
+            }
+            fetched.close();
+        } catch (RuntimeException ex) {
+            fetched.discard();
+            throw ex;
+        }
+        return fetched;
+    }
+
+    private void writeServerZip(OutputStream out) throws IOException {
+        CollectionLease lease = this.source.acquire();
+        try {
+            ResourceSet rs = lease.execute(SERVER_ZIP,
+                    Collections.singletonMap("collection", this.source.getPath()), null);
+            if (rs.getSize() == 0) {
+                throw new DBMSException("Empty server-side archive");
+            }
+            Resource r = rs.getResource(0);
+            Object content = r.getContent();
+            byte[] zip = (content instanceof byte[])
+                    ? (byte[]) content
+                    : Base64.getMimeDecoder().decode(content.toString());
+            out.write(zip);
+            out.flush();
+            rs.clear();
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * The content of a file, in memory up to <code>MEMORY_THRESHOLD</code>
+     * bytes and in a temporary file beyond.
+     */
+    private static final class Fetched extends OutputStream {
+
+        final String name;
+        final long modified;
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private Path spool;
+        private OutputStream spoolOut;
+        private long size;
+
+        Fetched(String name, long modified) {
+            this.name = name;
+            this.modified = modified;
+        }
+
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (this.spoolOut == null && this.memory.size() + len > MEMORY_THRESHOLD) {
+                this.spool = Files.createTempFile("dms", ".export");
+                this.spoolOut = Files.newOutputStream(this.spool);
+                this.memory.writeTo(this.spoolOut);
+                this.memory = null;
+            }
+            if (this.spoolOut != null) {
+                this.spoolOut.write(b, off, len);
+            } else {
+                this.memory.write(b, off, len);
+            }
+            this.size += len;
+        }
+
+        public void close() throws IOException {
+            if (this.spoolOut != null) {
+                this.spoolOut.close();
+            }
+        }
+
+        long size() {
+            return this.size;
+        }
+
+        void copyTo(OutputStream out) throws IOException {
+            if (this.spool == null) {
+                this.memory.writeTo(out);
+                return;
+            }
+            try (InputStream in = Files.newInputStream(this.spool)) {
+                byte[] buffer = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            }
+        }
+
+        void discard() {
+            try {
+                close();
+                if (this.spool != null) {
+                    Files.deleteIfExists(this.spool);
+                }
+            } catch (IOException ignored) {
+                // left for the temporary directory cleanup
+            }
+            this.memory = null;
+        }
+    }
+
+    /**
+     * An archive being written.
+     */
+    private interface Sink {
+
+        void put(String name, long size, long modified) throws IOException;
+
+        OutputStream stream();
+
+        void closeEntry() throws IOException;
+    }
+
+    private static final class ZipSink implements Sink {
+
+        private final ZipOutputStream zip;
+
+        ZipSink(ZipOutputStream zip) {
+            this.zip = zip;
+        }
+
+        public void put(String name, long size, long modified) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(modified);
+            this.zip.putNextEntry(entry);
+        }
+
+        public OutputStream stream() {
+            return this.zip;
+        }
+
+        public void closeEntry() throws IOException {
+            this.zip.closeEntry();
+        }
+    }
+
+    private static final class TarSink implements Sink {
+
+        private final TarOutputStream tar;
+
+        TarSink(TarOutputStream tar) {
+            this.tar = tar;
+        }
+
+        public void put(String name, long size, long modified) throws IOException {
+            this.tar.putEntry(name, size, modified);
+        }
+
+        public OutputStream stream() {
+            return this.tar;
+        }
+
+        public void closeEntry() throws IOException {
+            this.tar.closeEntry();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.exist.xmldb.XQueryService;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.CompiledExpression;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.XMLResource;
+
+/**
+ * A <code>CollectionLease</code> gives exclusive use of a pooled XML:DB
+ * <code>Collection</code> handle until <code>release()</code> is called.
+ * Properties changed through the lease are restored when the handle returns
+ * to the pool, so that they do not leak to other lessees. <br> <br> A lease
+ * created around an unpooled handle (a handle the caller obtained by other
+ * means) does nothing on release.
+ */
+public class CollectionLease {
+
+    private final CollectionPool pool;
+    private final CollectionPool.Entry entry;
+    private final Collection collection;
+    private HashMap<String, String> saved;
+    private boolean released = false;
+
+    CollectionLease(CollectionPool pool, CollectionPool.Entry entry) {
+        this.pool = pool;
+        this.entry = entry;
+        this.collection = entry.collection;
+    }
+
+    /**
+     * Wraps a handle that is not owned by any pool.
+     *
+     * @param collection the handle.
+     */
+    public CollectionLease(Collection collection) {
+        this.pool = null;
+        this.entry = null;
+        this.collection = collection;
+    }
+
+    /**
+     * Returns the leased handle.
+     *
+     * @return the leased <code>Collection</code>.
+     */
+    public Collection getCollection() {
+        if (this.released) {
+            throw new DBMSException("Collection lease already released");
+        }
+        return this.collection;
+    }
+
+    /**
+     * Sets a property of the leased handle for the duration of the lease.
+     *
+     * @param name the name of the property.
+     * @param value the value of the property.
+     * @throws DBMSException with expected error codes.
+     */
+    public void setProperty(String name, String value) throws DBMSException {
+        try {
+            if (this.pool != null) {
+                if (this.saved == null) {
+                    this.saved = new HashMap<String, String>();
+                }
+                if (!this.saved.containsKey(name)) {
+                    this.saved.put(name, this.collection.getProperty(name));
+                }
+            }
+            this.collection.setProperty(name, value);
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        }
+    }
+
+    /**
+     * Runs an XQuery on the leased handle. The query is compiled once per
+     * pooled handle and its compiled form reused; values that change between
+     * calls should therefore be passed as external variables (declared in
+     * the query with <code>declare variable $name external;</code>) rather
+     * than concatenated into the query.
+     *
+     * @param query the XQuery query string to use.
+     * @param variables the values of the external variables of the query,
+     * by name, or <code>null</code>.
+     * @param resource the name of the resource to use as context of the
+     * query, or <code>null</code> to query the whole collection.
+     * @return the results of the query.
+     * @throws XMLDBException if the query fails.
+     */
+    ResourceSet execute(String query, Map<String, ?> variables, String resource) throws XMLDBException {
+        Collection col = getCollection();
+        XQueryService service = (XQueryService) col.getService("XQueryService", "1.0");
+        CompiledExpression compiled = (this.pool != null)
+                ? this.pool.compile(this.entry, service, query)
+                : service.compile(query);
+        if (variables != null) {
+            for (Map.Entry<String, ?> variable : variables.entrySet()) {
+                service.declareVariable(variable.getKey(), variable.getValue());
+            }
+        }
+        try {
+            if (resource == null) {
+                return service.execute(compiled);
+            }
+            return service.execute((XMLResource) col.getResource(resource), compiled);
+        } catch (XMLDBException XMLDBEx) {
+            if (this.entry != null) {
+                this.entry.compiled.remove(query);
+            }
+            throw XMLDBEx;
+        }
+    }
+
+    /**
+     * Returns the handle to its pool. Calling <code>release</code> more than
+     * once has no effect.
+     */
+    public void release() {
+        if (this.released) {
+            return;
+        }
+        this.released = true;
+        if (this.pool == null) {
+            return;
+        }
+        if (this.saved != null) {
+            try {
+                for (Map.Entry<String, String> e : this.saved.entrySet()) {
+                    if (e.getValue() == null) {
+                        // the property cannot be unset, do not share the handle
+                        this.pool.invalidate(this.entry);
+                        return;
+                    }
+                    this.collection.setProperty(e.getKey(), e.getValue());
+                }
+            } catch (XMLDBException e) {
+                this.pool.invalidate(this.entry);
+                return;
+            }
+        }
+        this.pool.release(this.entry);
+    }
+
+    /**
+     * Drops the leased handle instead of returning it to the pool. Used when
+     * the handle is known to be broken.
+     */
+    public void invalidate() {
+        if (this.released) {
+            return;
+        }
+        this.released = true;
+        if (this.pool != null) {
+            this.pool.invalidate(this.entry);
+        }
+    }
+}
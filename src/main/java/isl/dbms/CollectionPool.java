@@ -0,0 +1,659 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.OutputKeys;
+import org.exist.xmldb.XQueryService;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.CompiledExpression;
+import org.xmldb.api.base.XMLDBException;
+
+/**
+ * A <code>CollectionPool</code> keeps open XML:DB <code>Collection</code>
+ * handles so that <code>DBCollection</code> and <code>DBFile</code> objects do
+ * not have to connect and authenticate against the database for every
+ * operation. <br> <br> Handles are pooled per database URI, collection path
+ * and user. A handle is handed out as a <code>CollectionLease</code>, which
+ * must be released when the operation is over. The pool is bounded: when
+ * <code>maxTotal</code> handles are leased, further leases wait up to
+ * <code>borrowTimeout</code> milliseconds for one to be released. <br> <br>
+ * Idle handles are validated on borrow (if they have not been used for
+ * <code>validationInterval</code> milliseconds) and evicted once they have
+ * been idle for <code>maxIdleTime</code> milliseconds. <br> <br> Each handle
+ * also keeps the queries compiled on it, up to
+ * <code>maxCompiledPerHandle</code>, so that queries run through
+ * <code>CollectionLease.execute</code> are compiled once per handle.
+ */
+public class CollectionPool {
+
+    private static final CollectionPool DEFAULT = new CollectionPool();
+    private int maxTotal = 64;
+    private int maxIdlePerKey = 8;
+    private long maxIdleTime = 5 * 60 * 1000L;
+    private long validationInterval = 30 * 1000L;
+    private long borrowTimeout = 30 * 1000L;
+    private volatile int maxCompiledPerHandle = 64;
+    private final HashMap<Key, LinkedList<Entry>> idle = new HashMap<Key, LinkedList<Entry>>();
+    private int total = 0;
+    private int leased = 0;
+    private long requests, hits, misses, created, destroyed, evicted, invalid, timeouts;
+    private long waitTime;
+    private long compileHits, compileMisses;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * Returns the pool shared by all <code>DBCollection</code> and
+     * <code>DBFile</code> instances.
+     *
+     * @return the default <code>CollectionPool</code>.
+     */
+    public static CollectionPool getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Leases a handle to a collection. If an idle handle for the same
+     * database, collection and user exists it is reused, otherwise a new one
+     * is obtained from the database.
+     *
+     * @param database the database where the collection (next argument) is in.
+     * @param collection the name of the collection.
+     * @param user the username to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @param password the password to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @return a <code>CollectionLease</code> or <code>null</code> if the
+     * collection does not exist.
+     * @throws DBMSException with expected error codes.
+     */
+    public CollectionLease lease(String database, String collection, String user, String password)
+            throws DBMSException {
+        long started = Metrics.start();
+        long results = -1;
+        try {
+            CollectionLease lease = acquire(database, collection, user, password);
+            results = lease == null ? 0 : 1;
+            return lease;
+        } finally {
+            Metrics.stop(Metrics.LEASE, started, results, 0);
+        }
+    }
+
+    private CollectionLease acquire(String database, String collection, String user, String password)
+            throws DBMSException {
+        Key key = new Key(database, collection, user, password);
+        Entry entry = null;
+        synchronized (this) {
+            requests++;
+            startEvictor();
+            long deadline = System.currentTimeMillis() + this.borrowTimeout;
+            while (entry == null) {
+                entry = pollIdle(key);
+                if (entry != null) {
+                    hits++;
+                    break;
+                }
+                if (total < maxTotal) {
+                    total++;
+                    misses++;
+                    break;
+                }
+                if (!evictOldest()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new DBMSException("Collection pool exhausted. No handle for collection "
+                                + collection + " available after " + this.borrowTimeout + " ms");
+                    }
+                    long start = System.currentTimeMillis();
+                    try {
+                        this.wait(remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new DBMSException("Interrupted while waiting for collection " + collection);
+                    }
+                    waitTime += System.currentTimeMillis() - start;
+                }
+            }
+            leased++;
+        }
+        if (entry == null) {
+            // a slot has been reserved, connect outside the lock
+            try {
+                entry = create(key);
+            } catch (RuntimeException e) {
+                freeSlot();
+                throw e;
+            }
+            if (entry == null) {
+                freeSlot();
+                return null;
+            }
+        } else if (!validate(entry)) {
+            invalidate(entry);
+            return acquire(database, collection, user, password);
+        }
+        return new CollectionLease(this, entry);
+    }
+
+    /**
+     * Returns the statistics of this pool.
+     *
+     * @return a snapshot of the pool statistics.
+     */
+    public synchronized Statistics getStatistics() {
+        Statistics s = new Statistics();
+        s.requests = requests;
+        s.hits = hits;
+        s.misses = misses;
+        s.created = created;
+        s.destroyed = destroyed;
+        s.evicted = evicted;
+        s.invalid = invalid;
+        s.timeouts = timeouts;
+        s.waitTime = waitTime;
+        s.compileHits = compileHits;
+        s.compileMisses = compileMisses;
+        s.leased = leased;
+        s.idle = total - leased;
+        s.keys = idle.size();
+        return s;
+    }
+
+    /**
+     * Closes all idle handles that have not been used for
+     * <code>maxIdleTime</code> milliseconds.
+     *
+     * @return the number of evicted handles.
+     */
+    public int evictIdle() {
+        ArrayList<Entry> expired = new ArrayList<Entry>();
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            Iterator<Map.Entry<Key, LinkedList<Entry>>> it = idle.entrySet().iterator();
+            while (it.hasNext()) {
+                LinkedList<Entry> list = it.next().getValue();
+                Iterator<Entry> li = list.iterator();
+                while (li.hasNext()) {
+                    Entry e = li.next();
+                    if (now - e.lastUsed >= maxIdleTime) {
+                        li.remove();
+                        expired.add(e);
+                    }
+                }
+                if (list.isEmpty()) {
+                    it.remove();
+                }
+            }
+            total -= expired.size();
+            evicted += expired.size();
+            if (!expired.isEmpty()) {
+                this.notifyAll();
+            }
+        }
+        for (Entry e : expired) {
+            destroy(e);
+        }
+        return expired.size();
+    }
+
+    /**
+     * Closes all idle handles of this pool. Leased handles are closed when
+     * they are released.
+     */
+    public void clear() {
+        ArrayList<Entry> all = new ArrayList<Entry>();
+        synchronized (this) {
+            for (LinkedList<Entry> list : idle.values()) {
+                all.addAll(list);
+            }
+            idle.clear();
+            total -= all.size();
+            this.notifyAll();
+        }
+        for (Entry e : all) {
+            destroy(e);
+        }
+    }
+
+    /**
+     * @param maxTotal the maximum number of handles (idle and leased).
+     */
+    public synchronized void setMaxTotal(int maxTotal) {
+        this.maxTotal = maxTotal;
+        this.notifyAll();
+    }
+
+    /**
+     * @param maxIdlePerKey the maximum number of idle handles kept for each
+     * database, collection and user.
+     */
+    public synchronized void setMaxIdlePerKey(int maxIdlePerKey) {
+        this.maxIdlePerKey = maxIdlePerKey;
+    }
+
+    /**
+     * @param maxIdleTime the time in milliseconds after which an idle handle
+     * is evicted.
+     */
+    public synchronized void setMaxIdleTime(long maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
+    /**
+     * @param validationInterval the idle time in milliseconds after which a
+     * handle is validated before it is leased. Use 0 to validate on every
+     * lease.
+     */
+    public synchronized void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * @param borrowTimeout the time in milliseconds to wait for a handle when
+     * the pool is exhausted.
+     */
+    public synchronized void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @param maxCompiledPerHandle the maximum number of compiled queries kept
+     * for each handle. The least recently used ones are dropped first. Use 0
+     * to disable the cache.
+     */
+    public void setMaxCompiledPerHandle(int maxCompiledPerHandle) {
+        this.maxCompiledPerHandle = maxCompiledPerHandle;
+    }
+
+    /**
+     * Returns the compiled form of a query, from the cache of the handle if
+     * it has been compiled on it before. Only the lessee of the handle may
+     * call it.
+     */
+    CompiledExpression compile(Entry entry, XQueryService service, String query) throws XMLDBException {
+        CompiledExpression compiled = entry.compiled.get(query);
+        synchronized (this) {
+            if (compiled != null) {
+                compileHits++;
+            } else {
+                compileMisses++;
+            }
+        }
+        if (compiled == null) {
+            compiled = service.compile(query);
+            if (this.maxCompiledPerHandle > 0) {
+                entry.compiled.put(query, compiled);
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns a leased handle to the pool.
+     */
+    void release(Entry entry) {
+        boolean keep;
+        synchronized (this) {
+            leased--;
+            entry.lastUsed = System.currentTimeMillis();
+            LinkedList<Entry> list = idle.get(entry.key);
+            if (list == null) {
+                list = new LinkedList<Entry>();
+                idle.put(entry.key, list);
+            }
+            keep = list.size() < maxIdlePerKey && total <= maxTotal;
+            if (keep) {
+                list.addFirst(entry);
+            } else {
+                if (list.isEmpty()) {
+                    idle.remove(entry.key);
+                }
+                total--;
+            }
+            this.notifyAll();
+        }
+        if (!keep) {
+            destroy(entry);
+        }
+    }
+
+    /**
+     * Drops a leased handle that is no longer usable.
+     */
+    void invalidate(Entry entry) {
+        synchronized (this) {
+            invalid++;
+        }
+        freeSlot();
+        destroy(entry);
+    }
+
+    private synchronized void freeSlot() {
+        leased--;
+        total--;
+        this.notifyAll();
+    }
+
+    private Entry pollIdle(Key key) {
+        LinkedList<Entry> list = idle.get(key);
+        if (list == null) {
+            return null;
+        }
+        Entry e = list.poll();
+        if (list.isEmpty()) {
+            idle.remove(key);
+        }
+        return e;
+    }
+
+    /**
+     * Frees a slot for a new handle by dropping the least recently used idle
+     * handle of any key. Must be called holding the lock.
+     */
+    private boolean evictOldest() {
+        Entry oldest = null;
+        for (LinkedList<Entry> list : idle.values()) {
+            Entry e = list.peekLast();
+            if (e != null && (oldest == null || e.lastUsed < oldest.lastUsed)) {
+                oldest = e;
+            }
+        }
+        if (oldest == null) {
+            return false;
+        }
+        LinkedList<Entry> list = idle.get(oldest.key);
+        list.removeLast();
+        if (list.isEmpty()) {
+            idle.remove(oldest.key);
+        }
+        total--;
+        evicted++;
+        final Entry victim = oldest;
+        // closing may need a round trip, do it in the background
+        evictor.execute(new Runnable() {
+            public void run() {
+                destroy(victim);
+            }
+        });
+        return true;
+    }
+
+    private Entry create(Key key) throws DBMSException {
+        try {
+            Collection col = DriverRegistry.getCollection(key.database, key.collection,
+                    key.user, key.password);
+            if (col == null) {
+                return null;
+            }
+            col.setProperty(OutputKeys.INDENT, "yes");
+            synchronized (this) {
+                created++;
+            }
+            return new Entry(key, col, this);
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        }
+    }
+
+    private boolean validate(Entry entry) {
+        long now = System.currentTimeMillis();
+        if (now - entry.lastValidated < validationInterval) {
+            return true;
+        }
+        try {
+            if (!entry.collection.isOpen()) {
+                return false;
+            }
+            entry.collection.getResourceCount();
+            entry.lastValidated = now;
+            return true;
+        } catch (XMLDBException e) {
+            return false;
+        }
+    }
+
+    private void destroy(Entry entry) {
+        try {
+            entry.collection.close();
+        } catch (XMLDBException e) {
+            e.printStackTrace();
+        }
+        synchronized (this) {
+            destroyed++;
+        }
+    }
+
+    private void startEvictor() {
+        if (evictor != null) {
+            return;
+        }
+        evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "DMS-CollectionPool-evictor");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                evictIdle();
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Identifies the handles that can be shared: same database URI,
+     * collection path and credentials.
+     */
+    static final class Key {
+
+        final String database, collection, user, password;
+
+        Key(String database, String collection, String user, String password) {
+            this.database = database;
+            this.collection = collection;
+            this.user = user;
+            this.password = password;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return eq(database, k.database) && eq(collection, k.collection)
+                    && eq(user, k.user) && eq(password, k.password);
+        }
+
+        public int hashCode() {
+            int h = database == null ? 0 : database.hashCode();
+            h = 31 * h + (collection == null ? 0 : collection.hashCode());
+            h = 31 * h + (user == null ? 0 : user.hashCode());
+            return 31 * h + (password == null ? 0 : password.hashCode());
+        }
+
+        public String toString() {
+            return user + "@" + database + collection;
+        }
+
+        private static boolean eq(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * A pooled handle.
+     */
+    static final class Entry {
+
+        final Key key;
+        final Collection collection;
+        final LinkedHashMap<String, CompiledExpression> compiled;
+        long lastUsed, lastValidated;
+
+        Entry(Key key, Collection collection, final CollectionPool pool) {
+            this.key = key;
+            this.collection = collection;
+            this.lastUsed = this.lastValidated = System.currentTimeMillis();
+            this.compiled = new LinkedHashMap<String, CompiledExpression>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, CompiledExpression> eldest) {
+                    return size() > pool.maxCompiledPerHandle;
+                }
+            };
+        }
+    }
+
+    /**
+     * A snapshot of the counters of a <code>CollectionPool</code>.
+     */
+    public static class Statistics {
+
+        long requests, hits, misses, created, destroyed, evicted, invalid, timeouts, waitTime;
+        long compileHits, compileMisses;
+        int leased, idle, keys;
+
+        /**
+         * @return the number of leases requested.
+         */
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * @return the number of leases served by an idle handle.
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of leases that needed a new handle.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of handles obtained from the database.
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * @return the number of handles closed.
+         */
+        public long getDestroyed() {
+            return destroyed;
+        }
+
+        /**
+         * @return the number of idle handles evicted.
+         */
+        public long getEvicted() {
+            return evicted;
+        }
+
+        /**
+         * @return the number of handles that failed validation or were
+         * invalidated by their lessee.
+         */
+        public long getInvalid() {
+            return invalid;
+        }
+
+        /**
+         * @return the number of leases that timed out waiting for a handle.
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * @return the total time in milliseconds spent waiting for a handle.
+         */
+        public long getWaitTime() {
+            return waitTime;
+        }
+
+        /**
+         * @return the number of queries found already compiled on the
+         * leased handle.
+         */
+        public long getCompileHits() {
+            return compileHits;
+        }
+
+        /**
+         * @return the number of queries that had to be compiled.
+         */
+        public long getCompileMisses() {
+            return compileMisses;
+        }
+
+        /**
+         * @return the number of handles currently leased.
+         */
+        public int getLeased() {
+            return leased;
+        }
+
+        /**
+         * @return the number of handles currently idle.
+         */
+        public int getIdle() {
+            return idle;
+        }
+
+        /**
+         * @return the hit ratio of the pool, between 0 and 1.
+         */
+        public double getHitRatio() {
+            return requests == 0 ? 0 : (double) hits / requests;
+        }
+
+        public String toString() {
+            return "CollectionPool[requests=" + requests + ", hits=" + hits + ", misses=" + misses
+                    + ", created=" + created + ", destroyed=" + destroyed + ", evicted=" + evicted
+                    + ", invalid=" + invalid + ", timeouts=" + timeouts + ", waitTime=" + waitTime
+                    + "ms, compileHits=" + compileHits + ", compileMisses=" + compileMisses
+                    + ", leased=" + leased + ", idle=" + idle + ", keys=" + keys + "]";
+        }
+    }
+}
@@ -27,16 +27,19 @@
  */
 package isl.dbms;
 
-import javax.xml.transform.OutputKeys;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import org.xmldb.api.base.Collection;
 import org.xmldb.api.base.Resource;
-import org.xmldb.api.base.ResourceIterator;
 import org.xmldb.api.base.ResourceSet;
 import org.xmldb.api.base.XMLDBException;
 import org.xmldb.api.modules.XPathQueryService;
 import org.xmldb.api.modules.CollectionManagementService;
 import org.xmldb.api.modules.XUpdateQueryService;
-import org.xmldb.api.DatabaseManager;
 import org.xmldb.api.modules.XMLResource;
 
 /**
@@ -50,24 +53,19 @@ import org.xmldb.api.modules.XMLResource;
  */
 public class DBCollection extends DBXUpdate {
 
-    private Collection Collection, col;
+    private Collection Pinned;
     private String DB;
+    private String Path;
     private String User, Password;
+    private HashMap<String, String> Properties = new HashMap<String, String>();
 
     protected DBCollection(String database, Collection col) throws DBMSException {
         try {
-            this.Collection = col;
+            this.Pinned = col;
             this.DB = database;
+            this.Path = col.getName();
         } catch (Exception e) {
             e.printStackTrace();
-        } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
         }
     }
 
@@ -86,31 +84,17 @@ public class DBCollection extends DBXUpdate {
      */
     public DBCollection(String database, String collection, String user, String password)
             throws DBMSException {
-        try {
-            registerDriver();
-            this.DB = database;
-            this.User = user;
-            this.Password = password;
-            // get the collection
-            this.Collection = DatabaseManager.getCollection(database + collection,
-                    user, password);
-            deregisterDriver();
-            if (this.Collection == null) {
-                throw new DBMSException("DBCollection could not be instantiated. Collection "
-                        + collection + " not found");
-            }
-            this.Collection.setProperty(OutputKeys.INDENT, "yes");
-        } catch (XMLDBException XMLDBEx) {
-            throw new DBMSException(XMLDBEx);
-        } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+        this.DB = database;
+        this.Path = collection;
+        this.User = user;
+        this.Password = password;
+        // get the collection
+        CollectionLease lease = CollectionPool.getDefault().lease(database, collection, user, password);
+        if (lease == null) {
+            throw new DBMSException("DBCollection could not be instantiated. Collection "
+                    + collection + " not found");
         }
+        lease.release();
     }
 
     /**
@@ -120,18 +104,13 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public String getName() throws DBMSException {
+        CollectionLease lease = acquire();
         try {
-            return this.Collection.getName();
+            return lease.getCollection().getName();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -155,24 +134,20 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public DBCollection getParentCollection() throws DBMSException {
+        String name;
+        CollectionLease lease = acquire();
         try {
-            Collection col = this.Collection.getParentCollection();
+            Collection col = lease.getCollection().getParentCollection();
             if (col == null) {
                 return null;
-            } else {
-                return new DBCollection(this.DB, col.getName(), this.User, this.Password);
             }
+            name = col.getName();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (col != null) {
-                try {
-                    col.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
+        return new DBCollection(this.DB, name, this.User, this.Password);
     }
 
     /**
@@ -183,18 +158,13 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public int getChildCollectionCount() throws DBMSException {
+        CollectionLease lease = acquire();
         try {
-            return this.Collection.getChildCollectionCount();
+            return lease.getCollection().getChildCollectionCount();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (Collection != null) {
-                try {
-                    Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -208,18 +178,13 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public String[] listChildCollections() throws DBMSException {
+        CollectionLease lease = acquire();
         try {
-            return this.Collection.listChildCollections();
+            return lease.getCollection().listChildCollections();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (Collection != null) {
-                try {
-                    Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -234,24 +199,20 @@ public class DBCollection extends DBXUpdate {
      */
     public DBCollection getChildCollection(String collection)
             throws DBMSException {
+        String name;
+        CollectionLease lease = acquire();
         try {
-            Collection col = this.Collection.getChildCollection(collection);
+            Collection col = lease.getCollection().getChildCollection(collection);
             if (col == null) {
                 return null;
-            } else {
-                return new DBCollection(this.DB, col.getName(), this.User, this.Password);
             }
+            name = col.getName();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (col != null) {
-                try {
-                    col.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
+        return child(name);
     }
 
     /**
@@ -268,14 +229,18 @@ public class DBCollection extends DBXUpdate {
      */
     public DBCollection createCollection(String collection)
             throws DBMSException {
+        String name;
+        Collection col = null;
+        CollectionLease lease = acquire();
         try {
-            CollectionManagementService cms = (CollectionManagementService) this.Collection
+            CollectionManagementService cms = (CollectionManagementService) lease.getCollection()
                     .getService("CollectionManager", "1.0");
-            Collection col = cms.createCollection(collection);
-            return new DBCollection(this.DB, col.getName(), this.User, this.Password);
+            col = cms.createCollection(collection);
+            name = col.getName();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
+            lease.release();
             if (col != null) {
                 try {
                     col.close();
@@ -284,6 +249,7 @@ public class DBCollection extends DBXUpdate {
                 }
             }
         }
+        return child(name);
 
     }
 
@@ -336,24 +302,19 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public void removeCollection(String collection) throws DBMSException {
+        DBCollection tmp = this.getChildCollection(collection);
+        if (tmp == null) {
+            throw new DBMSException("Collection " + collection + " not found");
+        }
+        CollectionLease lease = acquire();
         try {
-            DBCollection tmp = this.getChildCollection(collection);
-            if (tmp == null) {
-                throw new DBMSException("Collection " + collection + " not found");
-            }
-            CollectionManagementService cms = (CollectionManagementService) this.Collection
+            CollectionManagementService cms = (CollectionManagementService) lease.getCollection()
                     .getService("CollectionManager", "1.0");
             cms.removeCollection(collection);
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -365,18 +326,13 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public int getFileCount() throws DBMSException {
+        CollectionLease lease = acquire();
         try {
-            return this.Collection.getResourceCount();
+            return lease.getCollection().getResourceCount();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -389,18 +345,13 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public String[] listFiles() throws DBMSException {
+        CollectionLease lease = acquire();
         try {
-            return this.Collection.listResources();
+            return lease.getCollection().listResources();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -422,31 +373,26 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public DBFile createFile(String file, String type) throws DBMSException {
+        DBFile f = this.getFile(file);
+        if (f != null) {
+            throw new DBMSException("File already exists: " + file);
+        }
+        String rType;
+        if (type.equals("BinaryDBFile")) {
+            rType = "BinaryResource";
+        } else if (type.equals("XMLDBFile")) {
+            rType = "XMLResource";
+        } else {
+            throw new DBMSException("Unknown DBFile type: " + type);
+        }
+        CollectionLease lease = acquire();
         try {
-            DBFile f = this.getFile(file);
-            if (f != null) {
-                throw new DBMSException("File already exists: " + file);
-            }
-            String rType;
-            if (type.equals("BinaryDBFile")) {
-                rType = "BinaryResource";
-            } else if (type.equals("XMLDBFile")) {
-                rType = "XMLResource";
-            } else {
-                throw new DBMSException("Unknown DBFile type: " + type);
-            }
-            Resource res = Collection.createResource(file, rType);
-            return new DBFile(this.DB, this.Collection, res, type, this.User, this.Password);
+            Resource res = lease.getCollection().createResource(file, rType);
+            return own(new DBFile(this.DB, lease.getCollection(), res, type, this.User, this.Password));
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 //
@@ -516,24 +462,65 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public DBFile getFile(String file) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        CollectionLease lease = acquire();
         try {
-            Resource res = this.Collection.getResource(file);
+            // only the metadata is fetched, the content is loaded on first access
+            DBFile[] files = DBFile.describe(lease.getCollection(), this.DB, this.Path, file,
+                    this.User, this.Password);
+            if (files != null) {
+                results = files.length == 0 ? 0 : 1;
+                bytes = files.length == 0 ? 0 : files[0].knownSize();
+                return files.length == 0 ? null : own(files[0]);
+            }
+            Resource res = lease.getCollection().getResource(file);
+            results = res == null ? 0 : 1;
             if (res == null) {
                 return null;
             } else {
-                return new DBFile(this.DB, this.Collection, res, this.User, this.Password);
+                return own(new DBFile(this.DB, lease.getCollection(), res, this.User, this.Password));
             }
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
+            lease.release();
+            Metrics.stop(Metrics.COLLECTION_GET, started, results, bytes);
+        }
+    }
+
+    /**
+     * Returns all the files stored in this <code>DBCollection</code>. Only the
+     * metadata of the files (name, type, size, creation and modification time)
+     * is fetched, with a single query; the content of each <code>DBFile</code>
+     * is loaded on first access. If no files exist an empty array is returned.
+     *
+     * @return an array of <code>DBFile</code> for all files in the collection.
+     * @throws DBMSException with expected error codes.
+     */
+    public DBFile[] getFiles() throws DBMSException {
+        String[] names = null;
+        CollectionLease lease = acquire();
+        try {
+            DBFile[] files = DBFile.describe(lease.getCollection(), this.DB, this.Path, null,
+                    this.User, this.Password);
+            if (files != null) {
+                for (DBFile f : files) {
+                    own(f);
                 }
+                return files;
             }
+            names = lease.getCollection().listResources();
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        } finally {
+            lease.release();
         }
+        DBFile[] files = new DBFile[names.length];
+        for (int i = 0; i < names.length; i++) {
+            files[i] = this.getFile(names[i]);
+        }
+        return files;
     }
 
     /**
@@ -559,22 +546,17 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public void removeFile(DBFile file) throws DBMSException {
+        if (!file.getCollection().getName().equals(getName())) {
+            throw new DBMSException("File could not be removed. Collection " + this.getName()
+                    + " not owner");
+        }
+        CollectionLease lease = acquire();
         try {
-            if (!file.getCollection().getName().equals(getName())) {
-                throw new DBMSException("File could not be removed. Collection " + this.getName()
-                        + " not owner");
-            }
-            this.Collection.removeResource(file.getResource());
+            lease.getCollection().removeResource(file.getResource());
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
     }
 
@@ -589,21 +571,97 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException with expected error codes.
      */
     public void storeFile(DBFile file) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        CollectionLease lease = acquire();
         try {
-            this.Collection.storeResource(file.getResource());
+            lease.getCollection().storeResource(file.getResource());
+            file.discardSpool();
+            file.stored();
+            results = 1;
+            bytes = file.contentLength();
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
+            Metrics.stop(Metrics.COLLECTION_STORE, started, results, bytes);
         }
     }
 
+    /**
+     * Stores a file from disk into this <code>DBCollection</code> in one
+     * operation, replacing any file with the same name. The driver uploads
+     * the content from disk in chunks.
+     *
+     * @param name the name to store the file under.
+     * @param content the file on disk.
+     * @param binary <code>true</code> to store a binary file,
+     * <code>false</code> for an XML file.
+     * @throws DBMSException with expected error codes.
+     */
+    public void storeFile(String name, Path content, boolean binary) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        CollectionLease lease = acquire();
+        try {
+            Resource res = lease.getCollection().createResource(name, binary ? "BinaryResource" : "XMLResource");
+            res.setContent(content.toFile());
+            lease.getCollection().storeResource(res);
+            results = 1;
+            bytes = (started == 0) ? 0 : content.toFile().length();
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        } finally {
+            lease.release();
+            Metrics.stop(Metrics.COLLECTION_STORE, started, results, bytes);
+        }
+    }
+
+    /**
+     * Returns a <code>BulkIngest</code> that stores many files from disk into
+     * this <code>DBCollection</code> concurrently.
+     *
+     * @return a new <code>BulkIngest</code>.
+     */
+    public BulkIngest bulkIngest() {
+        return new BulkIngest(this);
+    }
+
+    /**
+     * Stores all files under a directory into this <code>DBCollection</code>,
+     * with the default settings of <code>BulkIngest</code>. Sub-directories
+     * become child collections.
+     *
+     * @param directory the directory.
+     * @return the report of the ingest.
+     * @throws DBMSException with expected error codes.
+     */
+    public BulkIngest.Report storeAll(Path directory) throws DBMSException {
+        return bulkIngest().storeAll(directory);
+    }
+
+    /**
+     * Stores a set of files into this <code>DBCollection</code>, with the
+     * default settings of <code>BulkIngest</code>.
+     *
+     * @param files the files.
+     * @return the report of the ingest.
+     */
+    public BulkIngest.Report storeAll(Iterable<Path> files) {
+        return bulkIngest().storeAll(files);
+    }
+
+    /**
+     * Returns a <code>CollectionExport</code> that writes this
+     * <code>DBCollection</code> and its child collections as a ZIP or TAR
+     * archive.
+     *
+     * @return a new <code>CollectionExport</code>.
+     */
+    public CollectionExport export() {
+        return new CollectionExport(this);
+    }
+
     /**
      * Stores a <code>DBFile</code> into the <code>DBCollection</code>, under a
      * particular name. The file associated with the specified
@@ -631,7 +689,16 @@ public class DBCollection extends DBXUpdate {
             f.setXMLAsString(file.getXMLAsString());
         } else {
             f = this.createFile(fileName, type);
-            f.setBinary(file.getBinary());
+            InputStream in = file.getBinaryAsStream();
+            try {
+                f.setBinary(in);
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
         this.storeFile(f);
         return f;
@@ -649,32 +716,125 @@ public class DBCollection extends DBXUpdate {
      */
     public String[] query(String query) throws DBMSException {
 
-        String[] ret = null;
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        QueryCursor cursor = queryCursor(query);
         try {
-            XPathQueryService service = (XPathQueryService) this.Collection.getService("XQueryService", "1.0");
-            ResourceSet rs = service.query(query);
-            XMLResource resource;
-            ret = new String[(int) rs.getSize()];
-            ResourceIterator ri = rs.getIterator();
+            String[] ret = new String[(int) cursor.getSize()];
             int index = 0;
+            while (cursor.hasNext()) {
+                ret[index] = cursor.next();
+                bytes += ret[index++].length();
+            }
+            results = ret.length;
+            return ret;
+        } finally {
+            cursor.close();
+            Metrics.stop(Metrics.COLLECTION_QUERY, started, results, bytes);
+        }
+
+    }
 
-            while (ri.hasMoreResources()) {
-                resource = (XMLResource) ri.nextResource();
-                ret[index++] = (String) resource.getContent();
+    /**
+     * Executes an XQuery with external variables against this
+     * <code>DBCollection</code>. The query is compiled once per pooled
+     * handle and reused by later calls with the same query string, so the
+     * values that change between calls should be declared in it as external
+     * variables (<code>declare variable $id external;</code>) and passed in
+     * <code>variables</code>.
+     *
+     * @param query the XQuery query string to use.
+     * @param variables the values of the external variables, by name.
+     * @return an array of <code>String</code> containing the results of the
+     * query.
+     * @throws DBMSException with expected error codes.
+     */
+    public String[] query(String query, Map<String, ?> variables) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        QueryCursor cursor = queryCursor(query, variables, 0, -1);
+        try {
+            String[] ret = new String[(int) cursor.getSize()];
+            int index = 0;
+            while (cursor.hasNext()) {
+                ret[index] = cursor.next();
+                bytes += ret[index++].length();
             }
+            results = ret.length;
+            return ret;
+        } finally {
+            cursor.close();
+            Metrics.stop(Metrics.COLLECTION_QUERY, started, results, bytes);
+        }
+    }
+
+    /**
+     * Executes an XQuery with external variables against this
+     * <code>DBCollection</code> and returns a window of its results through
+     * a <code>QueryCursor</code>. The query is compiled once per pooled
+     * handle, as in <code>query(String, Map)</code>.
+     *
+     * @param query the XQuery query string to use.
+     * @param variables the values of the external variables, by name.
+     * @param start the index (0-based) of the first result to return.
+     * @param limit the maximum number of results to return, or a negative
+     * number for all results after <code>start</code>.
+     * @return a <code>QueryCursor</code> over the selected results.
+     * @throws DBMSException with expected error codes.
+     */
+    public QueryCursor queryCursor(String query, Map<String, ?> variables, long start, long limit)
+            throws DBMSException {
+        CollectionLease lease = acquire();
+        try {
+            return new QueryCursor(lease, lease.execute(query, variables, null), start, limit);
         } catch (XMLDBException XMLDBEx) {
+            lease.release();
             throw new DBMSException(XMLDBEx);
-        } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+        } catch (RuntimeException Ex) {
+            lease.release();
+            throw Ex;
         }
-        return ret;
+    }
 
+    /**
+     * Executes a query (either XPath or XQuery) against this
+     * <code>DBCollection</code>. The results are returned through a
+     * <code>QueryCursor</code>, which fetches them from the server one at a
+     * time and must be closed if it is not read to the end.
+     *
+     * @param query the XQuery query string to use.
+     * @return a <code>QueryCursor</code> over the results of the query.
+     * @throws DBMSException with expected error codes.
+     */
+    public QueryCursor queryCursor(String query) throws DBMSException {
+        return queryCursor(query, 0, -1);
+    }
+
+    /**
+     * Executes a query (either XPath or XQuery) against this
+     * <code>DBCollection</code> and returns a window of its results through
+     * a <code>QueryCursor</code>. Only the results inside the window are
+     * fetched from the server.
+     *
+     * @param query the XQuery query string to use.
+     * @param start the index (0-based) of the first result to return.
+     * @param limit the maximum number of results to return, or a negative
+     * number for all results after <code>start</code>.
+     * @return a <code>QueryCursor</code> over the selected results.
+     * @throws DBMSException with expected error codes.
+     */
+    public QueryCursor queryCursor(String query, long start, long limit) throws DBMSException {
+        CollectionLease lease = acquire();
+        try {
+            XPathQueryService service = (XPathQueryService) lease.getCollection().getService("XQueryService", "1.0");
+            return new QueryCursor(lease, service.query(query), start, limit);
+        } catch (XMLDBException XMLDBEx) {
+            lease.release();
+            throw new DBMSException(XMLDBEx);
+        } catch (RuntimeException Ex) {
+            lease.release();
+            throw Ex;
+        }
     }
 
     /**
@@ -690,21 +850,16 @@ public class DBCollection extends DBXUpdate {
     public ResourceSet queryGetResourceSet(String query) throws DBMSException {
 
         ResourceSet rs = null;
+        CollectionLease lease = acquire();
         try {
-            XPathQueryService service = (XPathQueryService) this.Collection.getService("XQueryService", "1.0");
+            XPathQueryService service = (XPathQueryService) lease.getCollection().getService("XQueryService", "1.0");
             service.setProperty("indent", "yes");
             service.setProperty("encoding", "UTF-8");
             rs = service.query(query);
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
-                }
-            }
+            lease.release();
         }
         return rs;
     }
@@ -718,24 +873,164 @@ public class DBCollection extends DBXUpdate {
      * @throws DBMSException
      */
     public long update(String updateQuery) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        CollectionLease lease = acquire();
         try {
-            XUpdateQueryService service = (XUpdateQueryService) this.Collection.getService("XUpdateQueryService", "1.0");
-            return service.update(updateQuery);
+            XUpdateQueryService service = (XUpdateQueryService) lease.getCollection().getService("XUpdateQueryService", "1.0");
+            results = service.update(updateQuery);
+            bytes = updateQuery.length();
+            return results;
         } catch (XMLDBException XMLDBEx) {
             throw new DBMSException(XMLDBEx);
         } finally {
-            if (this.Collection != null) {
-                try {
-                    this.Collection.close();
-                } catch (XMLDBException e) {
-                    e.printStackTrace();
+            lease.release();
+            Metrics.stop(Metrics.COLLECTION_UPDATE, started, results, bytes);
+        }
+    }
+
+    /**
+     * Runs <code>query(query)</code> on the <code>AsyncExecutor</code>.
+     *
+     * @param query the XQuery query string to use.
+     * @return a future completed with the results of the query.
+     */
+    public CompletableFuture<String[]> queryAsync(String query) {
+        return AsyncExecutor.supply(() -> query(query));
+    }
+
+    /**
+     * Runs <code>query(query, variables)</code> on the
+     * <code>AsyncExecutor</code>.
+     *
+     * @param query the XQuery query string to use.
+     * @param variables the values of the external variables, by name.
+     * @return a future completed with the results of the query.
+     */
+    public CompletableFuture<String[]> queryAsync(String query, Map<String, ?> variables) {
+        return AsyncExecutor.supply(() -> query(query, variables));
+    }
+
+    /**
+     * Runs <code>getFile(file)</code> on the <code>AsyncExecutor</code>.
+     *
+     * @param file the name of the file.
+     * @return a future completed with the <code>DBFile</code>.
+     */
+    public CompletableFuture<DBFile> getFileAsync(String file) {
+        return AsyncExecutor.supply(() -> getFile(file));
+    }
+
+    /**
+     * Runs <code>listFiles()</code> on the <code>AsyncExecutor</code>.
+     *
+     * @return a future completed with the names of the files.
+     */
+    public CompletableFuture<String[]> listFilesAsync() {
+        return AsyncExecutor.supply(() -> listFiles());
+    }
+
+    /**
+     * Runs <code>update(updateQuery)</code> on the <code>AsyncExecutor</code>.
+     *
+     * @param updateQuery The XUpdate commands to use.
+     * @return a future completed with the number of modified nodes.
+     */
+    public CompletableFuture<Long> updateAsync(String updateQuery) {
+        return AsyncExecutor.supply(() -> update(updateQuery));
+    }
+
+    /**
+     * Returns a handle to a child collection of this <code>DBCollection</code>,
+     * for <code>getChildCollection</code> and <code>createCollection</code>.
+     * Subclasses return their own type, carrying the settings that apply to
+     * the files stored below them.
+     *
+     * @param path the full path of the child collection.
+     * @return a handle to the child collection.
+     * @throws DBMSException with expected error codes.
+     */
+    protected DBCollection child(String path) throws DBMSException {
+        return new DBCollection(this.DB, path, this.User, this.Password);
+    }
+
+    /**
+     * Completes the work this <code>DBCollection</code> defers while files
+     * are stored into it, such as the permissions an
+     * <code>ExistCollection</code> sets on batches of files.
+     * <code>BulkIngest</code> calls it on every collection it stored into at
+     * the end of an ingest; code storing files in a batch with
+     * <code>storeFile</code> should call it when the batch is over. A
+     * <code>DBCollection</code> defers nothing.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public void flush() throws DBMSException {
+    }
+
+    /**
+     * Leases a handle to the collection represented by this
+     * <code>DBCollection</code>. The lease must be released when the
+     * operation is over.
+     *
+     * @return a <code>CollectionLease</code> on the collection.
+     * @throws DBMSException with expected error codes.
+     */
+    protected CollectionLease acquire() throws DBMSException {
+        CollectionLease lease;
+        if (this.Pinned != null) {
+            lease = new CollectionLease(this.Pinned);
+        } else {
+            lease = CollectionPool.getDefault().lease(this.DB, this.Path, this.User, this.Password);
+            if (lease == null) {
+                throw new DBMSException("Collection " + this.Path + " not found");
+            }
+        }
+        try {
+            synchronized (this.Properties) {
+                for (Map.Entry<String, String> e : this.Properties.entrySet()) {
+                    lease.setProperty(e.getKey(), e.getValue());
                 }
             }
+        } catch (RuntimeException e) {
+            lease.invalidate();
+            throw e;
+        }
+        return lease;
+    }
+
+    /**
+     * Hands the collection properties of this <code>DBCollection</code> to a
+     * <code>DBFile</code> it returns, so that its content is loaded with
+     * them.
+     */
+    private DBFile own(DBFile file) {
+        synchronized (this.Properties) {
+            if (!this.Properties.isEmpty()) {
+                file.setProperties(new HashMap<String, String>(this.Properties));
+            }
         }
+        return file;
     }
 
-    protected Collection getCollection() {
-        return this.Collection;
+    /**
+     * Sets a property on the handles used by this <code>DBCollection</code>.
+     * The property is applied to every handle leased by this instance only.
+     *
+     * @param name the name of the property.
+     * @param value the value of the property.
+     */
+    protected void setCollectionProperty(String name, String value) {
+        synchronized (this.Properties) {
+            this.Properties.put(name, value);
+        }
+    }
+
+    /**
+     * @return Returns the database.
+     */
+    protected String getDatabase() {
+        return DB;
     }
 
     /**
@@ -36,8 +36,24 @@ import org.xmldb.api.modules.XMLResource;
 import org.xmldb.api.modules.BinaryResource;
 import org.xmldb.api.modules.XPathQueryService;
 import org.xmldb.api.modules.XUpdateQueryService;
-import org.xmldb.api.DatabaseManager;
-import javax.xml.transform.OutputKeys;
+import org.exist.xmldb.ExtendedResource;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import javax.xml.datatype.DatatypeFactory;
 
 /**
  * <code>DBFile</code> is a container for data stored within the database. A
@@ -56,17 +72,33 @@ import javax.xml.transform.OutputKeys;
  * either as text XML or via the DOM or SAX APIs. <br>
  * <bR>
  * An <code>DBFile</code> of type 'BinaryDBFile' can be accessed as an array
- * of bytes <code>byte[]</code>.
+ * of bytes <code>byte[]</code>, or streamed through the
+ * <code>InputStream</code>/<code>OutputStream</code> and channel variants of
+ * <code>getBinary</code> and <code>setBinary</code>.<br>
+ * <br>
+ * A <code>DBFile</code> obtained from a collection initially holds only the
+ * metadata of the file (name, type, size, creation and modification time).
+ * The content is loaded from the database on first access.
  */
 public class DBFile extends DBXUpdate {
 	private XMLResource XMLResource;
 	private BinaryResource BinaryResource;
 
-	private Collection Collection;
+	private String Path;
+	private String Name;
 
 	private String Type;
+	private long Size = -1;
+	private Date Created, Modified;
+	private boolean Described = false;
+	private Path Spool;
+	/** The size of the content set on this DBFile, for Metrics; -1 if unknown. */
+	private long ContentLength = -1;
+
+	private static final long CHUNK_SIZE = 64 * 1024;
 	private String DB;
 	private String User, Password;
+	private Map<String, String> Properties;
 
 	protected DBFile(){
 		
@@ -94,7 +126,7 @@ public class DBFile extends DBXUpdate {
 		this.Type = type;
 		this.User = null;
 		this.Password = null;
-		this.Collection = null;
+		this.Path = null;
 		this.DB = null;
 	}
 
@@ -115,19 +147,11 @@ public class DBFile extends DBXUpdate {
                         
 			this.BinaryResource = null;
 			setResource(res);
-			this.Collection = col;
+			setCollection(col);
 			this.DB = db;
 		}
 		catch (Exception e) {
 			e.printStackTrace();}
-		finally{
-			 if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
-		}
-		
 	}
 
 	protected DBFile(String db, Collection col, Resource res, String user, String password)
@@ -143,21 +167,12 @@ public class DBFile extends DBXUpdate {
 			this.BinaryResource = null;
 			setResource(res);
 			this.DB = db;
-			this.Collection = col;
+			setCollection(col);
 			this.User = user;
 			this.Password = password;}
 		
 		catch (Exception e) {
 			e.printStackTrace();}
-		
-		finally{
-			 if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
-		}
-		
 	}
 
 	/**
@@ -185,37 +200,62 @@ public class DBFile extends DBXUpdate {
 	 */
 	public DBFile(String database, String collection, String file, String user, String password)
 	throws DBMSException {
+		this.DB = database;
+		this.User = user;
+		this.Password = password;
+		// get the collection
+		CollectionLease lease = CollectionPool.getDefault().lease(database, collection, user, password);
+		if (lease == null)
+			throw new DBMSException("DBFile could not be instantiated. Collection "
+					+ collection + " not found");
 		try {
-			registerDriver();
-			this.DB = database;
-			this.User = user;
-			this.Password = password;
-			// get the collection
-			this.Collection = DatabaseManager.getCollection(database + collection, user, password);
-			deregisterDriver();
-			if (this.Collection == null)
-				throw new DBMSException("DBFile could not be instantiated. Collection "
-						+ collection + " not found");
-			this.Collection.setProperty(OutputKeys.INDENT, "yes");
-			
-			Resource res = this.Collection.getResource(file);
-			if (res == null)
+			this.Path = collection;
+			// only the metadata is fetched, the content is loaded on first access
+			DBFile[] files = describe(lease.getCollection(), database, collection, file, user, password);
+			if (files == null) {
+				Resource res = lease.getCollection().getResource(file);
+				if (res == null)
+					throw new DBMSException("DBFile could not be instantiated. File " + file
+							+ " not found in collection " + collection);
+				setType(res.getResourceType());
+				setResource(res);
+			} else if (files.length == 0) {
 				throw new DBMSException("DBFile could not be instantiated. File " + file
 						+ " not found in collection " + collection);
-			setType(res.getResourceType());
-			setResource(res);
+			} else {
+				this.Name = file;
+				this.Type = files[0].Type;
+				this.Size = files[0].Size;
+				this.Created = files[0].Created;
+				this.Modified = files[0].Modified;
+				this.Described = true;
+			}
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 		finally{
-			if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
+			lease.release();
 		}
 	}
 
+	/**
+	 * Constructs a <code>DBFile</code> handle from the metadata of a stored
+	 * file. The content is loaded on first access.
+	 */
+	DBFile(String db, String collection, String name, String type, long size, Date created,
+			Date modified, String user, String password) {
+		this.DB = db;
+		this.Path = collection;
+		this.Name = name;
+		this.Type = type;
+		this.Size = size;
+		this.Created = created;
+		this.Modified = modified;
+		this.Described = true;
+		this.User = user;
+		this.Password = password;
+	}
+
 	/**
 	 * Returns the unique name (id) for this <code>DBFile</code> or null if
 	 * the <code>DBFile</code> is anonymous. That is if it is obtained as the
@@ -227,6 +267,8 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes.
 	 */
 	public String getName() throws DBMSException {
+		if (this.Name != null)
+			return this.Name;
 		try {
 			return this.Type.equals("BinaryDBFile") ? BinaryResource.getId() : XMLResource.getId();
 		} catch (XMLDBException XMLDBEx) {
@@ -234,6 +276,58 @@ public class DBFile extends DBXUpdate {
 		}
 	}
 
+	/**
+	 * Returns the size in bytes of the stored content of this
+	 * <code>DBFile</code>. The content itself is not loaded.
+	 * 
+	 * @return the size of the file or -1 if it is not known (e.g. the
+	 *         <code>DBFile</code> has not been stored yet).
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public long getSize() throws DBMSException {
+		describe();
+		return this.Size;
+	}
+
+	/**
+	 * Returns the creation time of this <code>DBFile</code>. The content is
+	 * not loaded.
+	 * 
+	 * @return the creation time or <code>null</code> if it is not known.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public Date getCreationTime() throws DBMSException {
+		describe();
+		return this.Created;
+	}
+
+	/**
+	 * Returns the time this <code>DBFile</code> was last modified. The
+	 * content is not loaded.
+	 * 
+	 * @return the last modification time or <code>null</code> if it is not
+	 *         known.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public Date getLastModificationTime() throws DBMSException {
+		describe();
+		return this.Modified;
+	}
+
+	/**
+	 * Checks whether the content of this <code>DBFile</code> has been loaded
+	 * from the database.
+	 * 
+	 * @return <code>true</code> if the content is loaded, <code>false</code>
+	 *         if only the metadata is known.
+	 */
+	public boolean isLoaded() {
+		return this.XMLResource != null || this.BinaryResource != null;
+	}
+
 	/**
 	 * Returns the type for this <code>DBFile</code>.<br>
 	 * <br>
@@ -252,6 +346,31 @@ public class DBFile extends DBXUpdate {
 		return this.Type;
 	}
 
+	/**
+	 * Returns the URI of the file represented by this <code>DBFile</code>:
+	 * the database URI, followed by the collection path and the name of the
+	 * file. Unlike <code>getPath()</code> it does not contact the database.
+	 * 
+	 * @return the URI of the file, or <code>null</code> if the
+	 *         <code>DBFile</code> has no owner collection.
+	 */
+	public String getURI() {
+		if (this.Path == null || this.DB == null)
+			return null;
+		return this.DB + this.Path + "/" + this.Name;
+	}
+
+	/**
+	 * Returns the path of the collection this <code>DBFile</code> belongs to.
+	 * Unlike <code>getCollection()</code> it does not contact the database.
+	 * 
+	 * @return the collection path, or <code>null</code> if the
+	 *         <code>DBFile</code> has no owner collection.
+	 */
+	public String getCollectionPath() {
+		return this.Path;
+	}
+
 	/**
 	 * Returns the full path in the database of the file
 	 * represented by this <code>DBFile</code>.
@@ -293,7 +412,7 @@ public class DBFile extends DBXUpdate {
 	 */
 	public String getXMLAsString() throws DBMSException {
 		try {
-			return (String) this.XMLResource.getContent();
+			return (String) xml().getContent();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -310,9 +429,37 @@ public class DBFile extends DBXUpdate {
 	 */
 	public void setXMLAsString(String content) throws DBMSException {
 		try {
-			this.XMLResource.setContent(content);
+			xml().setContent(content);
+			this.ContentLength = (content == null) ? -1 : content.length();
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+	}
+
+	/**
+	 * Writes the XML content of this <code>DBFile</code> to an
+	 * <code>OutputStream</code>, encoded in UTF-8. The content is fetched
+	 * from the server in chunks, so it does not have to fit in memory. The
+	 * stream is not closed.
+	 * 
+	 * @param out
+	 *            the <code>OutputStream</code> to write to.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void getXML(OutputStream out) throws DBMSException {
+		try {
+			XMLResource res = xml();
+			if (res instanceof ExtendedResource) {
+				((ExtendedResource) res).getContentIntoAStream(out);
+			} else {
+				out.write(((String) res.getContent()).getBytes(StandardCharsets.UTF_8));
+			}
+			out.flush();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
+		} catch (IOException IOEx) {
+			throw new DBMSException(IOEx);
 		}
 	}
 
@@ -327,7 +474,7 @@ public class DBFile extends DBXUpdate {
 	 */
 	public org.w3c.dom.Node getXMLAsDOM() throws DBMSException {
 		try {
-			return (org.w3c.dom.Node) this.XMLResource.getContentAsDOM();
+			return (org.w3c.dom.Node) xml().getContentAsDOM();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -344,7 +491,8 @@ public class DBFile extends DBXUpdate {
 	 */
 	public void setXMLAsDOM(org.w3c.dom.Node content) throws DBMSException {
 		try {
-			this.XMLResource.setContentAsDOM(content);
+			xml().setContentAsDOM(content);
+			this.ContentLength = -1;
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -366,7 +514,7 @@ public class DBFile extends DBXUpdate {
 	public void getXMLAsSAX(org.xml.sax.ContentHandler handler)
 	throws DBMSException {
 		try {
-			this.XMLResource.getContentAsSAX(handler);
+			xml().getContentAsSAX(handler);
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -383,7 +531,8 @@ public class DBFile extends DBXUpdate {
 	 */
 	public org.xml.sax.ContentHandler setXMLAsSAX() throws DBMSException {
 		try {
-			return this.XMLResource.setContentAsSAX();
+			this.ContentLength = -1;
+			return xml().setContentAsSAX();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -401,7 +550,7 @@ public class DBFile extends DBXUpdate {
 	 */
 	public byte[] getBinary() throws DBMSException {
 		try {
-			return (byte[]) this.BinaryResource.getContent();
+			return (byte[]) binary().getContent();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
@@ -418,12 +567,227 @@ public class DBFile extends DBXUpdate {
 	 */
 	public void setBinary(byte[] content) throws DBMSException {
 		try {
-			this.BinaryResource.setContent(content);
+			binary().setContent(content);
+			this.ContentLength = (content == null) ? -1 : content.length;
+			discardSpool();
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+	}
+
+	/**
+	 * Returns the binary content of this <code>DBFile</code> as an
+	 * <code>InputStream</code>. The content is transferred from the database
+	 * in chunks, so it does not have to fit in memory.
+	 * 
+	 * @return an <code>InputStream</code> over the binary content.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public InputStream getBinaryAsStream() throws DBMSException {
+		try {
+			BinaryResource res = binary();
+			if (res instanceof ExtendedResource)
+				return ((ExtendedResource) res).getStreamContent();
+			return new ByteArrayInputStream((byte[]) res.getContent());
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 	}
 
+	/**
+	 * Returns the binary content of this <code>DBFile</code> as a
+	 * <code>ReadableByteChannel</code>.
+	 * 
+	 * @return a <code>ReadableByteChannel</code> over the binary content.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public ReadableByteChannel getBinaryAsChannel() throws DBMSException {
+		return Channels.newChannel(getBinaryAsStream());
+	}
+
+	/**
+	 * Writes the binary content of this <code>DBFile</code> to an
+	 * <code>OutputStream</code>, in chunks. The stream is not closed.
+	 * 
+	 * @param out
+	 *            the <code>OutputStream</code> to write to.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void getBinary(OutputStream out) throws DBMSException {
+		try {
+			BinaryResource res = binary();
+			if (res instanceof ExtendedResource) {
+				((ExtendedResource) res).getContentIntoAStream(out);
+			} else {
+				out.write((byte[]) res.getContent());
+			}
+			out.flush();
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		} catch (IOException IOEx) {
+			throw new DBMSException(IOEx);
+		}
+	}
+
+	/**
+	 * Writes the binary content of this <code>DBFile</code> to a
+	 * <code>WritableByteChannel</code>, in chunks. The channel is not closed.
+	 * 
+	 * @param out
+	 *            the <code>WritableByteChannel</code> to write to.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void getBinary(WritableByteChannel out) throws DBMSException {
+		getBinary(Channels.newOutputStream(out));
+	}
+
+	/**
+	 * Sets the binary content for this <code>DBFile</code> using a file as
+	 * the source. The file is uploaded in chunks when the <code>DBFile</code>
+	 * is stored, so it must not be removed before that.
+	 * 
+	 * @param file
+	 *            the file holding the new content.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void setBinary(Path file) throws DBMSException {
+		try {
+			binary().setContent(file.toFile());
+			this.ContentLength = file.toFile().length();
+			discardSpool();
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+	}
+
+	/**
+	 * Sets the binary content for this <code>DBFile</code> using an
+	 * <code>InputStream</code> as the source. The content is spooled to a
+	 * temporary file in chunks and uploaded from there when the
+	 * <code>DBFile</code> is stored. The stream is not closed.
+	 * 
+	 * @param content
+	 *            the <code>InputStream</code> to read the new content from.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void setBinary(InputStream content) throws DBMSException {
+		setBinary(Channels.newChannel(content));
+	}
+
+	/**
+	 * Sets the binary content for this <code>DBFile</code> using a
+	 * <code>ReadableByteChannel</code> as the source. The content is spooled
+	 * to a temporary file in chunks and uploaded from there when the
+	 * <code>DBFile</code> is stored. The channel is not closed.
+	 * 
+	 * @param content
+	 *            the <code>ReadableByteChannel</code> to read the new content
+	 *            from.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public void setBinary(ReadableByteChannel content) throws DBMSException {
+		Path spool = null;
+		try {
+			spool = Files.createTempFile("dms", ".bin");
+			FileChannel out = FileChannel.open(spool, StandardOpenOption.WRITE);
+			try {
+				long position = 0, n;
+				while ((n = out.transferFrom(content, position, CHUNK_SIZE)) > 0)
+					position += n;
+			} finally {
+				out.close();
+			}
+			setBinary(spool);
+			this.Spool = spool;
+		} catch (IOException IOEx) {
+			deleteQuietly(spool);
+			throw new DBMSException(IOEx);
+		}
+	}
+
+	/**
+	 * Returns an <code>OutputStream</code> that can be used to write the
+	 * binary content of this <code>DBFile</code>. The content is spooled to a
+	 * temporary file and becomes the content of the <code>DBFile</code> when
+	 * the stream is closed.
+	 * 
+	 * @return an <code>OutputStream</code> to write the new content to.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public OutputStream setBinaryAsStream() throws DBMSException {
+		try {
+			final Path spool = Files.createTempFile("dms", ".bin");
+			return new FilterOutputStream(Files.newOutputStream(spool)) {
+				private boolean closed = false;
+
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				public void close() throws IOException {
+					if (closed)
+						return;
+					closed = true;
+					super.close();
+					try {
+						setBinary(spool);
+						Spool = spool;
+					} catch (DBMSException Ex) {
+						deleteQuietly(spool);
+						throw new IOException(Ex.getMessage());
+					}
+				}
+			};
+		} catch (IOException IOEx) {
+			throw new DBMSException(IOEx);
+		}
+	}
+
+	/**
+	 * @return the size of the content set on this <code>DBFile</code>, in
+	 *         characters for XML set as a <code>String</code> and in bytes
+	 *         for binary content, or 0 if it is not known (content set as
+	 *         DOM or SAX, or not set at all).
+	 */
+	long contentLength() {
+		return Math.max(this.ContentLength, 0);
+	}
+
+	/**
+	 * @return the size of the stored file if its metadata is known, or 0;
+	 *         the database is not contacted.
+	 */
+	long knownSize() {
+		return Math.max(this.Size, 0);
+	}
+
+	/**
+	 * Deletes the temporary file holding content set from a stream, once the
+	 * content has been stored or replaced.
+	 */
+	void discardSpool() {
+		deleteQuietly(this.Spool);
+		this.Spool = null;
+	}
+
+	private static void deleteQuietly(Path file) {
+		if (file == null)
+			return;
+		try {
+			Files.deleteIfExists(file);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
 	/**
 	 * Returns the <code>DBCollection</code> instance that this
 	 * <code>DBFile</code> is associated with. If no owner collection exist it
@@ -436,21 +800,10 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes.
 	 */
 	public DBCollection getCollection() throws DBMSException {
-		try {
-			if (this.Collection == null)
-				return null;
-			else
-				return new DBCollection(this.DB, this.Collection.getName(), this.User, this.Password);
-		} catch (XMLDBException XMLDBEx) {
-			throw new DBMSException(XMLDBEx);
-		}
-		finally{
-			if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
-		}
+		if (this.Path == null)
+			return null;
+		else
+			return new DBCollection(this.DB, this.Path, this.User, this.Password);
 	}
 
 	/**
@@ -459,20 +812,31 @@ public class DBFile extends DBXUpdate {
 	 * database, into the collection associated with the
 	 * <code>DBCollection</code> it belongs to. If the file does NOT already
 	 * exist it will be created. If it does already exist it will be updated.
+	 * The size and modification time are fetched again on next access.
 	 * 
 	 * @throws DBMSException
 	 *             with expected error codes.
 	 */
 	public void store() throws DBMSException {
+		if (this.Path == null)
+			throw new DBMSException(
+					"DBFile could not be stored. No owner collection found.");
+		long started = Metrics.start();
+		long results = -1, bytes = 0;
+		CollectionLease lease = acquire();
 		try {
-			if (this.Collection == null)
-				throw new DBMSException(
-						"DBFile could not be stored. No owner collection found.");
-			this.Collection.storeResource(getResource());
+			lease.getCollection().storeResource(getResource());
+			discardSpool();
+			stored();
+			results = 1;
+			bytes = contentLength();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
-		
+		finally{
+			lease.release();
+			Metrics.stop(Metrics.FILE_STORE, started, results, bytes);
+		}
 	}
 
 	/**
@@ -496,10 +860,10 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes.
 	 */
 	public DBFile storeAs(String fileName) throws DBMSException {
-		if (this.Collection == null)
+		if (this.Path == null)
 			throw new DBMSException(
 					"DBFile could not be stored. No owner collection found.");
-		DBCollection col = new DBCollection(this.DB, this.Collection);
+		DBCollection col = getCollection();
 		return col.storeFileAs(this, fileName);
 		
 	}
@@ -621,21 +985,18 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes.
 	 */
 	public void remove() throws DBMSException {
+		if (this.Path == null)
+			throw new DBMSException(
+					"DBFile could not be stored. No owner collection found.");
+		CollectionLease lease = acquire();
 		try {
-			if (this.Collection == null)
-				throw new DBMSException(
-						"DBFile could not be stored. No owner collection found.");
-			this.Collection.removeResource(getResource());
-			this.Collection = null;
+			lease.getCollection().removeResource(getResource());
+			this.Path = null;
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 		finally{
-			if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
+			lease.release();
 		}
 	}
 
@@ -660,18 +1021,13 @@ public class DBFile extends DBXUpdate {
 		try{
 			collection.storeFile(this);
 			this.remove();
-			this.Collection = collection.getCollection();}
+			this.DB = collection.getDatabase();
+			this.Path = collection.getPath();
+			this.User = collection.getUser();
+			this.Password = collection.getPassword();}
 		catch (Exception e) {
 			e.printStackTrace();
 		}
-		finally{
-			if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
-		}
-		
 	}
 
 	/**
@@ -689,8 +1045,11 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes.
 	 */
 	public DBFile[] query(String query) throws DBMSException {
+		long started = Metrics.start();
+		long results = -1;
+		CollectionLease lease = acquire();
 		try {
-			XPathQueryService service = (XPathQueryService) this.Collection.getService("XQueryService", "1.0");
+			XPathQueryService service = (XPathQueryService) lease.getCollection().getService("XQueryService", "1.0");
 			ResourceSet rs = service.queryResource(getName(), query);
                         
 			DBFile[] ret = new DBFile[(int) rs.getSize()];
@@ -701,16 +1060,14 @@ public class DBFile extends DBXUpdate {
 				ret[index++] = new DBFile(null, null, ri.nextResource(), "QueryDBFile", User, Password);
 			}
 //                        rs.clear();
+			results = ret.length;
 			return ret;
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 		finally{
-			if (this.Collection != null)
-				try {
-					this.Collection.close();} 
-			    catch (XMLDBException e) {
-					e.printStackTrace();}
+			lease.release();
+			Metrics.stop(Metrics.FILE_QUERY, started, results, 0);
 		}
 	}
 
@@ -723,18 +1080,21 @@ public class DBFile extends DBXUpdate {
 	 * @throws DBMSException with expected error codes.
 	 */
 	public long update(String updateQuery) throws DBMSException {
+		long started = Metrics.start();
+		long results = -1, bytes = 0;
+		CollectionLease lease = acquire();
 		try {
-			XUpdateQueryService service = (XUpdateQueryService)this.Collection.getService("XUpdateQueryService", "1.0");
-			return service.updateResource(getName(),updateQuery);
+			XUpdateQueryService service = (XUpdateQueryService)lease.getCollection().getService("XUpdateQueryService", "1.0");
+			results = service.updateResource(getName(),updateQuery);
+			bytes = updateQuery.length();
+			stored();
+			return results;
 		}catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 		finally{
-			if (this.Collection != null)
-			try {
-				this.Collection.close();} 
-		    catch (XMLDBException e) {
-				e.printStackTrace();}
+			lease.release();
+			Metrics.stop(Metrics.FILE_UPDATE, started, results, bytes);
 		}
 	}
 	
@@ -767,55 +1127,437 @@ public class DBFile extends DBXUpdate {
 	 *             with expected error codes
 	 */
 
-        public String[] queryString(String query) throws DBMSException {
-            String[] ret = null;
-            try {
-                XPathQueryService service = (XPathQueryService) this.Collection.getService("XQueryService", "1.0");
-                ResourceSet rs = service.queryResource(getName(), query);
-                XMLResource resource;
-                ret = new String[(int) rs.getSize()];
-                ResourceIterator ri = rs.getIterator();
-                int index = 0;
-
-                while (ri.hasMoreResources()) {
-                    resource= (XMLResource) ri.nextResource();
-                    ret[index++] = (String) resource.getContent();
-                }
-            } catch (XMLDBException XMLDBEx) {
-                throw new DBMSException(XMLDBEx);
-            }
-            finally{
-                if (this.Collection != null)
-                    try {
-                        this.Collection.close();}
-                    catch (XMLDBException e) {
-                        e.printStackTrace();
-                    }
-            }
-            return ret;
-
-        }
-
-	public Resource getResource() {
+	public String[] queryString(String query) throws DBMSException {
+		long started = Metrics.start();
+		long results = -1, bytes = 0;
+		QueryCursor cursor = queryCursor(query);
+		try {
+			String[] ret = new String[(int) cursor.getSize()];
+			int index = 0;
+			while (cursor.hasNext()) {
+				ret[index] = cursor.next();
+				bytes += ret[index++].length();
+			}
+			results = ret.length;
+			return ret;
+		} finally {
+			cursor.close();
+			Metrics.stop(Metrics.FILE_QUERY_STRING, started, results, bytes);
+		}
+	}
+
+	/**
+	 * Executes an XQuery with external variables against this
+	 * <code>DBFile</code>. The query is compiled once per pooled handle and
+	 * reused by later calls with the same query string, so the values that
+	 * change between calls should be declared in it as external variables
+	 * (<code>declare variable $id external;</code>) and passed in
+	 * <code>variables</code>.
+	 * 
+	 * @param query
+	 *            The XQuery query string to use.
+	 * @param variables
+	 *            the values of the external variables, by name.
+	 * @return an array of <code>DBFile (DBFile[])</code> containing the
+	 *         results of the query.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public DBFile[] query(String query, Map<String, ?> variables) throws DBMSException {
+		long started = Metrics.start();
+		long results = -1;
+		CollectionLease lease = acquire();
+		try {
+			ResourceSet rs = lease.execute(query, variables, getName());
+			try {
+				DBFile[] ret = new DBFile[(int) rs.getSize()];
+				for (int index = 0; index < ret.length; index++) {
+					ret[index] = new DBFile(null, null, rs.getResource(index), "QueryDBFile", User, Password);
+				}
+				results = ret.length;
+				return ret;
+			} finally {
+				rs.clear();
+			}
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+		finally{
+			lease.release();
+			Metrics.stop(Metrics.FILE_QUERY, started, results, 0);
+		}
+	}
+
+	/**
+	 * Executes an XQuery with external variables against this
+	 * <code>DBFile</code>. The result is an array (of <code>String</code>)
+	 * containing the results of the query. The query is compiled once per
+	 * pooled handle, as in <code>query(String, Map)</code>.
+	 * 
+	 * @param query
+	 *            The XQuery query string to use.
+	 * @param variables
+	 *            the values of the external variables, by name.
+	 * @return an array of <code>String (String[])</code> containing the
+	 *         results of the query.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public String[] queryString(String query, Map<String, ?> variables) throws DBMSException {
+		long started = Metrics.start();
+		long results = -1, bytes = 0;
+		QueryCursor cursor = queryCursor(query, variables, 0, -1);
+		try {
+			String[] ret = new String[(int) cursor.getSize()];
+			int index = 0;
+			while (cursor.hasNext()) {
+				ret[index] = cursor.next();
+				bytes += ret[index++].length();
+			}
+			results = ret.length;
+			return ret;
+		} finally {
+			cursor.close();
+			Metrics.stop(Metrics.FILE_QUERY_STRING, started, results, bytes);
+		}
+	}
+
+	/**
+	 * Executes an XQuery with external variables against this
+	 * <code>DBFile</code> and returns a window of its results through a
+	 * <code>QueryCursor</code>. The query is compiled once per pooled handle,
+	 * as in <code>query(String, Map)</code>.
+	 * 
+	 * @param query
+	 *            The XQuery query string to use.
+	 * @param variables
+	 *            the values of the external variables, by name.
+	 * @param start
+	 *            the index (0-based) of the first result to return.
+	 * @param limit
+	 *            the maximum number of results to return, or a negative
+	 *            number for all results after <code>start</code>.
+	 * @return a <code>QueryCursor</code> over the selected results.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public QueryCursor queryCursor(String query, Map<String, ?> variables, long start, long limit)
+			throws DBMSException {
+		CollectionLease lease = acquire();
+		try {
+			return new QueryCursor(lease, lease.execute(query, variables, getName()), start, limit);
+		} catch (XMLDBException XMLDBEx) {
+			lease.release();
+			throw new DBMSException(XMLDBEx);
+		} catch (RuntimeException Ex) {
+			lease.release();
+			throw Ex;
+		}
+	}
+
+	/**
+	 * Executes a query (either XPath or XQuery) against this
+	 * <code>DBFile</code>. The results are returned as <code>String</code>s
+	 * through a <code>QueryCursor</code>, which fetches them from the server
+	 * one at a time and must be closed if it is not read to the end.
+	 * 
+	 * @param query
+	 *            The XPath or XQuery query string to use.
+	 * @return a <code>QueryCursor</code> over the results of the query.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public QueryCursor queryCursor(String query) throws DBMSException {
+		return queryCursor(query, 0, -1);
+	}
+
+	/**
+	 * Executes a query (either XPath or XQuery) against this
+	 * <code>DBFile</code> and returns a window of its results through a
+	 * <code>QueryCursor</code>. Only the results inside the window are
+	 * fetched from the server.
+	 * 
+	 * @param query
+	 *            The XPath or XQuery query string to use.
+	 * @param start
+	 *            the index (0-based) of the first result to return.
+	 * @param limit
+	 *            the maximum number of results to return, or a negative
+	 *            number for all results after <code>start</code>.
+	 * @return a <code>QueryCursor</code> over the selected results.
+	 * @throws DBMSException
+	 *             with expected error codes.
+	 */
+	public QueryCursor queryCursor(String query, long start, long limit) throws DBMSException {
+		CollectionLease lease = acquire();
+		try {
+			XPathQueryService service = (XPathQueryService) lease.getCollection().getService("XQueryService", "1.0");
+			return new QueryCursor(lease, service.queryResource(getName(), query), start, limit);
+		} catch (XMLDBException XMLDBEx) {
+			lease.release();
+			throw new DBMSException(XMLDBEx);
+		} catch (RuntimeException Ex) {
+			lease.release();
+			throw Ex;
+		}
+	}
+
+	/**
+	 * Runs <code>getXMLAsString()</code> on the <code>AsyncExecutor</code>.
+	 * 
+	 * @return a future completed with the XML content of this
+	 *         <code>DBFile</code>.
+	 */
+	public CompletableFuture<String> getXMLAsStringAsync() {
+		return AsyncExecutor.supply(() -> getXMLAsString());
+	}
+
+	/**
+	 * Runs <code>queryString(query)</code> on the <code>AsyncExecutor</code>.
+	 * 
+	 * @param query
+	 *            the XQuery query string to use.
+	 * @return a future completed with the results of the query.
+	 */
+	public CompletableFuture<String[]> queryStringAsync(String query) {
+		return AsyncExecutor.supply(() -> queryString(query));
+	}
+
+	/**
+	 * Runs <code>queryString(query, variables)</code> on the
+	 * <code>AsyncExecutor</code>.
+	 * 
+	 * @param query
+	 *            the XQuery query string to use.
+	 * @param variables
+	 *            the values of the external variables, by name.
+	 * @return a future completed with the results of the query.
+	 */
+	public CompletableFuture<String[]> queryStringAsync(String query, Map<String, ?> variables) {
+		return AsyncExecutor.supply(() -> queryString(query, variables));
+	}
+
+	/**
+	 * Runs <code>query(query)</code> on the <code>AsyncExecutor</code>.
+	 * 
+	 * @param query
+	 *            the XQuery query string to use.
+	 * @return a future completed with the results of the query.
+	 */
+	public CompletableFuture<DBFile[]> queryAsync(String query) {
+		return AsyncExecutor.supply(() -> query(query));
+	}
+
+	/**
+	 * Runs <code>update(updateQuery)</code> on the <code>AsyncExecutor</code>.
+	 * 
+	 * @param updateQuery
+	 *            The XUpdate commands to use.
+	 * @return a future completed with the number of modified nodes.
+	 */
+	public CompletableFuture<Long> updateAsync(String updateQuery) {
+		return AsyncExecutor.supply(() -> update(updateQuery));
+	}
+
+	/**
+	 * Runs <code>store()</code> on the <code>AsyncExecutor</code>.
+	 * 
+	 * @return a future completed when this <code>DBFile</code> is stored.
+	 */
+	public CompletableFuture<Void> storeAsync() {
+		return AsyncExecutor.supply(() -> {
+			store();
+			return null;
+		});
+	}
+
+	public Resource getResource() throws DBMSException {
+		if (!isLoaded() && this.Name != null)
+			load();
 		if (this.Type.equals("BinaryDBFile"))
 			return this.BinaryResource;
 		else
 			return this.XMLResource;
 	}
 
+	private XMLResource xml() throws DBMSException {
+		getResource();
+		return this.XMLResource;
+	}
+
+	private BinaryResource binary() throws DBMSException {
+		getResource();
+		return this.BinaryResource;
+	}
+
+	/**
+	 * Loads the resource of a <code>DBFile</code> constructed from metadata.
+	 */
+	private void load() throws DBMSException {
+		CollectionLease lease = acquire();
+		try {
+			Resource res = lease.getCollection().getResource(this.Name);
+			if (res == null)
+				throw new DBMSException("File " + this.Name + " not found in collection " + this.Path);
+			setResource(res);
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+		finally{
+			lease.release();
+		}
+	}
+
+	/**
+	 * Called after the content of this <code>DBFile</code> was written to the
+	 * database, by <code>store</code>, <code>update</code> and
+	 * <code>DBCollection.storeFile</code>. The size and modification time
+	 * are fetched again on next access; subclasses that keep state derived
+	 * from the content drop it here.
+	 */
+	protected void stored() {
+		this.Described = false;
+	}
+
+	/**
+	 * Fetches the metadata of this <code>DBFile</code>, if not known yet.
+	 */
+	private void describe() throws DBMSException {
+		if (this.Described || this.Path == null || getName() == null)
+			return;
+		CollectionLease lease = acquire();
+		try {
+			DBFile[] files = describe(lease.getCollection(), this.DB, this.Path, getName(), this.User, this.Password);
+			if (files != null && files.length > 0) {
+				this.Size = files[0].Size;
+				this.Created = files[0].Created;
+				this.Modified = files[0].Modified;
+			}
+			this.Described = true;
+		} finally {
+			lease.release();
+		}
+	}
+
+	/**
+	 * Fetches, in one query, the metadata (name, type, size, creation and
+	 * modification time) of the files of a collection and returns them as
+	 * <code>DBFile</code> handles whose content is loaded on first access.
+	 * 
+	 * @param col a handle to the collection.
+	 * @param file the name of the file to describe or <code>null</code> for
+	 *            all the files of the collection.
+	 * @return the handles, or <code>null</code> if the database does not
+	 *         support the metadata query.
+	 * @throws DBMSException with expected error codes.
+	 */
+	static DBFile[] describe(Collection col, String db, String collection, String file,
+			String user, String password) throws DBMSException {
+		String row = "concat($r, '&#9;', $t, '&#9;', xmldb:size($c, $r), '&#9;', "
+				+ "xmldb:created($c, $r), '&#9;', xmldb:last-modified($c, $r))";
+		String query;
+		if (file == null)
+			query = "let $c := " + quote(collection) + " "
+					+ "for $r in xmldb:get-child-resources($c) "
+					+ "let $t := if (util:is-binary-doc(concat($c, '/', $r))) then 'BinaryDBFile' else 'XMLDBFile' "
+					+ "return " + row;
+		else
+			// look the file up directly instead of listing the collection
+			query = "let $c := " + quote(collection) + " "
+					+ "let $r := " + quote(file) + " "
+					+ "let $p := concat($c, '/', $r) "
+					+ "let $t := if (util:binary-doc-available($p)) then 'BinaryDBFile' "
+					+ "else if (doc-available($p)) then 'XMLDBFile' else () "
+					+ "return if (empty($t)) then () else " + row;
+		ResourceSet rs;
+		try {
+			XPathQueryService service = (XPathQueryService) col.getService("XQueryService", "1.0");
+			rs = service.query(query);
+		} catch (XMLDBException XMLDBEx) {
+			String message = String.valueOf(XMLDBEx.getMessage());
+			// the metadata functions are missing (unknown function or module)
+			if (message.contains("XPST0017") || message.contains("XPST0081"))
+				return null;
+			throw new DBMSException(XMLDBEx);
+		}
+		try {
+			DBFile[] ret = new DBFile[(int) rs.getSize()];
+			DatatypeFactory dates = DatatypeFactory.newInstance();
+			ResourceIterator ri = rs.getIterator();
+			int index = 0;
+			while (ri.hasMoreResources()) {
+				String[] f = ((String) ri.nextResource().getContent()).split("\t", -1);
+				ret[index++] = new DBFile(db, collection, f[0], f[1],
+						f[2].length() == 0 ? -1 : Long.parseLong(f[2]),
+						f[3].length() == 0 ? null : dates.newXMLGregorianCalendar(f[3]).toGregorianCalendar().getTime(),
+						f[4].length() == 0 ? null : dates.newXMLGregorianCalendar(f[4]).toGregorianCalendar().getTime(),
+						user, password);
+			}
+			return ret;
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		} catch (Exception Ex) {
+			throw new DBMSException(Ex);
+		}
+	}
+
+	/**
+	 * Returns a <code>String</code> as an XQuery string literal.
+	 */
+	static String quote(String s) {
+		return "'" + s.replace("&", "&amp;").replace("'", "''") + "'";
+	}
+
 	protected void setResource(Resource res) throws DBMSException {
 		try {
 			if (res.getResourceType().equals("XMLResource"))
 				this.XMLResource = (XMLResource) res;
 			else
 				this.BinaryResource = (BinaryResource) res;
+			if (this.Name == null)
+				this.Name = res.getId();
+		} catch (XMLDBException XMLDBEx) {
+			throw new DBMSException(XMLDBEx);
+		}
+	}
+
+	protected void setCollection(Collection col) throws DBMSException {
+		try {
+			this.Path = (col == null) ? null : col.getName();
 		} catch (XMLDBException XMLDBEx) {
 			throw new DBMSException(XMLDBEx);
 		}
 	}
 
-	protected void setCollection(Collection col) {
-		this.Collection = col;
+	/**
+	 * Leases a handle to the owner collection of this <code>DBFile</code>.
+	 * The lease must be released when the operation is over.
+	 */
+	private CollectionLease acquire() throws DBMSException {
+		if (this.Path == null)
+			throw new DBMSException("DBFile has no owner collection.");
+		CollectionLease lease = CollectionPool.getDefault().lease(this.DB, this.Path, this.User, this.Password);
+		if (lease == null)
+			throw new DBMSException("Collection " + this.Path + " not found");
+		if (this.Properties != null) {
+			try {
+				for (Map.Entry<String, String> e : this.Properties.entrySet())
+					lease.setProperty(e.getKey(), e.getValue());
+			} catch (RuntimeException e) {
+				lease.invalidate();
+				throw e;
+			}
+		}
+		return lease;
+	}
+
+	/**
+	 * Sets the collection properties (such as those of
+	 * <code>ExistCollection.setProperty</code>) applied to the handles this
+	 * <code>DBFile</code> uses.
+	 */
+	void setProperties(Map<String, String> properties) {
+		this.Properties = properties;
 	}
 	
 	protected void setType(String type) throws DBMSException {
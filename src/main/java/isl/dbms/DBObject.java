@@ -27,7 +27,6 @@
  */
 package isl.dbms;
 
-import org.xmldb.api.DatabaseManager;
 import org.xmldb.api.base.Database;
 
 /**
@@ -40,34 +39,24 @@ public class DBObject {
 
 	/**
 	 * Register the driver for the connection to the database.
+	 * The driver is registered once per JVM by the <code>DriverRegistry</code>;
+	 * later calls return the registered driver.
 	 * 
 	 * @throws DBMSException
 	 *             with expected error codes.
 	 */
 	protected void registerDriver() throws DBMSException {
-		try {
-			String driver = DBMSConfig.getEXISTDRIVER();
-			Class cl = Class.forName(driver);
-			this.database = (Database) cl.newInstance();
-			DatabaseManager.registerDatabase(this.database);
-		} catch (Exception Ex) {
-			throw new DBMSException(Ex.getMessage());
-		}
+		this.database = DriverRegistry.getDriver();
 	}
 
 	/**
 	 * Deregister the driver for the connection to the database.
-	 * Once a database has been deregistered it can no longer be
-	 * used to handle requests. 
+	 * The driver is shared by all objects, so this does nothing; use
+	 * <code>DriverRegistry.shutdown()</code> to deregister it.
 	 * 
 	 * @throws DBMSException
 	 *             with expected error codes.
 	 */
 	protected void deregisterDriver() throws DBMSException {
-		try {
-			DatabaseManager.deregisterDatabase(this.database);
-		} catch (Exception Ex) {
-			throw new DBMSException(Ex.getMessage());
-		}
 	}
 }
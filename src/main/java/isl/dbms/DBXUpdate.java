@@ -33,6 +33,16 @@ import java.util.regex.PatternSyntaxException;
 
 abstract public class DBXUpdate extends DBObject {
 
+    /**
+     * Starts a batch of XUpdate operations. The operations added to the batch
+     * are sent together, in one call, when it is executed.
+     *
+     * @return a new, empty <code>XUpdateBatch</code>.
+     */
+    public XUpdateBatch batch() {
+        return new XUpdateBatch(this);
+    }
+
     /**
      * Runs an append operation using XUpdate.
      *
@@ -42,11 +52,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xAppend(String selectQuery, String xml) throws DBMSException {
-        String updateQuery = "<?xml version=\"1.0\"?>"
-                + "<xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:append select=\"" + selectQuery + "\">" + xml
-                + "</xupdate:append>" + "</xupdate:modifications>";
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xAppend", batch().append(selectQuery, xml));
     }
 
     /**
@@ -59,13 +65,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xAddAttribute(String selectQuery, String name, String value) throws DBMSException {
-        String updateQuery = "<?xml version=\"1.0\"?>"
-                + "<xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:append select=\"" + selectQuery + "\">"
-                + "<xupdate:attribute name=\"" + name + "\">" + value
-                + "</xupdate:attribute>" + "</xupdate:append>"
-                + "</xupdate:modifications>";
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xAddAttribute", batch().addAttribute(selectQuery, name, value));
     }
 
     /**
@@ -78,14 +78,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xInsertBefore(String selectQuery, String xml) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?><xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:insert-before select=\"" + selectQuery + "\">";
-        String update_middle = xml;
-        String update_end = "</xupdate:insert-before></xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xInsertBefore", batch().insertBefore(selectQuery, xml));
     }
 
     /**
@@ -98,14 +91,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xInsertAfter(String selectQuery, String xml) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:insert-after select=\"" + selectQuery + "\">";
-        String update_middle = xml;
-        String update_end = "</xupdate:insert-after></xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xInsertAfter", batch().insertAfter(selectQuery, xml));
     }
 
     /**
@@ -117,13 +103,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xRemove(String selectQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:remove select=\"" + selectQuery + "\">";
-        String update_end = "</xupdate:remove></xupdate:modifications>";
-        String updateQuery = update_start + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xRemove", batch().remove(selectQuery));
     }
 
     /**
@@ -135,14 +115,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xRename(String selectQuery, String xml) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:rename select=\"" + selectQuery + "\">";
-        String update_middle = xml;
-        String update_end = "</xupdate:rename></xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xRename", batch().rename(selectQuery, xml));
     }
 
     /**
@@ -154,17 +127,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xCopyAfter(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:insert-after select=\""
-                + destinationQuery + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:insert-after>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xCopyAfter", batch().copyAfter(sourceQuery, destinationQuery));
     }
 
     /**
@@ -176,17 +139,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xMoveAfter(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:remove select=\"$copy\"/>"
-                + "<xupdate:insert-after select=\"" + destinationQuery + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:insert-after>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xMoveAfter", batch().moveAfter(sourceQuery, destinationQuery));
     }
 
     /**
@@ -198,18 +151,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xCopyBefore(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:insert-before select=\""
-                + destinationQuery
-                + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:insert-before>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xCopyBefore", batch().copyBefore(sourceQuery, destinationQuery));
     }
 
     /**
@@ -221,19 +163,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xMoveBefore(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:remove select=\"$copy\"/>"
-                + "<xupdate:insert-before select=\""
-                + destinationQuery
-                + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:insert-before>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xMoveBefore", batch().moveBefore(sourceQuery, destinationQuery));
     }
 
     /**
@@ -245,17 +175,7 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xCopyInside(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:append select=\"" + destinationQuery
-                + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:append>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xCopyInside", batch().copyInside(sourceQuery, destinationQuery));
     }
 
     /**
@@ -268,21 +188,12 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xMoveInside(String sourceQuery, String destinationQuery) throws DBMSException {
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:variable name=\"copy\" select=\""
-                + sourceQuery + "\"/>";
-        String update_middle = "<xupdate:remove select=\"$copy\"/>"
-                + "<xupdate:append select=\"" + destinationQuery + "\">"
-                + "<xupdate:value-of select=\"$copy\"/></xupdate:append>";
-        String update_end = "</xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-
-        return this.update(updateQuery);
+        return execute("DBXUpdate.xMoveInside", batch().moveInside(sourceQuery, destinationQuery));
     }
 
     /**
-     * Runs an update operation using XUpdate.
+     * Runs an update operation using XUpdate. An empty value clears the
+     * selected element, or sets the selected attribute to the empty string.
      *
      * @return the number of modified nodes.
      * @param selectQuery XPath that selects what to update.
@@ -290,24 +201,23 @@ abstract public class DBXUpdate extends DBObject {
      * @throws DBMSException with expected error codes.
      */
     public long xUpdate(String selectQuery, String xml) throws DBMSException {
+        return execute("DBXUpdate.xUpdate", batch().update(selectQuery, xml));
+    }
 
-        if (xml.trim().equals("")) { //SPECIAL CASE
-            if (pathIsAttribute(selectQuery)) { //attr mode
-                String attributeName = selectQuery.substring(selectQuery.lastIndexOf("/") + 2);
-                String fatherXpath = selectQuery.substring(0, selectQuery.lastIndexOf("/"));
-                return xAddAttribute(fatherXpath, attributeName, "");
-            } else { //element mode
-                xRemove(selectQuery+"/*");
-                return xRemove(selectQuery+"/text()");
-            }
+    /**
+     * Executes a batch, timing it as <code>operation</code> when
+     * <code>Metrics</code> are enabled.
+     */
+    private long execute(String operation, XUpdateBatch batch) throws DBMSException {
+        long started = Metrics.start();
+        long results = -1, bytes = 0;
+        try {
+            results = batch.execute();
+            bytes = batch.length();
+            return results;
+        } finally {
+            Metrics.stop(operation, started, results, bytes);
         }
-
-        String update_start = "<?xml version=\"1.0\"?> <xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">"
-                + "<xupdate:update select=\"" + selectQuery + "\">";
-        String update_middle = xml;
-        String update_end = "</xupdate:update></xupdate:modifications>";
-        String updateQuery = update_start + update_middle + update_end;
-        return this.update(updateQuery);
     }
 
     /**
@@ -317,7 +227,7 @@ abstract public class DBXUpdate extends DBObject {
      * @param input xpath.
      */
     
-    private boolean pathIsAttribute(String input) {
+    static boolean pathIsAttribute(String input) {
         boolean foundMatch = false;
         try {
             Pattern regex = Pattern.compile("/@[^/]+\\z");
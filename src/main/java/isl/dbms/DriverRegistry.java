@@ -0,0 +1,292 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.Service;
+import org.xmldb.api.base.XMLDBException;
+
+/**
+ * The <code>DriverRegistry</code> registers the eXist XML:DB driver with the
+ * <code>DatabaseManager</code> once per JVM, instead of once per object. <br>
+ * <br> Both eXist modes are supported. A database URI with a host (e.g.
+ * <i>xmldb:exist://localhost:8080/exist/xmlrpc</i>) is accessed remotely. A
+ * database URI without a host (<i>xmldb:exist://</i>) or with the host
+ * <i>embedded-eXist-server</i> starts an embedded instance inside this JVM.
+ * <br> <br> <code>startup</code> may be called when the application starts,
+ * so that the cost of loading the driver (and, for embedded instances, of
+ * starting the database) is paid up front. <code>shutdown</code> releases the
+ * pooled handles and deregisters the driver. The time spent to initialize the
+ * driver and to open the first connection to each database is recorded and
+ * can be obtained through <code>getDriverInitTime</code> and
+ * <code>getInitTime</code>.
+ */
+public class DriverRegistry {
+
+    private static final String EMBEDDED_HOST = "embedded-eXist-server";
+    private static Database driver = null;
+    private static long driverInitTime = -1;
+    private static final Map<String, Long> initTimes = new LinkedHashMap<String, Long>();
+    private static Thread shutdownHook = null;
+
+    private DriverRegistry() {
+    }
+
+    /**
+     * Returns the eXist driver, registering it with the
+     * <code>DatabaseManager</code> if this has not been done yet.
+     *
+     * @return the registered <code>Database</code>.
+     * @throws DBMSException with expected error codes.
+     */
+    public static synchronized Database getDriver() throws DBMSException {
+        if (driver != null) {
+            return driver;
+        }
+        long start = System.nanoTime();
+        try {
+            Class cl = Class.forName(DBMSConfig.getEXISTDRIVER());
+            Database db = (Database) cl.newInstance();
+            DatabaseManager.registerDatabase(db);
+            driver = db;
+        } catch (Exception Ex) {
+            throw new DBMSException(Ex.getMessage());
+        }
+        driverInitTime = (System.nanoTime() - start) / 1000000;
+        return driver;
+    }
+
+    /**
+     * Prepares the driver for the specified database. For an embedded database
+     * the driver is configured to create the database instance on first use.
+     *
+     * @param database the database URI.
+     * @throws DBMSException with expected error codes.
+     */
+    public static synchronized void register(String database) throws DBMSException {
+        Database db = getDriver();
+        if (isEmbedded(database)) {
+            try {
+                db.setProperty("create-database", "true");
+            } catch (XMLDBException XMLDBEx) {
+                throw new DBMSException(XMLDBEx);
+            }
+        }
+    }
+
+    /**
+     * Registers the driver and opens a first connection to the specified
+     * database, so that later requests do not pay for the cold start. For an
+     * embedded database this starts the database instance.
+     *
+     * @param database the database URI.
+     * @param user the username to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @param password the password to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @return the time in milliseconds spent to initialize the database.
+     * @throws DBMSException with expected error codes.
+     */
+    public static long startup(String database, String user, String password) throws DBMSException {
+        long start = System.nanoTime();
+        Collection root = getCollection(database, "/db", user, password);
+        if (root == null) {
+            throw new DBMSException("Database " + database + " could not be started");
+        }
+        try {
+            root.close();
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        }
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /**
+     * Returns a collection of the specified database, registering the driver
+     * first if needed. The time spent on the first connection to each database
+     * is recorded.
+     *
+     * @param database the database URI.
+     * @param collection the name of the collection.
+     * @param user the username to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @param password the password to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     * @return the <code>Collection</code> or <code>null</code> if the
+     * collection does not exist.
+     * @throws DBMSException with expected error codes.
+     */
+    public static Collection getCollection(String database, String collection, String user, String password)
+            throws DBMSException {
+        boolean first;
+        synchronized (DriverRegistry.class) {
+            register(database);
+            first = !initTimes.containsKey(database);
+        }
+        long start = System.nanoTime();
+        try {
+            Collection col = DatabaseManager.getCollection(database + collection, user, password);
+            if (first) {
+                synchronized (DriverRegistry.class) {
+                    if (!initTimes.containsKey(database)) {
+                        initTimes.put(database, (System.nanoTime() - start) / 1000000);
+                    }
+                }
+            }
+            return col;
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        }
+    }
+
+    /**
+     * Shuts down an embedded database instance. The pooled handles are closed
+     * first. Remote databases are not affected.
+     *
+     * @param database the database URI.
+     * @param user the username of a database administrator.
+     * @param password the password of the database administrator.
+     * @throws DBMSException with expected error codes.
+     */
+    public static void shutdown(String database, String user, String password) throws DBMSException {
+        CollectionPool.getDefault().clear();
+        if (!isEmbedded(database)) {
+            return;
+        }
+        try {
+            Collection root = DatabaseManager.getCollection(database + "/db", user, password);
+            if (root != null) {
+                Service manager = root.getService("DatabaseInstanceManager", "1.0");
+                manager.getClass().getMethod("shutdown").invoke(manager);
+            }
+        } catch (XMLDBException XMLDBEx) {
+            throw new DBMSException(XMLDBEx);
+        } catch (Exception Ex) {
+            throw new DBMSException(Ex.getMessage());
+        }
+        synchronized (DriverRegistry.class) {
+            initTimes.remove(database);
+        }
+    }
+
+    /**
+     * Closes the pooled handles and deregisters the driver. The driver is
+     * registered again on the next request.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public static void shutdown() throws DBMSException {
+        CollectionPool.getDefault().clear();
+        synchronized (DriverRegistry.class) {
+            if (driver == null) {
+                return;
+            }
+            try {
+                DatabaseManager.deregisterDatabase(driver);
+            } catch (XMLDBException XMLDBEx) {
+                throw new DBMSException(XMLDBEx);
+            } finally {
+                driver = null;
+                initTimes.clear();
+            }
+        }
+    }
+
+    /**
+     * Installs a JVM shutdown hook that calls <code>shutdown()</code>.
+     * Installing the hook more than once has no effect.
+     */
+    public static synchronized void installShutdownHook() {
+        if (shutdownHook != null) {
+            return;
+        }
+        shutdownHook = new Thread("DMS-DriverRegistry-shutdown") {
+            public void run() {
+                try {
+                    DriverRegistry.shutdown();
+                } catch (DBMSException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Checks whether a database URI refers to an embedded database.
+     *
+     * @param database the database URI.
+     * @return <code>true</code> if the database runs inside this JVM,
+     * <code>false</code> otherwise.
+     */
+    public static boolean isEmbedded(String database) {
+        int i = database.indexOf("://");
+        if (i < 0) {
+            return true;
+        }
+        String rest = database.substring(i + 3);
+        return rest.length() == 0 || rest.startsWith("/") || rest.startsWith(EMBEDDED_HOST);
+    }
+
+    /**
+     * Returns the time spent to load and register the driver.
+     *
+     * @return the time in milliseconds, or -1 if the driver is not registered.
+     */
+    public static synchronized long getDriverInitTime() {
+        return driverInitTime;
+    }
+
+    /**
+     * Returns the time spent on the first connection to a database. For an
+     * embedded database this includes starting the database instance.
+     *
+     * @param database the database URI.
+     * @return the time in milliseconds, or -1 if no connection to the
+     * database has been opened yet.
+     */
+    public static synchronized long getInitTime(String database) {
+        Long t = initTimes.get(database);
+        return t == null ? -1 : t.longValue();
+    }
+
+    /**
+     * Returns the databases connected to so far, with the time in milliseconds
+     * spent on the first connection to each one.
+     *
+     * @return an unmodifiable copy of the initialization times.
+     */
+    public static synchronized Map<String, Long> getInitTimes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, Long>(initTimes));
+    }
+}
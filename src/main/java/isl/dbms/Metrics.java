@@ -0,0 +1,443 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * <code>Metrics</code> times the database operations of the library:
+ * queries, updates, stores and reads of <code>DBCollection</code> and
+ * <code>DBFile</code>, every <code>DBXUpdate</code> operation and the leases
+ * of <code>CollectionPool</code>. For each operation it counts the calls,
+ * the failures, the results returned and the bytes transferred, and keeps
+ * a latency histogram with power-of-two buckets of microseconds. Bytes are
+ * counted for successful operations only: the results of queries, the
+ * content of stores, the XUpdate documents of updates and the stored size
+ * of the files <code>getFile</code> finds; text is counted in characters,
+ * and content set as DOM or SAX is not counted. <br> <br>
+ * Metrics are off by default; while off, an operation costs a single
+ * volatile read. They are read with <code>snapshot()</code> or over JMX,
+ * once <code>registerMBean()</code> has registered them as
+ * <code>isl.dbms:type=Metrics</code>:
+ * <pre>
+ *     Metrics.setEnabled(true);
+ *     Metrics.registerMBean();
+ *     ...
+ *     Metrics.Timer query = Metrics.snapshot().getOperations().get(Metrics.COLLECTION_QUERY);
+ * </pre>
+ */
+public final class Metrics {
+
+    /** The JMX name of the metrics MBean. */
+    public static final String OBJECT_NAME = "isl.dbms:type=Metrics";
+    public static final String COLLECTION_QUERY = "DBCollection.query";
+    public static final String COLLECTION_UPDATE = "DBCollection.update";
+    public static final String COLLECTION_STORE = "DBCollection.storeFile";
+    public static final String COLLECTION_GET = "DBCollection.getFile";
+    public static final String FILE_QUERY = "DBFile.query";
+    public static final String FILE_QUERY_STRING = "DBFile.queryString";
+    public static final String FILE_UPDATE = "DBFile.update";
+    public static final String FILE_STORE = "DBFile.store";
+    public static final String LEASE = "CollectionPool.lease";
+    private static final int BUCKETS = 40;
+    private static volatile boolean enabled = false;
+    private static volatile long since = System.currentTimeMillis();
+    private static final ConcurrentHashMap<String, Recorder> RECORDERS = new ConcurrentHashMap<String, Recorder>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return <code>true</code> if operations are being timed.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns the timing of operations on or off. The collected metrics are
+     * kept; see <code>reset</code>.
+     *
+     * @param enabled <code>true</code> to time operations.
+     */
+    public static void setEnabled(boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    /**
+     * Discards the collected metrics.
+     */
+    public static void reset() {
+        RECORDERS.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts timing an operation.
+     *
+     * @return the start time to pass to <code>stop</code>, or 0 if metrics
+     * are off.
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records an operation started with <code>start</code>.
+     *
+     * @param operation the name of the operation.
+     * @param started the value returned by <code>start</code>.
+     * @param results the number of results, or a negative number if the
+     * operation failed.
+     * @param bytes the number of bytes (or characters) transferred.
+     */
+    public static void stop(String operation, long started, long results, long bytes) {
+        if (started == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - started;
+        Recorder r = RECORDERS.get(operation);
+        if (r == null) {
+            r = RECORDERS.computeIfAbsent(operation, k -> new Recorder());
+        }
+        r.record(nanos, results, bytes);
+    }
+
+    /**
+     * Takes a snapshot of the collected metrics and of the statistics of
+     * the default <code>CollectionPool</code>.
+     *
+     * @return the snapshot.
+     */
+    public static Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        s.since = since;
+        s.taken = System.currentTimeMillis();
+        s.enabled = enabled;
+        for (Map.Entry<String, Recorder> e : RECORDERS.entrySet()) {
+            s.operations.put(e.getKey(), e.getValue().snapshot());
+        }
+        s.pool = CollectionPool.getDefault().getStatistics();
+        return s;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server as
+     * <code>isl.dbms:type=Metrics</code>. Does nothing if they are already
+     * registered.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public static synchronized void registerMBean() throws DBMSException {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Bean(), name);
+            }
+        } catch (JMException JMEx) {
+            throw new DBMSException(JMEx);
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public static synchronized void unregisterMBean() throws DBMSException {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException JMEx) {
+            throw new DBMSException(JMEx);
+        }
+    }
+
+    /**
+     * The management interface of <code>Metrics</code>.
+     */
+    public interface MetricsMXBean {
+
+        boolean isEnabled();
+
+        void setEnabled(boolean enabled);
+
+        void reset();
+
+        Snapshot getSnapshot();
+    }
+
+    private static class Bean implements MetricsMXBean {
+
+        public boolean isEnabled() {
+            return Metrics.isEnabled();
+        }
+
+        public void setEnabled(boolean enabled) {
+            Metrics.setEnabled(enabled);
+        }
+
+        public void reset() {
+            Metrics.reset();
+        }
+
+        public Snapshot getSnapshot() {
+            return Metrics.snapshot();
+        }
+    }
+
+    /**
+     * The counters of one operation.
+     */
+    private static class Recorder {
+
+        final LongAdder count = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        final LongAdder nanos = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        final LongAdder results = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos, long results, long bytes) {
+            this.count.increment();
+            this.nanos.add(nanos);
+            this.max.accumulate(nanos);
+            if (results < 0) {
+                this.failures.increment();
+            } else {
+                this.results.add(results);
+            }
+            this.bytes.add(bytes);
+            this.histogram.incrementAndGet(bucket(nanos));
+        }
+
+        Timer snapshot() {
+            Timer t = new Timer();
+            t.count = this.count.sum();
+            t.failures = this.failures.sum();
+            t.nanos = this.nanos.sum();
+            t.max = this.max.get();
+            t.results = this.results.sum();
+            t.bytes = this.bytes.sum();
+            t.histogram = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                t.histogram[i] = this.histogram.get(i);
+            }
+            return t;
+        }
+    }
+
+    /**
+     * @return the histogram bucket of a latency: bucket <code>i</code>
+     * holds latencies below 2<sup>i</sup> microseconds.
+     */
+    static int bucket(long nanos) {
+        long micros = nanos / 1000;
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+    }
+
+    /**
+     * A snapshot of the metrics of one operation.
+     */
+    public static class Timer {
+
+        long count, failures, nanos, max, results, bytes;
+        long[] histogram;
+
+        /**
+         * @return the number of calls.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the number of calls that failed.
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        /**
+         * @return the time spent in all calls, in milliseconds.
+         */
+        public long getTotalMillis() {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        /**
+         * @return the mean latency, in microseconds.
+         */
+        public double getMeanMicros() {
+            return count == 0 ? 0 : nanos / 1000.0 / count;
+        }
+
+        /**
+         * @return the highest latency, in microseconds.
+         */
+        public long getMaxMicros() {
+            return TimeUnit.NANOSECONDS.toMicros(max);
+        }
+
+        /**
+         * @return the median latency, in microseconds, as the upper bound of
+         * its histogram bucket.
+         */
+        public long getP50Micros() {
+            return percentile(0.50);
+        }
+
+        /**
+         * @return the 95th percentile latency, in microseconds, as the upper
+         * bound of its histogram bucket.
+         */
+        public long getP95Micros() {
+            return percentile(0.95);
+        }
+
+        /**
+         * @return the 99th percentile latency, in microseconds, as the upper
+         * bound of its histogram bucket.
+         */
+        public long getP99Micros() {
+            return percentile(0.99);
+        }
+
+        /**
+         * @return the number of results of the successful calls.
+         */
+        public long getResults() {
+            return results;
+        }
+
+        /**
+         * @return the bytes (or characters) transferred.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the latency histogram: element <code>i</code> counts the
+         * calls that took less than 2<sup>i</sup> microseconds (and at least
+         * 2<sup>i-1</sup>).
+         */
+        public long[] getHistogram() {
+            return histogram.clone();
+        }
+
+        private long percentile(double p) {
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < histogram.length; i++) {
+                seen += histogram[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(1L << i, getMaxMicros());
+                }
+            }
+            return getMaxMicros();
+        }
+
+        public String toString() {
+            return "count=" + count + ", failures=" + failures + ", mean us=" + (long) getMeanMicros()
+                    + ", p50 us=" + getP50Micros() + ", p99 us=" + getP99Micros() + ", max us="
+                    + getMaxMicros() + ", results=" + results + ", bytes=" + bytes;
+        }
+    }
+
+    /**
+     * A snapshot of all metrics.
+     */
+    public static class Snapshot {
+
+        long since, taken;
+        boolean enabled;
+        final Map<String, Timer> operations = new TreeMap<String, Timer>();
+        CollectionPool.Statistics pool;
+
+        /**
+         * @return the time the metrics were last reset, in milliseconds since
+         * the epoch.
+         */
+        public long getSince() {
+            return since;
+        }
+
+        /**
+         * @return the time of the snapshot, in milliseconds since the epoch.
+         */
+        public long getTaken() {
+            return taken;
+        }
+
+        /**
+         * @return <code>true</code> if operations were being timed.
+         */
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * @return the metrics of each operation that has been called, by
+         * name.
+         */
+        public Map<String, Timer> getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return the statistics of the default <code>CollectionPool</code>.
+         */
+        public CollectionPool.Statistics getPool() {
+            return pool;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder("Metrics[");
+            for (Map.Entry<String, Timer> e : operations.entrySet()) {
+                sb.append("\n  ").append(e.getKey()).append(": ").append(e.getValue());
+            }
+            return sb.append("\n]").toString();
+        }
+    }
+}
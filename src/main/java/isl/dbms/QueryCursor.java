@@ -0,0 +1,165 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.xmldb.api.base.Resource;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+
+/**
+ * A <code>QueryCursor</code> iterates over the results of a query one at a
+ * time, as <code>String</code>s. The results stay on the server and each one
+ * is fetched only when it is reached, so memory use does not depend on the
+ * size of the result. A window of the results can be selected with
+ * <code>start</code> and <code>limit</code>. <br> <br> The cursor holds a
+ * collection handle and a server-side result set until it is closed. It
+ * closes itself once the last result has been read; a cursor that is not read
+ * to the end must be closed explicitly, preferably with try-with-resources.
+ */
+public class QueryCursor implements Iterator<String>, Closeable {
+
+    private final CollectionLease lease;
+    private ResourceSet results;
+    private final long start;
+    private final long end;
+    private long position;
+    private boolean closed = false;
+
+    /**
+     * @param lease the lease on the handle the query ran against. It is
+     * released when the cursor is closed.
+     * @param results the results of the query.
+     * @param start the index of the first result to return.
+     * @param limit the maximum number of results to return, or a negative
+     * number for all of them.
+     */
+    QueryCursor(CollectionLease lease, ResourceSet results, long start, long limit) throws XMLDBException {
+        this.lease = lease;
+        this.results = results;
+        long size = results.getSize();
+        this.start = Math.max(0, Math.min(start, size));
+        this.position = this.start;
+        this.end = (limit < 0) ? size : Math.min(size, this.position + limit);
+        if (this.position >= this.end) {
+            close();
+        }
+    }
+
+    /**
+     * Returns the number of results this cursor will return in total,
+     * including those already read.
+     *
+     * @return the size of the selected window of results.
+     */
+    public long getSize() {
+        return this.end - this.start;
+    }
+
+    /**
+     * Returns the index of the next result in the full result of the query.
+     *
+     * @return the position of the cursor.
+     */
+    public long getPosition() {
+        return this.position;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !this.closed && this.position < this.end;
+    }
+
+    /**
+     * Fetches the next result from the server.
+     *
+     * @return the next result as a <code>String</code>.
+     * @throws DBMSException with expected error codes.
+     */
+    @Override
+    public String next() throws DBMSException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        try {
+            Resource resource = this.results.getResource(this.position++);
+            String content = String.valueOf(resource.getContent());
+            if (this.position >= this.end) {
+                close();
+            }
+            return content;
+        } catch (XMLDBException XMLDBEx) {
+            close();
+            throw new DBMSException(XMLDBEx);
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Query results are read only");
+    }
+
+    /**
+     * Returns a sequential <code>Stream</code> over the remaining results.
+     * Closing the stream closes this cursor.
+     *
+     * @return a <code>Stream</code> of the remaining results.
+     */
+    public Stream<String> stream() {
+        long remaining = Math.max(0, this.end - this.position);
+        Spliterator<String> spliterator = Spliterators.spliterator(this, remaining,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(this::close);
+    }
+
+    /**
+     * Releases the server-side result set and the collection handle. Calling
+     * it more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        try {
+            this.results.clear();
+        } catch (XMLDBException XMLDBEx) {
+            // the handle is returned to the pool below either way
+        } finally {
+            this.results = null;
+            this.lease.release();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal writer of (ustar) TAR archives, for
+ * <code>CollectionExport</code>: every entry is a regular file whose size is
+ * known before its content is written. Names longer than the ustar fields
+ * allow are written with a GNU long name entry.
+ */
+final class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK = 512;
+    private long remaining;
+    private long written;
+
+    TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Starts an entry; exactly <code>size</code> bytes must be written before
+     * the next entry.
+     */
+    void putEntry(String name, long size, long modified) throws IOException {
+        closeEntry();
+        if (size >= 077777777777L + 1) {
+            throw new IOException("TAR entry too large: " + name);
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 100) {
+            // GNU long name: an entry named ././@LongLink holding the name
+            writeHeader("././@LongLink".getBytes(StandardCharsets.US_ASCII), bytes.length + 1, 0, (byte) 'L');
+            this.out.write(bytes);
+            this.out.write(0);
+            pad(bytes.length + 1);
+            bytes = Arrays.copyOf(bytes, 100);
+        }
+        writeHeader(bytes, size, modified / 1000, (byte) '0');
+        this.remaining = size;
+        this.written = 0;
+    }
+
+    void closeEntry() throws IOException {
+        if (this.remaining != this.written) {
+            throw new IOException("TAR entry has " + this.written + " bytes, expected " + this.remaining);
+        }
+        pad(this.written);
+        this.remaining = 0;
+        this.written = 0;
+    }
+
+    public void write(int b) throws IOException {
+        this.out.write(b);
+        this.written++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.out.write(b, off, len);
+        this.written += len;
+    }
+
+    /**
+     * Ends the archive with two empty blocks; the underlying stream is not
+     * closed.
+     */
+    void finish() throws IOException {
+        closeEntry();
+        this.out.write(new byte[2 * BLOCK]);
+        this.out.flush();
+    }
+
+    public void close() throws IOException {
+        finish();
+        super.close();
+    }
+
+    private void pad(long length) throws IOException {
+        int rest = (int) (length % BLOCK);
+        if (rest != 0) {
+            this.out.write(new byte[BLOCK - rest]);
+        }
+    }
+
+    private void writeHeader(byte[] name, long size, long mtime, byte type) throws IOException {
+        byte[] header = new byte[BLOCK];
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        octal(header, 100, 8, 0644);
+        octal(header, 108, 8, 0);
+        octal(header, 116, 8, 0);
+        octal(header, 124, 12, size);
+        octal(header, 136, 12, mtime);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        // the checksum is computed with its own field set to spaces
+        for (int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long sum = 0;
+        for (byte b : header) {
+            sum += b & 0xff;
+        }
+        octal(header, 148, 7, sum);
+        this.out.write(header);
+    }
+
+    private static void octal(byte[] header, int offset, int length, long value) {
+        String digits = Long.toOctalString(value);
+        int pad = length - 1 - digits.length();
+        for (int i = 0; i < length - 1; i++) {
+            header[offset + i] = (byte) (i < pad ? '0' : digits.charAt(i - pad));
+        }
+        header[offset + length - 1] = 0;
+    }
+}
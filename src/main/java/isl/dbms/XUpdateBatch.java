@@ -0,0 +1,315 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.util.ArrayList;
+
+/**
+ * An <code>XUpdateBatch</code> collects XUpdate operations against a
+ * <code>DBFile</code> or <code>DBCollection</code> and sends them as a single
+ * <code>xupdate:modifications</code> document. The operations run in the
+ * order they were added, in one call and one server-side transaction. <br>
+ * <br> Each method adds one operation and returns the batch, so that calls
+ * can be chained:
+ *
+ * <pre>
+ * long modified = file.batch()
+ *         .update("/record/title", title)
+ *         .remove("/record/draft")
+ *         .append("/record/history", entry)
+ *         .execute();
+ * </pre>
+ *
+ * The batch can be executed more than once.
+ */
+public class XUpdateBatch {
+
+    private static final String MODIFICATIONS_START = "<?xml version=\"1.0\"?>"
+            + "<xupdate:modifications version=\"1.0\" xmlns:xupdate=\"http://www.xmldb.org/xupdate\">";
+    private static final String MODIFICATIONS_END = "</xupdate:modifications>";
+
+    private final DBXUpdate target;
+    private final ArrayList<String> operations = new ArrayList<String>();
+    private int variables = 0;
+
+    /**
+     * @param target the file or collection the operations apply to.
+     */
+    protected XUpdateBatch(DBXUpdate target) {
+        this.target = target;
+    }
+
+    /**
+     * Adds an append operation.
+     *
+     * @param selectQuery XPath that selects where to append.
+     * @param xml What to append as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch append(String selectQuery, String xml) {
+        return add("<xupdate:append select=\"" + selectQuery + "\">" + xml
+                + "</xupdate:append>");
+    }
+
+    /**
+     * Adds an operation that adds an attribute and its value.
+     *
+     * @param selectQuery XPath that selects where to append.
+     * @param name Name of the attribute as <CODE>String</CODE>.
+     * @param value Value of the attribute as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch addAttribute(String selectQuery, String name, String value) {
+        return add("<xupdate:append select=\"" + selectQuery + "\">"
+                + "<xupdate:attribute name=\"" + name + "\">" + value
+                + "</xupdate:attribute>" + "</xupdate:append>");
+    }
+
+    /**
+     * Adds an insert-before operation.
+     *
+     * @param selectQuery XPath that selects the node before which the
+     * insertion will happen.
+     * @param xml What to insert as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch insertBefore(String selectQuery, String xml) {
+        return add("<xupdate:insert-before select=\"" + selectQuery + "\">" + xml
+                + "</xupdate:insert-before>");
+    }
+
+    /**
+     * Adds an insert-after operation.
+     *
+     * @param selectQuery XPath that selects the node after which the insertion
+     * will happen.
+     * @param xml What to insert as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch insertAfter(String selectQuery, String xml) {
+        return add("<xupdate:insert-after select=\"" + selectQuery + "\">" + xml
+                + "</xupdate:insert-after>");
+    }
+
+    /**
+     * Adds a remove operation.
+     *
+     * @param selectQuery XPath that selects what to remove.
+     * @return this batch.
+     */
+    public XUpdateBatch remove(String selectQuery) {
+        return add("<xupdate:remove select=\"" + selectQuery + "\"></xupdate:remove>");
+    }
+
+    /**
+     * Adds a rename operation.
+     *
+     * @param selectQuery XPath that selects what to rename.
+     * @param xml New name as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch rename(String selectQuery, String xml) {
+        return add("<xupdate:rename select=\"" + selectQuery + "\">" + xml
+                + "</xupdate:rename>");
+    }
+
+    /**
+     * Adds an update operation. An empty value clears the selected element,
+     * or sets the selected attribute to the empty string.
+     *
+     * @param selectQuery XPath that selects what to update.
+     * @param xml What to update as <CODE>String</CODE>.
+     * @return this batch.
+     */
+    public XUpdateBatch update(String selectQuery, String xml) {
+        if (xml.trim().equals("")) { //SPECIAL CASE
+            if (DBXUpdate.pathIsAttribute(selectQuery)) { //attr mode
+                String attributeName = selectQuery.substring(selectQuery.lastIndexOf("/") + 2);
+                String fatherXpath = selectQuery.substring(0, selectQuery.lastIndexOf("/"));
+                return addAttribute(fatherXpath, attributeName, "");
+            } else { //element mode
+                return add("<xupdate:remove select=\"" + selectQuery + "/*\"></xupdate:remove>"
+                        + "<xupdate:remove select=\"" + selectQuery + "/text()\"></xupdate:remove>");
+            }
+        }
+        return add("<xupdate:update select=\"" + selectQuery + "\">" + xml
+                + "</xupdate:update>");
+    }
+
+    /**
+     * Adds a copy operation.
+     *
+     * @param sourceQuery XPath that selects what to copy.
+     * @param destinationQuery XPath indicating after where to copy.
+     * @return this batch.
+     */
+    public XUpdateBatch copyAfter(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "insert-after", false);
+    }
+
+    /**
+     * Adds a move operation.
+     *
+     * @param sourceQuery XPath that selects what to move.
+     * @param destinationQuery XPath indicating after where to move.
+     * @return this batch.
+     */
+    public XUpdateBatch moveAfter(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "insert-after", true);
+    }
+
+    /**
+     * Adds a copy operation.
+     *
+     * @param sourceQuery XPath that selects what to copy.
+     * @param destinationQuery XPath indicating before where to copy.
+     * @return this batch.
+     */
+    public XUpdateBatch copyBefore(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "insert-before", false);
+    }
+
+    /**
+     * Adds a move operation.
+     *
+     * @param sourceQuery XPath that selects what to move.
+     * @param destinationQuery XPath indicating before where to move.
+     * @return this batch.
+     */
+    public XUpdateBatch moveBefore(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "insert-before", true);
+    }
+
+    /**
+     * Adds a copy operation.
+     *
+     * @param sourceQuery XPath that selects what to copy.
+     * @param destinationQuery XPath indicating inside where to copy.
+     * @return this batch.
+     */
+    public XUpdateBatch copyInside(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "append", false);
+    }
+
+    /**
+     * Adds a move operation. The 'sourceQuery' is moved inside the
+     * 'destinationQuery' and is appended as last child of it.
+     *
+     * @param sourceQuery XPath that selects what to move.
+     * @param destinationQuery XPath indicating inside where to move.
+     * @return this batch.
+     */
+    public XUpdateBatch moveInside(String sourceQuery, String destinationQuery) {
+        return transfer(sourceQuery, destinationQuery, "append", true);
+    }
+
+    /**
+     * Returns the number of operations in this batch.
+     *
+     * @return the number of operations.
+     */
+    public int size() {
+        return this.operations.size();
+    }
+
+    /**
+     * Runs all operations of this batch in one call. An empty batch does not
+     * contact the database.
+     *
+     * @return the total number of modified nodes.
+     * @throws DBMSException with expected error codes.
+     */
+    public long execute() throws DBMSException {
+        if (this.operations.isEmpty()) {
+            return 0;
+        }
+        return this.target.update(toString());
+    }
+
+    /**
+     * Runs the operations of this batch one call each, and reports how many
+     * nodes every operation modified. eXist only reports a total for a
+     * modifications document, so this costs one round trip per operation
+     * and the operations do not run in a single transaction; use
+     * <code>execute()</code> when the individual counts are not needed.
+     *
+     * @return the number of modified nodes for each operation, in the order
+     * the operations were added.
+     * @throws DBMSException with expected error codes.
+     */
+    public long[] executeEach() throws DBMSException {
+        long[] counts = new long[this.operations.size()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = this.target.update(MODIFICATIONS_START + this.operations.get(i) + MODIFICATIONS_END);
+        }
+        return counts;
+    }
+
+    /**
+     * @return the length of the <code>xupdate:modifications</code> document
+     * built so far, without building it.
+     */
+    long length() {
+        long length = MODIFICATIONS_START.length() + MODIFICATIONS_END.length();
+        for (String operation : this.operations) {
+            length += operation.length();
+        }
+        return length;
+    }
+
+    /**
+     * Returns the <code>xupdate:modifications</code> document built so far.
+     *
+     * @return the XUpdate document as <code>String</code>.
+     */
+    @Override
+    public String toString() {
+        StringBuilder updateQuery = new StringBuilder(MODIFICATIONS_START);
+        for (String operation : this.operations) {
+            updateQuery.append(operation);
+        }
+        return updateQuery.append(MODIFICATIONS_END).toString();
+    }
+
+    private XUpdateBatch add(String operation) {
+        this.operations.add(operation);
+        return this;
+    }
+
+    /**
+     * Copies or moves nodes using an XUpdate variable. Each operation gets its
+     * own variable, so that several transfers can share a batch.
+     */
+    private XUpdateBatch transfer(String sourceQuery, String destinationQuery, String instruction, boolean move) {
+        String variable = "copy" + (this.variables++ == 0 ? "" : String.valueOf(this.variables));
+        return add("<xupdate:variable name=\"" + variable + "\" select=\"" + sourceQuery + "\"/>"
+                + (move ? "<xupdate:remove select=\"$" + variable + "\"/>" : "")
+                + "<xupdate:" + instruction + " select=\"" + destinationQuery + "\">"
+                + "<xupdate:value-of select=\"$" + variable + "\"/></xupdate:" + instruction + ">");
+    }
+}
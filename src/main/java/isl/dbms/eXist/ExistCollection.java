@@ -27,12 +27,27 @@
  */
 package isl.dbms.eXist;
 
+import isl.dbms.CollectionLease;
 import isl.dbms.DBCollection;
 import isl.dbms.DBFile;
 import isl.dbms.DBMSException;
+import isl.dbms.DriverRegistry;
 import java.io.File;
 import java.io.IOException;
 import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.xml.parsers.ParserConfigurationException;
@@ -77,8 +92,13 @@ import org.xmldb.api.base.XMLDBException;
  * DBFile object already stored in the collection.<br/>
  * <b>setDefaultPermissions(int p)</b> configures the collection to
  * automatically set permissions 'p' to all new files stored in the collection.
- * To accomplish this, it overrides methods <b>storeFile</b> and
- * <b>storeFileAs</b> of DBCollection.
+ * To accomplish this, it overrides method <b>storeFile</b> of DBCollection,
+ * which <b>storeFileAs</b> also uses. With
+ * <b>setDefaultPermissions(int p, int batchSize)</b> the permissions are set
+ * on batches of stored files with one query each (call
+ * <b>flushPermissions()</b> at the end of a load), and
+ * <b>setPermissions(int p, int threads)</b> sets them on every file of a
+ * collection tree, one query per collection, several collections at once.
  * <br/><br/>
  * The simplest, set-and-forget usage is:<br/><pre>
  * 		DBCollection collection = new ExistCollection(existPath, dbPath, username, password);
@@ -87,9 +107,18 @@ import org.xmldb.api.base.XMLDBException;
  */
 public class ExistCollection extends DBCollection {
 
-    private UserManagementService manager = null;
+    private static final String CHMOD_FILES = "declare variable $collection external;\n"
+            + "declare variable $names external;\n"
+            + "declare variable $mode external;\n"
+            + "for $name in $names return sm:chmod(xs:anyURI(concat($collection, '/', $name)), $mode)";
+    private static final String CHMOD_COLLECTION = "declare variable $collection external;\n"
+            + "declare variable $mode external;\n"
+            + "let $names := xmldb:get-child-resources($collection)\n"
+            + "return (for $name in $names return sm:chmod(xs:anyURI(concat($collection, '/', $name)), $mode), count($names))";
     private boolean defaultSet = false;
     private int defaultPermissions = -1;
+    private int permissionBatch = 1;
+    private final List<String> pendingPermissions = new ArrayList<String>();
 
     protected ExistCollection(String database, Collection col) throws DBMSException {
         super(database, col);
@@ -133,17 +162,13 @@ public class ExistCollection extends DBCollection {
      */
     public void setProperty(String property, String flag)
             throws DBMSException {
-        try {
-            //eXist dependency
-            if (property.equals("EXPAND_XINCLUDES")) {
-                this.getCollection().setProperty(org.exist.storage.serializers.EXistOutputKeys.EXPAND_XINCLUDES, flag);
-            } else if (property.equals("INDENT_SPACES")) {
-                this.getCollection().setProperty(org.exist.storage.serializers.EXistOutputKeys.INDENT_SPACES, flag);
-            } else if (property.equals("PROCESS_XSL_PI")) {
-                this.getCollection().setProperty(org.exist.storage.serializers.EXistOutputKeys.PROCESS_XSL_PI, flag);
-            }
-        } catch (XMLDBException XMLDBEx) {
-            throw new DBMSException(XMLDBEx);
+        //eXist dependency
+        if (property.equals("EXPAND_XINCLUDES")) {
+            this.setCollectionProperty(org.exist.storage.serializers.EXistOutputKeys.EXPAND_XINCLUDES, flag);
+        } else if (property.equals("INDENT_SPACES")) {
+            this.setCollectionProperty(org.exist.storage.serializers.EXistOutputKeys.INDENT_SPACES, flag);
+        } else if (property.equals("PROCESS_XSL_PI")) {
+            this.setCollectionProperty(org.exist.storage.serializers.EXistOutputKeys.PROCESS_XSL_PI, flag);
         }
     }
 
@@ -158,7 +183,12 @@ public class ExistCollection extends DBCollection {
      */
     public void setPermission(DBFile f, int p)
             throws XMLDBException {
-        manager.chmod(f.getResource(), p);
+        CollectionLease lease = this.acquire();
+        try {
+            getManager(lease.getCollection()).chmod(f.getResource(), p);
+        } finally {
+            lease.release();
+        }
     }
 
     /**
@@ -170,48 +200,231 @@ public class ExistCollection extends DBCollection {
      *
      */
     public void setDefaultPermissions(int p) {
-        this.defaultSet = true;
-        this.defaultPermissions = p;
-        System.out.println("EXISTCOLLECTION default set to " + this.defaultPermissions);
+        setDefaultPermissions(p, 1);
     }
 
     /**
-     * Functions as storeFileAs in DBCollection, but also sets the permissions
-     * specified through setDefaultPermissions, if any.
+     * Sets the default permissions for files created through this
+     * ExistCollection instance, applying them in batches. The names of the
+     * stored files are queued and, every <code>batchSize</code> files, their
+     * permissions are set with a single query instead of one request per
+     * file. Call <code>flushPermissions</code> at the end of a load for the
+     * files still queued; <code>BulkIngest</code> does so at the end of an
+     * ingest, and child collections created or returned by this collection
+     * get the same default permissions.
+     *
+     * @param p The new permissions. Must be a decimal integer.
+     * @param batchSize the number of files whose permissions are set at once;
+     * 1 sets them right after each store.
      *
      */
-    public DBFile storeFileAs(DBFile file, String fileName)
-            throws DBMSException {
-        DBFile f = super.storeFileAs(file, fileName);
-        if (defaultSet) {
-            try {
-                this.setPermission(f, this.defaultPermissions);
-                System.out.println("EXISTCOLLECTION 1\n\n");
-            } catch (XMLDBException ex) {
-                System.out.println("XMLDBException in ExistCollection:storeFileAs. Re-thrown...");
-                throw new DBMSException(ex.getMessage());
+    public void setDefaultPermissions(int p, int batchSize) {
+        synchronized (this.pendingPermissions) {
+            this.defaultSet = true;
+            this.defaultPermissions = p;
+            this.permissionBatch = Math.max(batchSize, 1);
+        }
+    }
+
+    /**
+     * Sets the default permissions on the files stored since the last batch.
+     * Does nothing unless <code>setDefaultPermissions</code> was called with a
+     * batch size. If the query fails, the files are queued again, so a later
+     * flush retries them.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public void flushPermissions() throws DBMSException {
+        String[] names;
+        int p;
+        synchronized (this.pendingPermissions) {
+            if (this.pendingPermissions.isEmpty()) {
+                return;
+            }
+            names = this.pendingPermissions.toArray(new String[this.pendingPermissions.size()]);
+            p = this.defaultPermissions;
+            this.pendingPermissions.clear();
+        }
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("collection", this.getName());
+        variables.put("names", names);
+        variables.put("mode", mode(p));
+        try {
+            this.query(CHMOD_FILES, variables);
+        } catch (RuntimeException ex) {
+            synchronized (this.pendingPermissions) {
+                this.pendingPermissions.addAll(0, Arrays.asList(names));
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Sets the default permissions on the files still queued, as
+     * <code>flushPermissions</code> does.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public void flush() throws DBMSException {
+        flushPermissions();
+    }
+
+    /**
+     * Returns the child collection as an <code>ExistCollection</code> with
+     * the default permissions of this one, so that files stored below this
+     * collection get them too.
+     */
+    protected DBCollection child(String path) throws DBMSException {
+        ExistCollection child = new ExistCollection(this.getDatabase(), path, this.getUser(), this.getPassword());
+        synchronized (this.pendingPermissions) {
+            if (this.defaultSet) {
+                child.setDefaultPermissions(this.defaultPermissions, this.permissionBatch);
+            }
+        }
+        return child;
+    }
+
+    /**
+     * Sets the permissions on all files of this collection and of its child
+     * collections, at any depth. Each collection is changed with a single
+     * query, and <code>threads</code> collections are changed at once. This
+     * is the cheapest way to give permissions to the files of a bulk load.
+     *
+     * @param p The new permissions. Must be a decimal integer.
+     * @param threads the number of collections changed at once.
+     * @return the number of files changed.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public long setPermissions(int p, int threads) throws DBMSException {
+        String mode = mode(p);
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(threads, 1), r -> {
+            Thread t = new Thread(r, "DMS-chmod-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        CompletionService<DBCollection> done = new ExecutorCompletionService<DBCollection>(workers);
+        AtomicLong files = new AtomicLong();
+        try {
+            done.submit(() -> {
+                files.addAndGet(setPermissions(this, mode));
+                return this;
+            });
+            int outstanding = 1;
+            while (outstanding > 0) {
+                DBCollection collection = done.take().get();
+                outstanding--;
+                for (String name : collection.listChildCollections()) {
+                    DBCollection child = collection.getChildCollection(name);
+                    done.submit(() -> {
+                        files.addAndGet(setPermissions(child, mode));
+                        return child;
+                    });
+                    outstanding++;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DBMSException("setPermissions interrupted");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
+            throw new DBMSException(cause.getMessage());
+        } finally {
+            workers.shutdownNow();
         }
-        return f;
+        return files.get();
     }
 
     /**
      * Functions as storeFile in DBCollection, but also sets the permissions
-     * specified through setDefaultPermissions, if any.
+     * specified through setDefaultPermissions, if any. storeFileAs of
+     * DBCollection stores through this method too.
      *
      */
     public void storeFile(DBFile file)
             throws DBMSException {
         super.storeFile(file);
-        if (defaultSet) {
-            try {
-                this.setPermission(file, this.defaultPermissions);
-                System.out.println("EXISTCOLLECTION 2\n\n");
-            } catch (XMLDBException ex) {
-                System.out.println("XMLDBException in ExistCollection:storeFileAs. Re-thrown...");
-                throw new DBMSException(ex.getMessage());
+        if (!this.defaultSet) {
+            return;
+        }
+        if (this.permissionBatch > 1) {
+            queuePermissions(file.getName());
+            return;
+        }
+        try {
+            this.setPermission(file, this.defaultPermissions);
+        } catch (XMLDBException ex) {
+            throw new DBMSException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Functions as storeFile in DBCollection, but also sets the permissions
+     * specified through setDefaultPermissions, if any.
+     *
+     */
+    public void storeFile(String name, Path content, boolean binary)
+            throws DBMSException {
+        super.storeFile(name, content, binary);
+        if (this.defaultSet) {
+            queuePermissions(name);
+        }
+    }
+
+    /**
+     * Sets the permissions on the files of one collection.
+     *
+     * @return the number of files changed.
+     */
+    private static long setPermissions(DBCollection collection, String mode) throws DBMSException {
+        Map<String, Object> variables = new HashMap<String, Object>();
+        variables.put("collection", collection.getName());
+        variables.put("mode", mode);
+        return Long.parseLong(collection.query(CHMOD_COLLECTION, variables)[0]);
+    }
+
+    /**
+     * Queues a stored file for the default permissions and sets them on the
+     * queue once it holds a batch.
+     */
+    private void queuePermissions(String name) throws DBMSException {
+        synchronized (this.pendingPermissions) {
+            this.pendingPermissions.add(name);
+            if (this.pendingPermissions.size() < this.permissionBatch) {
+                return;
             }
         }
+        flushPermissions();
+    }
+
+    /**
+     * @return the symbolic form (<code>rwsr-x--T</code>) of decimal
+     * permissions, with the setuid, setgid and sticky bits (04000, 02000 and
+     * 01000) in the execute positions, as chmod(resource, int) applies them.
+     */
+    private static String mode(int p) {
+        StringBuilder mode = new StringBuilder(9);
+        for (int bit = 8; bit >= 0; bit--) {
+            mode.append((p & (1 << bit)) == 0 ? '-' : "rwx".charAt((8 - bit) % 3));
+        }
+        special(mode, 2, (p & 04000) != 0, 's');
+        special(mode, 5, (p & 02000) != 0, 's');
+        special(mode, 8, (p & 01000) != 0, 't');
+        return mode.toString();
+    }
+
+    /**
+     * Marks a special bit in the execute position <code>at</code> of a
+     * symbolic mode: lower case over execute, upper case without it.
+     */
+    private static void special(StringBuilder mode, int at, boolean set, char c) {
+        if (set) {
+            mode.setCharAt(at, mode.charAt(at) == 'x' ? c : Character.toUpperCase(c));
+        }
     }
 
     /**
@@ -240,7 +453,7 @@ public class ExistCollection extends DBCollection {
 
         XmldbURI collection = XmldbURI.create(DBURI + systemDbCollection);
         try {
-            database = registerDatabase();
+            database = registerDatabase(DBURI);
             Collection current = DatabaseManager.getCollection(collection.toString(), user, pass);
         } catch (XMLDBException e2) {
             e2.printStackTrace();
@@ -260,8 +473,69 @@ public class ExistCollection extends DBCollection {
 
     }
 
+    /**
+     * Creates an incremental backup set of this collection and its child
+     * collections in a directory. Only the files that changed since the
+     * newest set in the directory are exported; the first set, or one
+     * requested with <code>full</code>, exports everything. See
+     * <code>IncrementalBackup</code>.
+     *
+     * @param target the directory of the backup sets.
+     *
+     * @param full <code>true</code> to export all files.
+     *
+     * @param threads the number of collections backed up at once.
+     *
+     * @return the report of the backup.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public IncrementalBackup.Report backupIncremental(Path target, boolean full, int threads)
+            throws DBMSException {
+        return new IncrementalBackup(this, target).threads(threads).backup(full);
+    }
+
+    /**
+     * Restores this collection and its child collections from the newest
+     * set created by <code>backupIncremental</code> in a directory.
+     *
+     * @param target the directory of the backup sets.
+     *
+     * @return the number of files restored.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public long restoreIncremental(Path target) throws DBMSException {
+        return new IncrementalBackup(this, target).restore();
+    }
+
+    /**
+     * Restores this collection and its child collections from the newest
+     * set created by <code>backupIncremental</code> in a directory, several
+     * collections at once. Progress is reported to a listener, and a restore
+     * that failed or was interrupted continues, when run again, after the
+     * last completed collection. See <code>ParallelRestore</code>.
+     *
+     * @param target the directory of the backup sets.
+     *
+     * @param threads the number of collections restored at once.
+     *
+     * @param listener the listener to notify of the progress.
+     *
+     * @return the progress at the end of the restore, with the files that
+     * failed.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public ParallelRestore.Progress restoreIncremental(Path target, int threads,
+            ParallelRestore.Listener listener) throws DBMSException {
+        return new ParallelRestore(this, target).threads(threads).listener(listener).restore();
+    }
+
     /**
      * Restores a backup from a directory specified by the param contents.
+     * Errors are logged; use the variant with a <code>RestoreListener</code>
+     * to follow the restore and to get them as an exception.
      *
      * @param user the username to use for authentication to the database or
      * <code>null</code> if the database does not support authentication.
@@ -277,87 +551,91 @@ public class ExistCollection extends DBCollection {
      * @param DBURI the Database URI.
      *
      * @param systemDbCollection the system Database Collection.
-     *
-     * @throws DBMSException with expected error codes.
      */
     public void restore(String user, String pass, String newAdminPass, File contents, String DBURI, String systemDbCollection) {
-        Database database = null;
-
-        XmldbURI collection = XmldbURI.create(DBURI + systemDbCollection);
         try {
-            database = registerDatabase();
-            Collection current = DatabaseManager.getCollection(collection.toString(), user, pass);
-        } catch (XMLDBException e2) {
-            e2.printStackTrace();
+            restore(user, pass, newAdminPass, contents, DBURI, systemDbCollection, new DefaultRestoreListener());
+        } catch (DBMSException ex) {
+            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
         }
+    }
+
+    /**
+     * Restores a backup from a directory specified by the param contents,
+     * reporting each collection and resource to a listener.
+     *
+     * @param user the username to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     *
+     * @param pass the password to use for authentication to the database or
+     * <code>null</code> if the database does not support authentication.
+     *
+     * @param newAdminPass the password to use for authentication of backup or
+     * <code>null</code> if the backup file was not created with a password
+     *
+     * @param contents the directory that the backup is stored
+     *
+     * @param DBURI the Database URI.
+     *
+     * @param systemDbCollection the system Database Collection.
+     *
+     * @param listener the listener to notify of the progress.
+     *
+     * @throws DBMSException with expected error codes.
+     */
+    public void restore(String user, String pass, String newAdminPass, File contents, String DBURI,
+            String systemDbCollection, RestoreListener listener) throws DBMSException {
+        XmldbURI collection = XmldbURI.create(DBURI + systemDbCollection);
         try {
-            RestoreListener listener = new DefaultRestoreListener();
-            //   restore.restore(listener, user, pass, newAdminPass, contents, DBURI);
+            registerDatabase(DBURI);
+            DatabaseManager.getCollection(collection.toString(), user, pass);
             Restore restore = new Restore();
             restore.restore(listener, user, pass, newAdminPass, contents, DBURI);
-        } catch (XMLDBException ex) {
-            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (IOException ex) {
-            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (SAXException ex) {
-            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (ParserConfigurationException ex) {
-            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
-        } catch (URISyntaxException ex) {
-            Logger.getLogger(ExistCollection.class.getName()).log(Level.SEVERE, null, ex);
+        } catch (XMLDBException | IOException | SAXException | ParserConfigurationException
+                | URISyntaxException ex) {
+            throw new DBMSException(ex);
         }
     }
 
-    private Database registerDatabase()
+    private Database registerDatabase(String DBURI)
             throws DBMSException {
-        Database database = null;
-        try {
-            Class cl = null;
-            try {
-                cl = Class.forName("org.exist.xmldb.DatabaseImpl");
-            } catch (ClassNotFoundException e1) {
-                e1.printStackTrace();
-            }
-            try {
-                database = (Database) cl.newInstance();
-            } catch (InstantiationException e) {
-                e.printStackTrace();
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-            database.setProperty("create-database", "true");
-            DatabaseManager.registerDatabase(database);
-        } catch (XMLDBException e2) {
-            e2.printStackTrace();
-        }
-        return database;
-
+        DriverRegistry.register(DBURI);
+        return DriverRegistry.getDriver();
     }
 
     private void createManager()
             throws DBMSException {
+        CollectionLease lease = this.acquire();
         try {
-            CollectionImpl impl = (CollectionImpl) this.getCollection();
-
-            manager = (UserManagementService) impl.getService("UserManagementService", "1.0");
-            /*   if (impl.isRemoteCollection()) {
-             System.out.println("ExistCollection: setting up Remote manager");
-             manager = new RemoteUserManagementService((RemoteCollection) impl);
-             } else {
-             System.out.println("ExistCollection: setting up Local manager");
-             manager = new LocalUserManagementService(new User(this.getUser(), this.getPassword()) {
-             },
-             BrokerPool.getInstance(), (LocalCollection) impl);
-             }*/
-
-            if (manager == null) {
-                throw new Error("UserManagementService could not be instantiated in ExistCollection:init<>");
-            }
+            getManager(lease.getCollection());
         } catch (Exception ex) {
             System.out.println("Exception in ExistCollection constructor: " + ex.getMessage());
             ex.printStackTrace(System.out);
             throw new DBMSException(ex.getMessage());
+        } finally {
+            lease.release();
+        }
+    }
+
+    private UserManagementService getManager(Collection col)
+            throws XMLDBException {
+        CollectionImpl impl = (CollectionImpl) col;
+
+        UserManagementService manager = (UserManagementService) impl.getService("UserManagementService", "1.0");
+        /*   if (impl.isRemoteCollection()) {
+         System.out.println("ExistCollection: setting up Remote manager");
+         manager = new RemoteUserManagementService((RemoteCollection) impl);
+         } else {
+         System.out.println("ExistCollection: setting up Local manager");
+         manager = new LocalUserManagementService(new User(this.getUser(), this.getPassword()) {
+         },
+         BrokerPool.getInstance(), (LocalCollection) impl);
+         }*/
+
+        if (manager == null) {
+            throw new Error("UserManagementService could not be instantiated in ExistCollection:init<>");
         }
+        return manager;
     }
 
 }
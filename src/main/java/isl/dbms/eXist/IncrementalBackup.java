@@ -0,0 +1,455 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms.eXist;
+
+import isl.dbms.DBCollection;
+import isl.dbms.DBFile;
+import isl.dbms.DBMSException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An <code>IncrementalBackup</code> backs up a collection tree into a
+ * directory of backup sets, each exporting only the files that changed
+ * since the previous set. <br> <br>
+ * Every set is a sub-directory named after its time and kind
+ * (<code>20150312-104500-000-full</code>,
+ * <code>20150313-104500-000-incr</code>) holding the exported files under
+ * <code>files/</code> and a <code>manifest</code>. The manifest lists every
+ * collection and file of the tree at the time of the set, with the last
+ * modification time of each file and the set that holds its content. An
+ * incremental set exports the files that are missing from the previous
+ * manifest or have another modification time, and refers to older sets for
+ * the rest, so the newest manifest alone describes a complete restore. The
+ * manifest is written last, so a set interrupted before it is ignored. <br>
+ * <br>
+ * Collections are scanned and their changed files exported by
+ * <code>threads</code> workers at once.
+ */
+public class IncrementalBackup {
+
+    static final String MANIFEST = "manifest";
+    static final String FILES = "files";
+    private final DBCollection root;
+    private final Path target;
+    private int threads = 4;
+
+    /**
+     * Creates a backup of a collection tree into a directory.
+     *
+     * @param root the collection to back up, with its child collections.
+     * @param target the directory of the backup sets.
+     */
+    public IncrementalBackup(DBCollection root, Path target) {
+        this.root = root;
+        this.target = target;
+    }
+
+    /**
+     * @param threads the number of collections processed at once.
+     * @return this <code>IncrementalBackup</code>.
+     */
+    public IncrementalBackup threads(int threads) {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * Creates a backup set: a full one if <code>full</code> is set or there
+     * is no previous set, an incremental one otherwise.
+     *
+     * @param full <code>true</code> to export all files.
+     * @return the report of the backup.
+     * @throws DBMSException with expected error codes.
+     */
+    public Report backup(boolean full) throws DBMSException {
+        try {
+            Files.createDirectories(this.target);
+            Path previous = full ? null : latestSet(this.target);
+            Map<String, Entry> before = (previous != null)
+                    ? readManifest(previous) : Collections.<String, Entry>emptyMap();
+            String name = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS", Locale.ROOT).format(new Date())
+                    + (previous == null ? "-full" : "-incr");
+            Path set = this.target.resolve(name);
+            Files.createDirectories(set.resolve(FILES));
+            Run run = new Run(set, before);
+            run.execute();
+            writeManifest(set, run.entries);
+            run.report.end = System.nanoTime();
+            run.report.set = name;
+            return run.report;
+        } catch (IOException IOEx) {
+            throw new DBMSException(IOEx);
+        }
+    }
+
+    /**
+     * Restores the collection tree as of the newest backup set: every
+     * collection of its manifest is created (if missing) and every file is
+     * stored from the set that holds its content. Files that are in the
+     * database but not in the manifest are left alone. See
+     * <code>ParallelRestore</code> for a restore that reports its progress
+     * and can be resumed.
+     *
+     * @return the number of files restored.
+     * @throws DBMSException with expected error codes.
+     */
+    public long restore() throws DBMSException {
+        ParallelRestore.Progress progress = new ParallelRestore(this.root, this.target)
+                .threads(this.threads).resume(false).restore();
+        if (!progress.getErrors().isEmpty()) {
+            throw new DBMSException("Restore failed for " + progress.getErrors());
+        }
+        return progress.getFiles();
+    }
+
+    /**
+     * @return the file holding the content of a manifest entry.
+     */
+    Path content(Entry e) {
+        return this.target.resolve(e.set).resolve(FILES).resolve(e.path);
+    }
+
+    /**
+     * One execution of <code>backup</code>.
+     */
+    private class Run {
+
+        final Path set;
+        final String setName;
+        final Map<String, Entry> before;
+        final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        final Report report = new Report();
+        final String rootPath;
+
+        Run(Path set, Map<String, Entry> before) throws DBMSException {
+            this.set = set;
+            this.setName = set.getFileName().toString();
+            this.before = before;
+            this.rootPath = root.getPath();
+        }
+
+        void execute() throws IOException {
+            AtomicInteger count = new AtomicInteger();
+            ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "DMS-backup-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            CompletionService<List<DBCollection>> done = new ExecutorCompletionService<List<DBCollection>>(workers);
+            try {
+                done.submit(() -> backupCollection(root));
+                int outstanding = 1;
+                while (outstanding > 0) {
+                    List<DBCollection> children = done.take().get();
+                    outstanding--;
+                    for (DBCollection child : children) {
+                        done.submit(() -> backupCollection(child));
+                        outstanding++;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Backup interrupted");
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause.getMessage());
+            } finally {
+                workers.shutdownNow();
+            }
+        }
+
+        /**
+         * Backs up the files of a collection and returns its child
+         * collections.
+         */
+        List<DBCollection> backupCollection(DBCollection collection) throws IOException {
+            String path = relative(collection.getPath());
+            this.entries.put(path, Entry.collection(path));
+            this.report.collections.incrementAndGet();
+            for (DBFile file : collection.getFiles()) {
+                String filePath = (path.isEmpty() ? "" : path + "/") + file.getName();
+                Date modified = file.getLastModificationTime();
+                Entry entry = new Entry(filePath, modified != null ? modified.getTime() : -1, file.getType(), this.setName);
+                Entry old = this.before.get(filePath);
+                this.report.scanned.incrementAndGet();
+                if (old != null && old.modified == entry.modified && entry.modified != -1
+                        && old.type.equals(entry.type)) {
+                    entry.set = old.set;
+                } else {
+                    try {
+                        this.report.bytes.addAndGet(export(file, this.set.resolve(FILES).resolve(filePath)));
+                        this.report.exported.incrementAndGet();
+                    } catch (RuntimeException ex) {
+                        // keep the previous copy, if any, and go on
+                        this.report.errors.put(filePath, String.valueOf(ex.getMessage()));
+                        if (old == null) {
+                            continue;
+                        }
+                        entry = old;
+                    }
+                }
+                this.entries.put(filePath, entry);
+            }
+            List<DBCollection> children = new ArrayList<DBCollection>();
+            for (String child : collection.listChildCollections()) {
+                DBCollection c = collection.getChildCollection(child);
+                if (c != null) {
+                    children.add(c);
+                }
+            }
+            return children;
+        }
+
+        String relative(String path) {
+            if (path.equals(this.rootPath)) {
+                return "";
+            }
+            return path.startsWith(this.rootPath + "/") ? path.substring(this.rootPath.length() + 1) : path;
+        }
+    }
+
+    private static long export(DBFile file, Path to) throws IOException {
+        Files.createDirectories(to.getParent());
+        try (OutputStream out = Files.newOutputStream(to)) {
+            if (file.getType().equals("BinaryDBFile")) {
+                file.getBinary(out);
+            } else {
+                file.getXML(out);
+            }
+        }
+        return Files.size(to);
+    }
+
+    /**
+     * Returns the newest complete backup set in a directory.
+     *
+     * @return the directory of the set, or <code>null</code> if there is
+     * none.
+     */
+    static Path latestSet(Path target) throws IOException {
+        TreeMap<String, Path> sets = new TreeMap<String, Path>();
+        if (!Files.isDirectory(target)) {
+            return null;
+        }
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(target)) {
+            for (Path dir : dirs) {
+                if (Files.isRegularFile(dir.resolve(MANIFEST))) {
+                    sets.put(dir.getFileName().toString(), dir);
+                }
+            }
+        }
+        return sets.isEmpty() ? null : sets.lastEntry().getValue();
+    }
+
+    /**
+     * Reads the manifest of a backup set, in the order it was written
+     * (collections before their files).
+     */
+    static Map<String, Entry> readManifest(Path set) throws IOException {
+        Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        try (BufferedReader in = Files.newBufferedReader(set.resolve(MANIFEST), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t", -1);
+                Entry e = f[0].equals("C") ? Entry.collection(f[1])
+                        : new Entry(f[1], Long.parseLong(f[2]), f[3], f[4]);
+                entries.put(e.path, e);
+            }
+        }
+        return entries;
+    }
+
+    private static void writeManifest(Path set, Map<String, Entry> entries) throws IOException {
+        // collections first and each before its sub-collections, for restore
+        TreeMap<String, Entry> sorted = new TreeMap<String, Entry>((a, b) -> {
+            Entry x = entries.get(a), y = entries.get(b);
+            if (x.type == null ^ y.type == null) {
+                return x.type == null ? -1 : 1;
+            }
+            return a.compareTo(b);
+        });
+        sorted.putAll(entries);
+        Path tmp = set.resolve(MANIFEST + ".tmp");
+        try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (Entry e : sorted.values()) {
+                out.write(e.toString());
+                out.newLine();
+            }
+        }
+        Files.move(tmp, set.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * A collection or file in a manifest.
+     */
+    static final class Entry {
+
+        final String path;
+        final long modified;
+        /** <code>XMLDBFile</code> or <code>BinaryDBFile</code>, <code>null</code> for a collection. */
+        final String type;
+        /** The backup set holding the content. */
+        String set;
+
+        Entry(String path, long modified, String type, String set) {
+            this.path = path;
+            this.modified = modified;
+            this.type = type;
+            this.set = set;
+        }
+
+        static Entry collection(String path) {
+            return new Entry(path, -1, null, null);
+        }
+
+        boolean isCollection() {
+            return this.type == null;
+        }
+
+        public String toString() {
+            return isCollection() ? "C\t" + this.path
+                    : "F\t" + this.path + "\t" + this.modified + "\t" + this.type + "\t" + this.set;
+        }
+    }
+
+    /**
+     * The outcome of a backup.
+     */
+    public static class Report {
+
+        final long start = System.nanoTime();
+        volatile long end;
+        volatile String set;
+        final AtomicLong collections = new AtomicLong();
+        final AtomicLong scanned = new AtomicLong();
+        final AtomicLong exported = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<String, String> errors = Collections.synchronizedMap(new HashMap<String, String>());
+
+        /**
+         * @return the name of the backup set created.
+         */
+        public String getSet() {
+            return this.set;
+        }
+
+        /**
+         * @return the number of collections backed up.
+         */
+        public long getCollections() {
+            return this.collections.get();
+        }
+
+        /**
+         * @return the number of files checked.
+         */
+        public long getScanned() {
+            return this.scanned.get();
+        }
+
+        /**
+         * @return the number of files exported into this set.
+         */
+        public long getExported() {
+            return this.exported.get();
+        }
+
+        /**
+         * @return the number of bytes exported into this set.
+         */
+        public long getBytes() {
+            return this.bytes.get();
+        }
+
+        /**
+         * @return the files that could not be exported, with the error for
+         * each.
+         */
+        public Map<String, String> getErrors() {
+            return Collections.unmodifiableMap(this.errors);
+        }
+
+        /**
+         * @return the time the backup took, in milliseconds.
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((this.end != 0 ? this.end : System.nanoTime()) - this.start);
+        }
+
+        /**
+         * @return the files checked per second.
+         */
+        public double getFilesPerSecond() {
+            return getScanned() * 1000.0 / Math.max(getElapsedMillis(), 1);
+        }
+
+        /**
+         * @return the megabytes (2<sup>20</sup> bytes) exported per second.
+         */
+        public double getMegabytesPerSecond() {
+            return getBytes() * 1000.0 / Math.max(getElapsedMillis(), 1) / (1024 * 1024);
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "IncrementalBackup[set=%s, collections=%d, scanned=%d, exported=%d, bytes=%d, errors=%d, ms=%d, files/s=%.1f, MB/s=%.2f]",
+                    this.set, getCollections(), getScanned(), getExported(), getBytes(), this.errors.size(),
+                    getElapsedMillis(), getFilesPerSecond(), getMegabytesPerSecond());
+        }
+    }
+}
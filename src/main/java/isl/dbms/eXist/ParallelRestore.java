@@ -0,0 +1,433 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms.eXist;
+
+import isl.dbms.DBCollection;
+import isl.dbms.DBMSException;
+import isl.dbms.eXist.IncrementalBackup.Entry;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A <code>ParallelRestore</code> restores a collection tree from the newest
+ * set written by <code>IncrementalBackup</code>. <br> <br>
+ * All collections are created first, parents before children; then the
+ * files of independent collections are restored by <code>threads</code>
+ * workers at once. A <code>Listener</code> is told when each collection
+ * starts and finishes and about every file, and receives a
+ * <code>Progress</code> with the throughput so far and an estimate of the
+ * time left. <br> <br>
+ * Every collection whose files were all restored is recorded in a journal,
+ * by default a file next to the backup set; <code>journal</code> moves it
+ * elsewhere, for example when the backup is on read-only media. A restore
+ * that failed or was interrupted can be run again and continues with the
+ * collections not in the journal; the journal is removed once a restore
+ * completes without errors. With <code>resume(false)</code> no journal is
+ * read or written.
+ */
+public class ParallelRestore {
+
+    private static final String JOURNAL = "restore-journal";
+    private final DBCollection root;
+    private final Path target;
+    private final IncrementalBackup backup;
+    private int threads = 4;
+    private boolean resume = true;
+    private Path journal;
+    private Listener listener = new Listener() {
+    };
+
+    /**
+     * Receives the progress of a <code>ParallelRestore</code>. Methods are
+     * called from the restoring threads.
+     */
+    public interface Listener {
+
+        /**
+         * Called before the files of a collection are restored.
+         *
+         * @param collection the path of the collection, relative to the
+         * restored collection.
+         * @param files the number of files to restore in it.
+         */
+        default void collectionStarted(String collection, int files) {
+        }
+
+        /**
+         * Called after a file has been restored.
+         *
+         * @param file the path of the file.
+         * @param bytes the size of the file.
+         */
+        default void fileRestored(String file, long bytes) {
+        }
+
+        /**
+         * Called when a file could not be restored.
+         *
+         * @param file the path of the file.
+         * @param error the error.
+         */
+        default void fileFailed(String file, Exception error) {
+        }
+
+        /**
+         * Called after the files of a collection have been restored (or
+         * failed).
+         *
+         * @param collection the path of the collection.
+         * @param progress the progress of the whole restore.
+         */
+        default void collectionFinished(String collection, Progress progress) {
+        }
+    }
+
+    /**
+     * Creates a restore of a collection tree.
+     *
+     * @param root the collection to restore into.
+     * @param target the directory of the backup sets.
+     */
+    public ParallelRestore(DBCollection root, Path target) {
+        this.root = root;
+        this.target = target;
+        this.backup = new IncrementalBackup(root, target);
+    }
+
+    /**
+     * @param threads the number of collections restored at once.
+     * @return this <code>ParallelRestore</code>.
+     */
+    public ParallelRestore threads(int threads) {
+        this.threads = Math.max(threads, 1);
+        return this;
+    }
+
+    /**
+     * @param listener the listener to notify.
+     * @return this <code>ParallelRestore</code>.
+     */
+    public ParallelRestore listener(Listener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * @param resume <code>true</code> (the default) to skip the collections
+     * that an earlier, unfinished restore completed.
+     * @return this <code>ParallelRestore</code>.
+     */
+    public ParallelRestore resume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * @param journal the file recording the completed collections, instead
+     * of <code>restore-journal</code> in the backup set directory.
+     * @return this <code>ParallelRestore</code>.
+     */
+    public ParallelRestore journal(Path journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    /**
+     * Restores the newest backup set.
+     *
+     * @return the progress at the end of the restore, with the errors.
+     * @throws DBMSException with expected error codes.
+     */
+    public Progress restore() throws DBMSException {
+        try {
+            Path set = IncrementalBackup.latestSet(this.target);
+            if (set == null) {
+                throw new DBMSException("No backup set in " + this.target);
+            }
+            Path journal = !this.resume ? null : (this.journal != null ? this.journal : set.resolve(JOURNAL));
+            // the first line names the set, so a journal of another set is not used
+            String header = "# " + set.getFileName();
+            Set<String> completed = new HashSet<String>();
+            if (journal != null && Files.isRegularFile(journal)) {
+                List<String> lines = Files.readAllLines(journal, StandardCharsets.UTF_8);
+                if (!lines.isEmpty() && lines.get(0).equals(header)) {
+                    completed.addAll(lines.subList(1, lines.size()));
+                }
+            }
+            // group the files by collection; the manifest lists collections first
+            Map<String, List<Entry>> collections = new LinkedHashMap<String, List<Entry>>();
+            for (Entry e : IncrementalBackup.readManifest(set).values()) {
+                if (e.isCollection()) {
+                    collections.putIfAbsent(e.path, new ArrayList<Entry>());
+                } else {
+                    int slash = e.path.lastIndexOf('/');
+                    collections.computeIfAbsent(slash < 0 ? "" : e.path.substring(0, slash),
+                            k -> new ArrayList<Entry>()).add(e);
+                }
+            }
+            Progress progress = new Progress();
+            for (Map.Entry<String, List<Entry>> c : collections.entrySet()) {
+                if (!completed.contains(c.getKey())) {
+                    progress.collectionsTotal++;
+                    progress.filesTotal += c.getValue().size();
+                    for (Entry e : c.getValue()) {
+                        progress.bytesTotal += size(e);
+                    }
+                }
+            }
+            Map<String, DBCollection> handles = new ConcurrentHashMap<String, DBCollection>();
+            handles.put("", this.root);
+            for (String path : collections.keySet()) {
+                if (!path.isEmpty()) {
+                    handles.put(path, this.root.createCollection(path));
+                }
+            }
+            if (journal == null) {
+                run(collections, completed, handles, progress, null);
+            } else {
+                try (BufferedWriter out = Files.newBufferedWriter(journal, StandardCharsets.UTF_8)) {
+                    out.write(header);
+                    out.newLine();
+                    for (String path : completed) {
+                        out.write(path);
+                        out.newLine();
+                    }
+                    out.flush();
+                    run(collections, completed, handles, progress, out);
+                }
+            }
+            progress.end = System.nanoTime();
+            if (journal != null && progress.errors.isEmpty()) {
+                Files.deleteIfExists(journal);
+            }
+            return progress;
+        } catch (IOException IOEx) {
+            throw new DBMSException(IOEx);
+        }
+    }
+
+    private void run(Map<String, List<Entry>> collections, Set<String> completed,
+            Map<String, DBCollection> handles, Progress progress, BufferedWriter journal) throws IOException {
+        AtomicInteger count = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(this.threads, r -> {
+            Thread t = new Thread(r, "DMS-restore-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<?>> tasks = new ArrayList<Future<?>>();
+        try {
+            for (Map.Entry<String, List<Entry>> c : collections.entrySet()) {
+                if (completed.contains(c.getKey())) {
+                    continue;
+                }
+                String path = c.getKey();
+                List<Entry> files = c.getValue();
+                tasks.add(workers.submit(() -> {
+                    restoreCollection(path, files, handles.get(path), progress, journal);
+                    return null;
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Restore interrupted");
+        } catch (java.util.concurrent.ExecutionException ex) {
+            throw new IOException(ex.getCause().getMessage());
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void restoreCollection(String path, List<Entry> files, DBCollection collection,
+            Progress progress, BufferedWriter journal) throws IOException {
+        this.listener.collectionStarted(path, files.size());
+        boolean failed = false;
+        for (Entry e : files) {
+            try {
+                Path content = this.backup.content(e);
+                collection.storeFile(e.path.substring(e.path.lastIndexOf('/') + 1), content,
+                        e.type.equals("BinaryDBFile"));
+                long bytes = Files.size(content);
+                progress.files.incrementAndGet();
+                progress.bytes.addAndGet(bytes);
+                this.listener.fileRestored(e.path, bytes);
+            } catch (Exception ex) {
+                failed = true;
+                progress.errors.put(e.path, String.valueOf(ex.getMessage()));
+                this.listener.fileFailed(e.path, ex);
+            }
+        }
+        progress.collections.incrementAndGet();
+        if (!failed && journal != null) {
+            synchronized (journal) {
+                journal.write(path);
+                journal.newLine();
+                journal.flush();
+            }
+        }
+        this.listener.collectionFinished(path, progress);
+    }
+
+    private long size(Entry e) {
+        try {
+            return Files.size(this.backup.content(e));
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    /**
+     * The progress of a <code>ParallelRestore</code>. It covers the
+     * collections left to restore when it started.
+     */
+    public static class Progress {
+
+        final long start = System.nanoTime();
+        volatile long end;
+        int collectionsTotal;
+        long filesTotal;
+        long bytesTotal;
+        final AtomicLong collections = new AtomicLong();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+
+        /**
+         * @return the number of collections finished.
+         */
+        public long getCollections() {
+            return this.collections.get();
+        }
+
+        /**
+         * @return the number of collections to restore.
+         */
+        public int getCollectionsTotal() {
+            return this.collectionsTotal;
+        }
+
+        /**
+         * @return the number of files restored.
+         */
+        public long getFiles() {
+            return this.files.get();
+        }
+
+        /**
+         * @return the number of files to restore.
+         */
+        public long getFilesTotal() {
+            return this.filesTotal;
+        }
+
+        /**
+         * @return the number of bytes restored.
+         */
+        public long getBytes() {
+            return this.bytes.get();
+        }
+
+        /**
+         * @return the number of bytes to restore.
+         */
+        public long getBytesTotal() {
+            return this.bytesTotal;
+        }
+
+        /**
+         * @return the files that could not be restored, with the error for
+         * each.
+         */
+        public Map<String, String> getErrors() {
+            synchronized (this.errors) {
+                return new LinkedHashMap<String, String>(this.errors);
+            }
+        }
+
+        /**
+         * @return the time the restore took (so far), in milliseconds.
+         */
+        public long getElapsedMillis() {
+            return TimeUnit.NANOSECONDS.toMillis((this.end != 0 ? this.end : System.nanoTime()) - this.start);
+        }
+
+        /**
+         * @return the files restored per second.
+         */
+        public double getFilesPerSecond() {
+            return getFiles() * 1000.0 / Math.max(getElapsedMillis(), 1);
+        }
+
+        /**
+         * @return the megabytes (2<sup>20</sup> bytes) restored per second.
+         */
+        public double getMegabytesPerSecond() {
+            return getBytes() * 1000.0 / Math.max(getElapsedMillis(), 1) / (1024 * 1024);
+        }
+
+        /**
+         * @return an estimate of the time left, in milliseconds, from the
+         * bytes restored so far, or -1 before anything has been restored.
+         */
+        public long getRemainingMillis() {
+            long done = getBytes();
+            if (done == 0) {
+                return -1;
+            }
+            return (long) ((double) getElapsedMillis() * (this.bytesTotal - done) / done);
+        }
+
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "ParallelRestore[collections=%d/%d, files=%d/%d, bytes=%d/%d, errors=%d, ms=%d, files/s=%.1f, MB/s=%.2f, eta ms=%d]",
+                    getCollections(), this.collectionsTotal, getFiles(), this.filesTotal, getBytes(),
+                    this.bytesTotal, this.errors.size(), getElapsedMillis(), getFilesPerSecond(),
+                    getMegabytesPerSecond(), getRemainingMillis());
+        }
+    }
+}
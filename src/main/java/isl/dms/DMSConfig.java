@@ -42,6 +42,15 @@ public class DMSConfig {
     public String COLLECTIONS_FILE;
     public String ADMINS_FILE;
     public String VERSIONS_FILE;
+    public String SEQUENCES_FILE;
+    
+    /** Number of ids an <code>IdSequence</code> reserves at a time. */
+    public int ID_BLOCK_SIZE;
+    
+    /** Evaluate XPath reads of the registry files on an in-memory copy. */
+    public boolean LOCAL_READS;
+    /** Milliseconds after which the in-memory copy is checked against the database (negative: never). */
+    public long LOCAL_READS_MAX_AGE;
     
     public DMSConfig(String db, String collection, String username, String password){
         DB 			= db;
@@ -58,6 +67,11 @@ public class DMSConfig {
         COLLECTIONS_FILE= "DMSCollections.xml";
         ADMINS_FILE	= "DMSAdmins.xml";
 	VERSIONS_FILE= "DMS_owl_versions.xml";
+        SEQUENCES_FILE= "DMSSequences.xml";
+        ID_BLOCK_SIZE = 10;
+
+        LOCAL_READS = false;
+        LOCAL_READS_MAX_AGE = 10 * 1000;
     }
 
 }
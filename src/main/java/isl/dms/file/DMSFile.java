@@ -27,11 +27,16 @@
  */
 package isl.dms.file;
 
+import isl.dbms.AsyncExecutor;
 import isl.dbms.DBFile;
 import isl.dbms.DBCollection;
 import isl.dbms.DBMSException;
+import isl.dbms.XUpdateBatch;
 import isl.dms.DMSConfig;
 import isl.dms.DMSException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * The <code>DMSFile</code> represents a file of the system. It provides basic
@@ -64,6 +69,14 @@ import isl.dms.DMSException;
  * </ul>
  * are used to manage eny kind of 'entities'.
  * <br><br>
+ * When <code>DMSConfig.LOCAL_READS</code> is set, <code>exist</code>,
+ * <code>getData</code>, <code>queryString</code>, <code>getIds</code> and
+ * <code>project</code> evaluate XPath queries on an in-memory copy of the
+ * file, and fall back to the database for queries XPath 1.0 cannot express.
+ * The file in the database is opened on the first query that needs it, so
+ * reads answered by the copy do not contact the database. Writes through
+ * this class drop the copy.
+ * <br><br>
  * For example, the <code>DMSExamples</code> file should have the
  * following structure:
  * <br>
@@ -102,14 +115,14 @@ public class DMSFile {
     
     /**
      * Constructs a new <code>DMSFile</code> instance associated with the
-     * specified file in the database.
+     * specified file in the database. The file is opened on first access, so
+     * a missing file is reported by the first query or write.
      * @param conf a DMSConfig object
      * @param file the name of the file.
      * @throws DBMSException with expected error codes.
      * @throws DMSException with expected error codes.
      */
     public DMSFile(String file, DMSConfig conf) throws DBMSException {
-        this.DBfile = new DBFile(conf.DB, conf.COLLECTION, file, conf.DB_USERNAME, conf.DB_PASSWORD);
         this.DBfilename = file;
         this.conf = conf;
     }
@@ -149,7 +162,11 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public void addEntity(String xml) throws DBMSException{
-        this.DBfile.xAppend(this.getEntitiesRootXPath(), xml);
+        try {
+            this.dbFile().xAppend(this.getEntitiesRootXPath(), xml);
+        } finally {
+            this.invalidateLocalCopy();
+        }
     }
     
     /**
@@ -169,7 +186,11 @@ public class DMSFile {
         String newEntity = "<"+entity+" id=\""+newId+"\">\n"
                 + xml
                 + "</"+entity+">\n";
-        this.DBfile.xAppend(this.getEntitiesRootXPath(), newEntity);
+        try {
+            this.dbFile().xAppend(this.getEntitiesRootXPath(), newEntity);
+        } finally {
+            this.invalidateLocalCopy();
+        }
         return newId;
     }
     
@@ -182,8 +203,12 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public void removeEntity(String attribute, String value) throws DBMSException{
-        this.DBfile.xRemove(this.getEntitiesRootXPath()
-        +"/*[@"+attribute+"='"+value+"']");
+        try {
+            this.dbFile().xRemove(this.getEntitiesRootXPath()
+            +"/*[@"+attribute+"='"+value+"']");
+        } finally {
+            this.invalidateLocalCopy();
+        }
     }
     
     /**
@@ -293,7 +318,11 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public void delete() throws DBMSException{
-        this.DBfile.remove();
+        try {
+            this.dbFile().remove();
+        } finally {
+            this.invalidateLocalCopy();
+        }
     }
     
     /**
@@ -308,7 +337,11 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public long addData(String xPath, String xml) throws DBMSException{
-        return this.DBfile.xAppend(xPath, xml);
+        try {
+            return this.dbFile().xAppend(xPath, xml);
+        } finally {
+            this.invalidateLocalCopy();
+        }
     }
     
     /**
@@ -320,7 +353,11 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public long removeData(String xPath) throws DBMSException{
-        return this.DBfile.xRemove(xPath);
+        try {
+            return this.dbFile().xRemove(xPath);
+        } finally {
+            this.invalidateLocalCopy();
+        }
     }
     
     /**
@@ -339,7 +376,7 @@ public class DMSFile {
      */
     public String getData(String xPath) throws DMSException, DBMSException{
         if (this.exist(xPath)){
-            String ret[] = this.DBfile.queryString(xPath + "/text()");
+            String ret[] = this.queryString(xPath + "/text()");
             if (ret.length == 0) return "";
             else return ret[0];
         }else
@@ -357,7 +394,39 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public long setData(String xPath, String xml) throws DBMSException{
-        return this.DBfile.xUpdate(xPath, xml);
+        try {
+            return this.dbFile().xUpdate(xPath, xml);
+        } finally {
+            this.invalidateLocalCopy();
+        }
+    }
+    
+    /**
+     * Starts a batch of changes to the <code>DMSFile</code>. The changes
+     * added to the batch are applied together, in one call, when it is
+     * executed.
+     *
+     * @return a new, empty <code>XUpdateBatch</code> on the file.
+     * @throws DBMSException with expected error codes.
+     */
+    public XUpdateBatch batch() throws DBMSException {
+        return new XUpdateBatch(this.dbFile()) {
+            public long execute() throws DBMSException {
+                try {
+                    return super.execute();
+                } finally {
+                    invalidateLocalCopy();
+                }
+            }
+
+            public long[] executeEach() throws DBMSException {
+                try {
+                    return super.executeEach();
+                } finally {
+                    invalidateLocalCopy();
+                }
+            }
+        };
     }
     
     /**
@@ -373,7 +442,13 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public boolean exist(String selectQuery) throws DMSException, DBMSException {
-        return this.DBfile.exist(selectQuery);
+        RegistrySnapshot snapshot = this.localCopy();
+        if (snapshot != null) {
+            String[] ret = snapshot.evaluate(selectQuery);
+            if (ret != null)
+                return ret.length > 0;
+        }
+        return this.dbFile().exist(selectQuery);
     }
     
     /**
@@ -391,7 +466,105 @@ public class DMSFile {
      */
     /*****************************TZORTZAK MODIFICATION*************************/
     public String[] queryString(String query) throws DMSException, DBMSException {
-        return this.DBfile.queryString(query);
+        RegistrySnapshot snapshot = this.localCopy();
+        if (snapshot != null) {
+            String[] ret = snapshot.evaluate(query);
+            if (ret != null)
+                return ret;
+        }
+        return this.dbFile().queryString(query);
+    }
+    
+    /**
+     * Executes an XQuery with external variables against this
+     * <code>DMSFile</code>. The query is compiled once and reused by later
+     * calls with the same query string, so lookups repeated with different
+     * values should declare them as external variables
+     * (<code>declare variable $id external;</code>) instead of concatenating
+     * them into the query. With <code>DMSConfig.LOCAL_READS</code>, a query
+     * made of such declarations followed by an XPath 1.0 expression is
+     * evaluated on the in-memory copy.
+     *
+     * @return an array of <code>String (String[])</code> containing the
+     *         results of the query.
+     * @param query
+     *            The XQuery query string to use.
+     * @param variables
+     *            the values of the external variables, by name.
+     * @throws DBMSException with expected error codes.
+     */
+    public String[] queryString(String query, Map<String, ?> variables) throws DBMSException {
+        RegistrySnapshot snapshot = this.localCopy();
+        if (snapshot != null) {
+            String[] ret = snapshot.evaluate(query, variables);
+            if (ret != null)
+                return ret;
+        }
+        return this.dbFile().queryString(query, variables);
+    }
+    
+    /**
+     * Runs <code>queryString(query)</code> on the <code>AsyncExecutor</code>.
+     * @param query
+     *            The XQuery query string to use.
+     * @return a future completed with the results of the query.
+     */
+    public CompletableFuture<String[]> queryStringAsync(String query) {
+        return AsyncExecutor.supply(() -> this.queryString(query));
+    }
+    
+    /**
+     * Runs <code>queryString(query, variables)</code> on the
+     * <code>AsyncExecutor</code>.
+     * @param query
+     *            The XQuery query string to use.
+     * @param variables
+     *            the values of the external variables, by name.
+     * @return a future completed with the results of the query.
+     */
+    public CompletableFuture<String[]> queryStringAsync(String query, Map<String, ?> variables) {
+        return AsyncExecutor.supply(() -> this.queryString(query, variables));
+    }
+    
+    /**
+     * Runs <code>getData(xPath)</code> on the <code>AsyncExecutor</code>.
+     * @param xPath the XPath of the data.
+     * @return a future completed with the data.
+     */
+    public CompletableFuture<String> getDataAsync(String xPath) {
+        return AsyncExecutor.supply(() -> this.getData(xPath));
+    }
+    
+    /**
+     * Runs <code>exist(selectQuery)</code> on the <code>AsyncExecutor</code>.
+     * @param selectQuery the query to perform.
+     * @return a future completed with <code>true</code> if the query
+     *         returns any results.
+     */
+    public CompletableFuture<Boolean> existAsync(String selectQuery) {
+        return AsyncExecutor.supply(() -> this.exist(selectQuery));
+    }
+    
+    /**
+     * Runs <code>project(key, value)</code> on the
+     * <code>AsyncExecutor</code>.
+     * @param key XPath, relative to an 'entity', that selects its key.
+     * @param value XPath, relative to an 'entity', that selects its value.
+     * @return a future completed with the (key, value) pairs.
+     */
+    public CompletableFuture<Map<String, String>> projectAsync(String key, String value) {
+        return AsyncExecutor.supply(() -> this.project(key, value));
+    }
+    
+    /**
+     * Runs <code>setData(xPath, xml)</code> on the
+     * <code>AsyncExecutor</code>.
+     * @param xPath the XPath of the data to replace.
+     * @param xml the new data.
+     * @return a future completed with the number of modified nodes.
+     */
+    public CompletableFuture<Long> setDataAsync(String xPath, String xml) {
+        return AsyncExecutor.supply(() -> this.setData(xPath, xml));
     }
     
     /**
@@ -401,30 +574,75 @@ public class DMSFile {
      * @throws DBMSException with expected error codes.
      */
     public String[] getIds() throws DMSException{
-    	if (this.DBfile.exist(this.getEntitiesRootXPath()+"/*") == false)
+    	if (this.exist(this.getEntitiesRootXPath()+"/*") == false)
     		return new String[0];
     	else
-    		return this.DBfile.queryString(this.getEntitiesRootXPath()+"/*/@id/string()");
+    		return this.queryString(this.getEntitiesRootXPath()+"/*/@id/string()");
+    }
+    
+    /**
+     * Returns a (key, value) pair for every 'entity' of this
+     * <code>DMSFile</code>, fetched in one query. For example
+     * <code>project("@id", "@username")</code> on the users file maps the id
+     * of every user to its username.
+     * @param key XPath, relative to an 'entity', that selects its key.
+     * @param value XPath, relative to an 'entity', that selects its value.
+     * @return a <code>Map</code> from the string value of the key to the
+     *         string value of the value, in document order. 'Entities'
+     *         without a key are left out.
+     * @throws DBMSException with expected error codes.
+     */
+    public Map<String, String> project(String key, String value) throws DBMSException {
+        return project(this.getEntitiesRootXPath() + "/*", key, value);
+    }
+    
+    /**
+     * Returns a (key, value) pair for every node selected by
+     * <code>entities</code>, fetched in one query.
+     * @param entities XPath that selects the 'entities' to project.
+     * @param key XPath, relative to an 'entity', that selects its key.
+     * @param value XPath, relative to an 'entity', that selects its value.
+     * @return a <code>Map</code> from the string value of the key to the
+     *         string value of the value, in document order. 'Entities'
+     *         without a key are left out.
+     * @throws DBMSException with expected error codes.
+     */
+    public Map<String, String> project(String entities, String key, String value) throws DBMSException {
+        String selected = entities + "[" + key + "]";
+        String[] pairs = null;
+        RegistrySnapshot snapshot = this.localCopy();
+        if (snapshot != null)
+            pairs = snapshot.project(selected, "string((" + key + ")[1])", "string((" + value + ")[1])");
+        if (pairs == null)
+            pairs = this.dbFile().queryString("for $e in " + selected
+                    + " return (string(($e/" + key + ")[1]), string(($e/" + value + ")[1]))");
+        LinkedHashMap<String, String> ret = new LinkedHashMap<String, String>(pairs.length);
+        for (int i = 0; i + 1 < pairs.length; i += 2)
+            ret.put(pairs[i], pairs[i + 1]);
+        return ret;
     }
     
     /**
      * Returns a new 'id' for the 'entities' described in this
      * <code>DMSFile</code>. The new 'id' is return for the
      * <b>default 'id'</b>, which is assumed to be the <code>String</code>
-     * <i>id</i>.
+     * <i>id</i>. Ids come from the <code>IdSequence</code> of the file, so
+     * they are unique across processes and do not require scanning the file.
      * @param conf a DMSConfig object
      * @param file the name of the file in which we want to get a new id.
      * @return an integer that is a new id.
      * @throws DBMSException with expected error codes.
      */
     public static int newId(String file, DMSConfig conf) throws DBMSException {
-        String selectId = "/DMS/*[1]/*/@id";
-        return newId(file, selectId, conf);
+        return IdSequence.of(file, conf).next();
     }
     
     /**
      * Returns a new 'id' for the 'entities' described in this
-     * <code>DMSFile</code>.
+     * <code>DMSFile</code>, as one more than the largest id selected by
+     * <code>selectId</code>. It scans all selected ids, so it is meant for ids
+     * numbered inside a single 'entity'; use <code>newId(String, DMSConfig)</code>
+     * for the 'entities' of a file.
      * @param conf a DMSConfig object
      * @param file the name of the file in which we want to get a new id.
      * @param selectId xPath that selects the id, for which we want
@@ -441,6 +659,42 @@ public class DMSFile {
         return (int) Double.parseDouble(maxId[0].getXMLAsString()) + 1;
     }
     
+    /**
+     * Drops the in-memory copies of all registry files kept for
+     * <code>DMSConfig.LOCAL_READS</code>, so that the next reads go to the
+     * database. Needed only when the files are changed by other means than
+     * <code>DMSFile</code>.
+     */
+    public static void invalidateLocalCopies() {
+        RegistrySnapshot.invalidateAll();
+    }
+    
+    /**
+     * Returns the in-memory copy of this file, or <code>null</code> if reads
+     * go to the database.
+     */
+    private RegistrySnapshot localCopy() {
+        if (this.conf == null || !this.conf.LOCAL_READS)
+            return null;
+        return RegistrySnapshot.get(this.DBfilename, this.conf);
+    }
+    
+    /**
+     * Returns the file in the database, opening it on first use.
+     * @throws DBMSException with expected error codes.
+     */
+    protected DBFile dbFile() throws DBMSException {
+        if (this.DBfile == null)
+            this.DBfile = new DBFile(this.conf.DB, this.conf.COLLECTION, this.DBfilename,
+                    this.conf.DB_USERNAME, this.conf.DB_PASSWORD);
+        return this.DBfile;
+    }
+    
+    private void invalidateLocalCopy() {
+        if (this.conf != null)
+            RegistrySnapshot.invalidate(this.DBfilename, this.conf);
+    }
+    
     private String getEntitiesRootXPath(){
         //The DMSFile has a root 'DMS' with one child.
         return "/DMS/*[1]";
@@ -451,15 +705,16 @@ public class DMSFile {
     }
     
     /**
-     * Sets the file that this <code>DMSFile</code> represents.
+     * Sets the file that this <code>DMSFile</code> represents. The file is
+     * opened on first access.
      * 
      * @param file The name of the file to set.
      * @param conf a DMSConfig object
      * @throws DBMSException with expected error codes.
      */
     protected void setDMSfile(String file, DMSConfig conf) throws DBMSException {
-        this.DBfile = new DBFile(conf.DB, conf.COLLECTION, file, conf.DB_USERNAME, conf.DB_PASSWORD);
-        this.DBfilename = this.DBfile.getName();
+        this.DBfile = null;
+        this.DBfilename = file;
         this.conf = conf;
     }
 }
@@ -28,6 +28,7 @@
 package isl.dms.file;
 
 import java.util.Hashtable;
+import java.util.Map;
 
 import isl.dbms.DBMSException;
 import isl.dms.DMSConfig;
@@ -195,15 +196,21 @@ public class DMSGroup extends DMSFile {
 	 * @throws DBMSException with expected error codes.
      */
 	public static Hashtable getGroupToIdMapping(DMSConfig conf) throws DMSException, DBMSException {
-		DMSFile file = new DMSFile(conf.GROUPS_FILE, conf);
-		
-		String[] ids = file.getIds();
-		Hashtable ret = new Hashtable();
-		
-		for(int i=0; i<ids.length; i++)
-			ret.put(ids[i], file.queryString("/DMS/groups/group[@id='"+ids[i]+"']/@groupname/string()")[0]);
+		return new Hashtable<String, String>(getGroupToIdMap(conf));
+	}
 
-		return ret;
+	/**
+     * Returns a mapping of the ids of the groups of the system to their
+     * groupnames, read in one query.
+     * @return a <code>Map</code> containing the ids of the groups
+     * 		of the system mapped to their groupnames, in document order.
+     * @param conf a DMSConfig object
+     * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+     */
+	public static Map<String, String> getGroupToIdMap(DMSConfig conf) throws DMSException, DBMSException {
+		DMSFile file = new DMSFile(conf.GROUPS_FILE, conf);
+		return file.project("/DMS/groups/group", "@id", "@groupname");
 	}
 
 	/**
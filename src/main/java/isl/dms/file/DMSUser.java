@@ -27,7 +27,9 @@
  */
 package isl.dms.file;
 
+import java.util.Collections;
 import java.util.Hashtable;
+import java.util.Map;
 
 import isl.dms.DMSConfig;
 import isl.dms.DMSException;
@@ -53,6 +55,10 @@ import isl.dms.DMSException;
  */
 public class DMSUser extends DMSFile {
 
+    private static final String USERNAME_OF_QUERY = "declare variable $id external; "
+            + "/DMS/users/*[@id = $id]/@username/string()";
+    private static final String ID_OF_QUERY = "declare variable $username external; "
+            + "/DMS/users/*[@username = $username]/@id/string()";
     private String username;
 
     /**
@@ -105,13 +111,8 @@ public class DMSUser extends DMSFile {
      */
     public static String getUsernameOf(int id, DMSConfig conf) throws DMSException {
         DMSFile file = new DMSFile(conf.USERS_FILE, conf);
-        String selectQuery = "/DMS/users/*[@id='" + id + "']";
-
-        if (file.exist(selectQuery) == false) {
-            return null;
-        }
-
-        String[] res = file.queryString(selectQuery + "/@username/string()");
+        String[] res = file.queryString(USERNAME_OF_QUERY,
+                Collections.singletonMap("id", String.valueOf(id)));
         if (res.length == 0) {
             return null;
         } else {
@@ -130,14 +131,8 @@ public class DMSUser extends DMSFile {
      */
     public static String getIdOf(String username, DMSConfig conf) throws DMSException {
         DMSFile file = new DMSFile(conf.USERS_FILE, conf);
-
-        String selectQuery = "/DMS/users/*[@username='" + username + "']";
-
-        if (file.exist(selectQuery) == false) {
-            return null;
-        }
-
-        String[] res = file.queryString(selectQuery + "/@id/string()");
+        String[] res = file.queryString(ID_OF_QUERY,
+                Collections.singletonMap("username", username));
         if (res.length == 0) {
             return null;
         } else {
@@ -156,16 +151,22 @@ public class DMSUser extends DMSFile {
      * @throws DMSException with expected error codes.
      */
     public static Hashtable getUserToIdMapping(DMSConfig conf) throws DMSException {
-        DMSFile file = new DMSFile(conf.USERS_FILE, conf);
-
-        String[] ids = file.getIds();
-        Hashtable ret = new Hashtable();
-
-        for (int i = 0; i < ids.length; i++) {
-            ret.put(ids[i], file.queryString("/DMS/users/user[@id='" + ids[i] + "']/@username/string()")[0]);
-        }
+        return new Hashtable<String, String>(getUserToIdMap(conf));
+    }
 
-        return ret;
+    /**
+     * Returns a mapping of the ids of the users of the system to their
+     * usernames, read in one query.
+     *
+     * @return a
+     * <code>Map</code> containing the ids of the users of the system mapped
+     * to their usernames, in document order.
+     * @param conf a DMSConfig object
+     * @throws DMSException with expected error codes.
+     */
+    public static Map<String, String> getUserToIdMap(DMSConfig conf) throws DMSException {
+        DMSFile file = new DMSFile(conf.USERS_FILE, conf);
+        return file.project("/DMS/users/user", "@id", "@username");
     }
 
     /**
@@ -333,7 +334,7 @@ public class DMSUser extends DMSFile {
      * @return
      */
     private static int newUserId(DMSConfig conf) {
-        return DMSFile.newId(conf.USERS_FILE, "/DMS/users/user/@id", conf);
+        return DMSFile.newId(conf.USERS_FILE, conf);
     }
 
     private String queryMe() {
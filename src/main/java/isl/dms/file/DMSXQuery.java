@@ -551,7 +551,7 @@ public class DMSXQuery extends DMSFile {
             throw new DMSException("Query does not have input " + id);
         }
         String selectQuery = this.queryMe() + "/inputs/input[@id='" + id + "']/@parameter";
-        this.DBfile.xUpdate(selectQuery, (flag) ? "yes" : "no");
+        this.setData(selectQuery, (flag) ? "yes" : "no");
     }
 
     /**
@@ -639,7 +639,7 @@ public class DMSXQuery extends DMSFile {
      */
     public String getFromInput(int id, String name) throws DMSException, DBMSException {
         String query = this.queryMe() + "/inputs/input[@id='" + id + "']/" + name;
-        if (this.DBfile.exist(query)) {
+        if (this.exist(query)) {
             String[] ret = this.queryString(query + "/text()");
             if (ret.length == 0) {
                 return "";
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.file;
+
+import isl.dbms.DBCollection;
+import isl.dbms.DBFile;
+import isl.dbms.DBMSException;
+import isl.dms.DMSConfig;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An <code>IdSequence</code> hands out the ids of the 'entities' of a
+ * <code>DMSFile</code>. The next free id of every sequence is kept in a small
+ * counter file (<code>DMSConfig.SEQUENCES_FILE</code>):
+ * <br>
+ * <code>
+ * &LT;sequences&GT;&LT;sequence name="DMSUsers.xml" next="41"/&GT;&LT;/sequences&GT;
+ * </code>
+ * <br><br>
+ * Ids are reserved in blocks of <code>DMSConfig.ID_BLOCK_SIZE</code>: the
+ * counter is advanced with a compare-and-set XUpdate, which only matches the
+ * counter if it still holds the value that was read, and the ids of the
+ * block are then handed out from memory. Processes sharing the database
+ * therefore never get the same id, at the cost of gaps in the ids when a
+ * process stops before using its whole block. <br><br>
+ * A sequence that is not in the counter file yet starts after the largest
+ * id in the registry file.
+ */
+public final class IdSequence {
+
+    private static final ConcurrentHashMap<String, IdSequence> SEQUENCES = new ConcurrentHashMap<String, IdSequence>();
+    private static final int MAX_ATTEMPTS = 50;
+    private static final String NEXT_QUERY = "declare variable $name external; "
+            + "/sequences/sequence[@name = $name]/@next/string()";
+    private static final String CREATE_QUERY = "declare variable $collection external; "
+            + "declare variable $name external; "
+            + "if (doc-available(concat($collection, '/', $name))) then () "
+            + "else xmldb:store($collection, $name, <sequences/>)";
+    private final String name;
+    private final DMSConfig conf;
+    private long next = 0;
+    private long limit = 0;
+
+    private IdSequence(String name, DMSConfig conf) {
+        this.name = name;
+        this.conf = conf;
+    }
+
+    /**
+     * Returns the sequence of the ids of a registry file.
+     *
+     * @param file the name of the file.
+     * @param conf a DMSConfig object.
+     * @return the <code>IdSequence</code> of the file.
+     */
+    public static IdSequence of(String file, DMSConfig conf) {
+        String key = conf.DB + "|" + conf.COLLECTION + "|" + file;
+        IdSequence sequence = SEQUENCES.get(key);
+        if (sequence == null) {
+            sequence = new IdSequence(file, conf);
+            IdSequence existing = SEQUENCES.putIfAbsent(key, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns a new id. A new block of ids is reserved in the database when
+     * the current one is used up.
+     *
+     * @return a new id.
+     * @throws DBMSException with expected error codes.
+     */
+    public synchronized int next() throws DBMSException {
+        if (this.next >= this.limit) {
+            reserve();
+        }
+        return (int) this.next++;
+    }
+
+    /**
+     * Reserves the next block of ids, retrying when another process advanced
+     * the counter in the meantime.
+     */
+    private void reserve() throws DBMSException {
+        int block = Math.max(1, this.conf.ID_BLOCK_SIZE);
+        DBFile counter = counterFile();
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            String[] current = counter.queryString(NEXT_QUERY, Collections.singletonMap("name", this.name));
+            if (current.length == 0) {
+                start(counter);
+                continue;
+            }
+            long first = Long.parseLong(current[0].trim());
+            long modified = counter.xUpdate("/sequences/sequence[@name='" + this.name + "'][@next='" + first + "']/@next",
+                    String.valueOf(first + block));
+            if (modified > 0) {
+                this.next = first;
+                this.limit = first + block;
+                return;
+            }
+        }
+        throw new DBMSException("Could not reserve ids for " + this.name + " after " + MAX_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Adds the sequence to the counter file, starting after the largest id
+     * in the registry file. The append only matches if no other process has
+     * added the sequence first.
+     */
+    private void start(DBFile counter) throws DBMSException {
+        int first = DMSFile.newId(this.name, "/DMS/*[1]/*/@id", this.conf);
+        counter.xAppend("/sequences[not(sequence[@name='" + this.name + "'])]",
+                "<sequence name=\"" + this.name + "\" next=\"" + first + "\"/>");
+    }
+
+    /**
+     * Returns the counter file, creating it if missing. The file is created
+     * by a single query that stores it only if it does not exist on the
+     * server, so a counter file holding reserved sequences is never
+     * replaced.
+     */
+    private DBFile counterFile() throws DBMSException {
+        try {
+            return new DBFile(this.conf.DB, this.conf.COLLECTION, this.conf.SEQUENCES_FILE,
+                    this.conf.DB_USERNAME, this.conf.DB_PASSWORD);
+        } catch (DBMSException notFound) {
+            DBCollection col = new DBCollection(this.conf.DB, this.conf.COLLECTION,
+                    this.conf.DB_USERNAME, this.conf.DB_PASSWORD);
+            Map<String, Object> variables = new HashMap<String, Object>();
+            variables.put("collection", col.getName());
+            variables.put("name", this.conf.SEQUENCES_FILE);
+            col.query(CREATE_QUERY, variables);
+            return new DBFile(this.conf.DB, this.conf.COLLECTION, this.conf.SEQUENCES_FILE,
+                    this.conf.DB_USERNAME, this.conf.DB_PASSWORD);
+        }
+    }
+}
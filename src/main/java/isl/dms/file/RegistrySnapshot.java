@@ -0,0 +1,409 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.file;
+
+import isl.dbms.DBFile;
+import isl.dbms.DBMSException;
+import isl.dms.DMSConfig;
+import isl.dms.xml.XMLParser;
+import isl.dms.xml.XMLSerializer;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * A parsed, in-memory copy of a DMS registry file (users, groups, tags...),
+ * used by <code>DMSFile</code> when <code>DMSConfig.LOCAL_READS</code> is set.
+ * XPath queries are compiled with <code>javax.xml.xpath</code> and evaluated
+ * against the copy. Queries that XPath 1.0 cannot express (XQuery, most
+ * XPath 2.0 functions) are reported as unsupported so that the caller can
+ * send them to the database instead. A trailing <code>/string()</code> step
+ * is accepted and returns the string values of the selected nodes. <br>
+ * Queries made of <code>declare variable $name external;</code> declarations
+ * followed by an XPath expression are evaluated with the values bound to the
+ * XPath variables. <br>
+ * <br> The copy is dropped by <code>invalidate</code>, which
+ * <code>DMSFile</code> calls after every write, and is checked against the
+ * last modification time of the file in the database once it is older than
+ * <code>DMSConfig.LOCAL_READS_MAX_AGE</code>, to pick up changes made by
+ * other processes. The file is read and parsed outside the lock the queries
+ * are evaluated under, and a reader that finds the copy old checks it while
+ * the others keep reading the current one.
+ */
+final class RegistrySnapshot {
+
+    private static final ConcurrentHashMap<String, RegistrySnapshot> SNAPSHOTS = new ConcurrentHashMap<String, RegistrySnapshot>();
+    private static final int MAX_EXPRESSIONS = 256;
+    private static final XMLSerializer SERIALIZER = new XMLSerializer().setXmlDeclaration(false).setIndent(4);
+    private static final String STRING_STEP = "/string()";
+    private static final Pattern EXTERNAL = Pattern.compile("\\s*declare\\s+variable\\s+\\$([\\w.-]+)\\s+external\\s*;");
+    private final String file;
+    private final DMSConfig conf;
+    private final XPath xpath = XPathFactory.newInstance().newXPath();
+    private final LinkedHashMap<String, XPathExpression> expressions = new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+            return size() > MAX_EXPRESSIONS;
+        }
+    };
+    private final HashSet<String> unsupported = new HashSet<String>();
+    private final AtomicReference<Copy> copy = new AtomicReference<Copy>();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean checking = new AtomicBoolean();
+    private final Object loading = new Object();
+    private Map<String, Object> bindings;
+
+    private RegistrySnapshot(String file, DMSConfig conf) {
+        this.file = file;
+        this.conf = conf;
+        this.xpath.setXPathVariableResolver(name -> (this.bindings == null) ? null : this.bindings.get(name.getLocalPart()));
+    }
+
+    /**
+     * A parsed copy of the file and the modification time it was read at.
+     */
+    private static final class Copy {
+
+        final Document document;
+        final Date modified;
+        volatile long checked;
+
+        Copy(Document document, Date modified, long checked) {
+            this.document = document;
+            this.modified = modified;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * Returns the snapshot of a registry file, creating an empty one the
+     * first time. The file is read on the first query.
+     */
+    static RegistrySnapshot get(String file, DMSConfig conf) {
+        String key = key(file, conf);
+        RegistrySnapshot snapshot = SNAPSHOTS.get(key);
+        if (snapshot == null) {
+            snapshot = new RegistrySnapshot(file, conf);
+            RegistrySnapshot existing = SNAPSHOTS.putIfAbsent(key, snapshot);
+            if (existing != null) {
+                snapshot = existing;
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Drops the snapshots of a registry file, those of every user, since a
+     * write by one user changes what all of them read.
+     */
+    static void invalidate(String file, DMSConfig conf) {
+        for (RegistrySnapshot snapshot : SNAPSHOTS.values()) {
+            if (snapshot.file.equals(file)
+                    && String.valueOf(snapshot.conf.DB).equals(String.valueOf(conf.DB))
+                    && String.valueOf(snapshot.conf.COLLECTION).equals(String.valueOf(conf.COLLECTION))) {
+                snapshot.invalidate();
+            }
+        }
+    }
+
+    /**
+     * Drops all snapshots.
+     */
+    static void invalidateAll() {
+        for (RegistrySnapshot snapshot : SNAPSHOTS.values()) {
+            snapshot.invalidate();
+        }
+    }
+
+    void invalidate() {
+        this.generation.incrementAndGet();
+        this.copy.set(null);
+    }
+
+    /**
+     * Evaluates a query against the snapshot.
+     *
+     * @param query the XPath query.
+     * @return the results as <code>String</code>s, in the form
+     * <code>DBFile.queryString</code> returns them, or <code>null</code> if
+     * the query cannot be evaluated locally.
+     * @throws DBMSException if the snapshot cannot be loaded.
+     */
+    String[] evaluate(String query) throws DBMSException {
+        return evaluate(query, null);
+    }
+
+    /**
+     * Evaluates a query with external variables against the snapshot. The
+     * query may start with <code>declare variable $name external;</code>
+     * declarations, whose values are taken from <code>variables</code>.
+     *
+     * @param query the query.
+     * @param variables the values of the external variables, by name, or
+     * <code>null</code>.
+     * @return the results as <code>String</code>s, in the form
+     * <code>DBFile.queryString</code> returns them, or <code>null</code> if
+     * the query cannot be evaluated locally.
+     * @throws DBMSException if the snapshot cannot be loaded.
+     */
+    String[] evaluate(String query, Map<String, ?> variables) throws DBMSException {
+        Map<String, Object> values = new HashMap<String, Object>();
+        String path = declarations(query, variables, values);
+        if (path == null) {
+            return null;
+        }
+        boolean strings = path.endsWith(STRING_STEP);
+        if (strings) {
+            path = path.substring(0, path.length() - STRING_STEP.length());
+        }
+        synchronized (this) {
+            if (compile(path) == null) {
+                return null;
+            }
+        }
+        Document doc = document();
+        synchronized (this) {
+            XPathExpression expression = compile(path);
+            if (expression == null) {
+                return null;
+            }
+            this.bindings = values;
+            try {
+                NodeList nodes;
+                try {
+                    nodes = (NodeList) expression.evaluate(doc, XPathConstants.NODESET);
+                } catch (XPathExpressionException notNodes) {
+                    if (strings) {
+                        throw notNodes;
+                    }
+                    // a string, number or boolean expression
+                    return new String[]{expression.evaluate(doc)};
+                }
+                String[] ret = new String[nodes.getLength()];
+                for (int i = 0; i < ret.length; i++) {
+                    Node node = nodes.item(i);
+                    ret[i] = (strings || node.getNodeType() != Node.ELEMENT_NODE)
+                            ? node.getTextContent()
+                            : serialize(node);
+                }
+                return ret;
+            } catch (XPathExpressionException e) {
+                this.unsupported.add(path);
+                this.expressions.remove(path);
+                return null;
+            } finally {
+                this.bindings = null;
+            }
+        }
+    }
+
+    /**
+     * Evaluates a projection against the snapshot: for every node selected by
+     * <code>entities</code>, the string values of <code>key</code> and
+     * <code>value</code>, evaluated with the node as context.
+     *
+     * @return the keys and values, interleaved, or <code>null</code> if the
+     * expressions cannot be evaluated locally.
+     * @throws DBMSException if the snapshot cannot be loaded.
+     */
+    String[] project(String entities, String key, String value) throws DBMSException {
+        synchronized (this) {
+            if (compile(entities) == null || compile(key) == null || compile(value) == null) {
+                return null;
+            }
+        }
+        Document doc = document();
+        synchronized (this) {
+            XPathExpression select = compile(entities);
+            XPathExpression keyExpression = compile(key);
+            XPathExpression valueExpression = compile(value);
+            if (select == null || keyExpression == null || valueExpression == null) {
+                return null;
+            }
+            try {
+                NodeList nodes = (NodeList) select.evaluate(doc, XPathConstants.NODESET);
+                String[] ret = new String[2 * nodes.getLength()];
+                for (int i = 0; i < nodes.getLength(); i++) {
+                    ret[2 * i] = keyExpression.evaluate(nodes.item(i));
+                    ret[2 * i + 1] = valueExpression.evaluate(nodes.item(i));
+                }
+                return ret;
+            } catch (XPathExpressionException e) {
+                this.unsupported.add(entities);
+                this.expressions.remove(entities);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Splits the external variable declarations off a query and collects the
+     * values of the declared variables.
+     *
+     * @return the expression after the declarations, or <code>null</code> if
+     * a declared variable has no value that XPath 1.0 can hold.
+     */
+    private static String declarations(String query, Map<String, ?> variables, Map<String, Object> values) {
+        Matcher declaration = EXTERNAL.matcher(query);
+        int at = 0;
+        while (declaration.region(at, query.length()).lookingAt()) {
+            Object value = (variables == null) ? null : variables.get(declaration.group(1));
+            if (value instanceof Number) {
+                value = ((Number) value).doubleValue();
+            } else if (!(value instanceof String || value instanceof Boolean)) {
+                return null;
+            }
+            values.put(declaration.group(1), value);
+            at = declaration.end();
+        }
+        return query.substring(at).trim();
+    }
+
+    private XPathExpression compile(String path) {
+        if (this.unsupported.contains(path)) {
+            return null;
+        }
+        XPathExpression expression = this.expressions.get(path);
+        if (expression == null) {
+            try {
+                expression = this.xpath.compile(path);
+            } catch (XPathExpressionException e) {
+                this.unsupported.add(path);
+                return null;
+            }
+            this.expressions.put(path, expression);
+        }
+        return expression;
+    }
+
+    /**
+     * Returns the parsed file, reading it from the database if there is no
+     * snapshot yet or if the file has changed since it was read. Called
+     * without holding the monitor of the snapshot, so that the queries on
+     * the current copy go on while the file is checked or read.
+     */
+    private Document document() throws DBMSException {
+        Copy current = this.copy.get();
+        if (current != null && this.conf.LOCAL_READS_MAX_AGE >= 0
+                && System.currentTimeMillis() - current.checked > this.conf.LOCAL_READS_MAX_AGE
+                && this.checking.compareAndSet(false, true)) {
+            try {
+                Date lastModified = open().getLastModificationTime();
+                if (lastModified == null || !lastModified.equals(current.modified)) {
+                    this.copy.compareAndSet(current, null);
+                    current = null;
+                } else {
+                    current.checked = System.currentTimeMillis();
+                }
+            } finally {
+                this.checking.set(false);
+            }
+        }
+        if (current != null) {
+            return current.document;
+        }
+        synchronized (this.loading) {
+            current = this.copy.get();
+            if (current != null) {
+                return current.document;
+            }
+            long generation = this.generation.get();
+            DBFile latest = open();
+            // the time is read first, so a change made while the content is
+            // read shows as a newer time at the next check
+            Date modified = latest.getLastModificationTime();
+            current = new Copy(parse(latest.getXMLAsString()), modified, System.currentTimeMillis());
+            this.copy.set(current);
+            if (this.generation.get() != generation) {
+                // written while it was read: keep it for this query only
+                this.copy.compareAndSet(current, null);
+            }
+            return current.document;
+        }
+    }
+
+    private DBFile open() throws DBMSException {
+        return new DBFile(this.conf.DB, this.conf.COLLECTION, this.file,
+                this.conf.DB_USERNAME, this.conf.DB_PASSWORD);
+    }
+
+    private static Document parse(String xml) throws DBMSException {
+        try {
+            Document doc = XMLParser.parse(xml);
+            stripWhitespace(doc.getDocumentElement());
+            return doc;
+        } catch (Exception e) {
+            throw new DBMSException(e);
+        }
+    }
+
+    /**
+     * Removes whitespace-only text nodes, as the database does when it
+     * stores a document, so that <code>text()</code> steps see the same
+     * nodes locally.
+     */
+    private static void stripWhitespace(Node node) {
+        Node child = node.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            if (child.getNodeType() == Node.TEXT_NODE && child.getNodeValue().trim().length() == 0) {
+                node.removeChild(child);
+            } else if (child.getNodeType() == Node.ELEMENT_NODE) {
+                stripWhitespace(child);
+            }
+            child = next;
+        }
+    }
+
+    private static String serialize(Node node) throws DBMSException {
+        try {
+            return SERIALIZER.toString(node);
+        } catch (Exception e) {
+            throw new DBMSException(e);
+        }
+    }
+
+    private static String key(String file, DMSConfig conf) {
+        return conf.DB + "|" + conf.COLLECTION + "|" + file + "|" + conf.DB_USERNAME;
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import java.util.IdentityHashMap;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+
+/**
+ * An array of the child nodes of a DOM node, with the position of every
+ * child and of the next and previous child of each type, so that
+ * <code>XMLElement</code> can find the index and the siblings of a node
+ * without scanning its parent. The index is kept on the parent node (as DOM
+ * user data) and dropped when a child is inserted or removed: the methods of
+ * <code>XMLElement</code> that change children drop it, and a listener for
+ * the DOM mutation events of the parent catches changes made directly on the
+ * DOM. With a DOM implementation without mutation events the index is not
+ * kept, and is built again for every lookup. <br>
+ * <br>
+ * The cached indexes of a document are read and written while holding the
+ * monitor of the document, so that threads reading a shared document do not
+ * race on its user data.
+ */
+final class ChildIndex {
+
+    private static final String KEY = ChildIndex.class.getName();
+    private static final String INSERTED = "DOMNodeInserted";
+    private static final String REMOVED = "DOMNodeRemoved";
+    /**
+     * Drops the index of the node it is registered on when one of its own
+     * children (not a descendant further down) is inserted or removed.
+     */
+    private static final EventListener LISTENER = event -> {
+        Node parent = (Node) event.getCurrentTarget();
+        if (event instanceof MutationEvent && ((MutationEvent) event).getRelatedNode() == parent) {
+            invalidate(parent);
+        }
+    };
+    private final Node parent;
+    private final Node[] nodes;
+    private final IdentityHashMap<Node, Integer> positions;
+    /**
+     * For every position, the first position at or after it holding a child
+     * of a type, or -1: one array for elements and one for text.
+     */
+    private final int[] nextElement, nextText;
+    /**
+     * For every position, the last position before it holding a child of a
+     * type, or -1.
+     */
+    private final int[] previousElement, previousText;
+
+    private ChildIndex(Node parent) {
+        this.parent = parent;
+        int length = parent.getChildNodes().getLength();
+        this.nodes = new Node[length];
+        this.positions = new IdentityHashMap<Node, Integer>(length);
+        int i = 0;
+        for (Node n = parent.getFirstChild(); n != null && i < length; n = n.getNextSibling()) {
+            this.nodes[i] = n;
+            this.positions.put(n, i++);
+        }
+        this.nextElement = new int[length + 1];
+        this.nextText = new int[length + 1];
+        this.previousElement = new int[length + 1];
+        this.previousText = new int[length + 1];
+        this.nextElement[length] = this.nextText[length] = -1;
+        for (i = length - 1; i >= 0; i--) {
+            this.nextElement[i] = matches(this.nodes[i], XMLElement.ELEMENT) ? i : this.nextElement[i + 1];
+            this.nextText[i] = matches(this.nodes[i], XMLElement.TEXT) ? i : this.nextText[i + 1];
+        }
+        this.previousElement[0] = this.previousText[0] = -1;
+        for (i = 1; i <= length; i++) {
+            this.previousElement[i] = matches(this.nodes[i - 1], XMLElement.ELEMENT) ? i - 1 : this.previousElement[i - 1];
+            this.previousText[i] = matches(this.nodes[i - 1], XMLElement.TEXT) ? i - 1 : this.previousText[i - 1];
+        }
+    }
+
+    /**
+     * Returns the index of the children of a node, building it if it is
+     * missing.
+     */
+    static ChildIndex of(Node parent) {
+        if (!observable(parent)) {
+            return new ChildIndex(parent);
+        }
+        synchronized (lock(parent)) {
+            Object cached = parent.getUserData(KEY);
+            if (cached instanceof ChildIndex) {
+                return (ChildIndex) cached;
+            }
+            ChildIndex index = new ChildIndex(parent);
+            // registering again replaces the previous registration
+            ((EventTarget) parent).addEventListener(INSERTED, LISTENER, false);
+            ((EventTarget) parent).addEventListener(REMOVED, LISTENER, false);
+            parent.setUserData(KEY, index, null);
+            return index;
+        }
+    }
+
+    /**
+     * Drops the index of the children of a node and builds it again.
+     */
+    static ChildIndex rebuild(Node parent) {
+        invalidate(parent);
+        return of(parent);
+    }
+
+    /**
+     * Drops the index of the children of a node.
+     */
+    static void invalidate(Node parent) {
+        if (parent == null || !observable(parent)) {
+            return;
+        }
+        synchronized (lock(parent)) {
+            parent.setUserData(KEY, null, null);
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the DOM implementation of a node sends
+     * mutation events, so that an index of its children can be kept.
+     */
+    private static boolean observable(Node parent) {
+        if (!(parent instanceof EventTarget)) {
+            return false;
+        }
+        Document doc = (parent.getNodeType() == Node.DOCUMENT_NODE) ? (Document) parent : parent.getOwnerDocument();
+        return doc != null && doc.getImplementation().hasFeature("MutationEvents", "2.0");
+    }
+
+    /**
+     * @return the object whose monitor guards the user data of a node: its
+     * document.
+     */
+    private static Object lock(Node parent) {
+        Document doc = parent.getOwnerDocument();
+        return (doc == null) ? parent : doc;
+    }
+
+    /**
+     * @return the position of a child, or -1 if it is not a child.
+     */
+    int indexOf(Node child) {
+        Integer position = this.positions.get(child);
+        return (position == null) ? -1 : position;
+    }
+
+    int size() {
+        return this.nodes.length;
+    }
+
+    Node get(int position) {
+        return this.nodes[position];
+    }
+
+    /**
+     * @return the first child of a type after a position, or
+     * <code>null</code>.
+     */
+    Node next(int position, int type) {
+        int from = Math.max(position + 1, 0);
+        if (from >= this.nodes.length) {
+            return null;
+        }
+        int at;
+        switch (type) {
+            case XMLElement.ELEMENT:
+                at = this.nextElement[from];
+                break;
+            case XMLElement.TEXT:
+                at = this.nextText[from];
+                break;
+            case XMLElement.ALL:
+                at = from;
+                break;
+            default:
+                at = -1;
+        }
+        return (at < 0) ? null : this.nodes[at];
+    }
+
+    /**
+     * @return the last child of a type before a position, or
+     * <code>null</code>.
+     */
+    Node previous(int position, int type) {
+        if (position <= 0) {
+            return null;
+        }
+        int before = Math.min(position, this.nodes.length);
+        int at;
+        switch (type) {
+            case XMLElement.ELEMENT:
+                at = this.previousElement[before];
+                break;
+            case XMLElement.TEXT:
+                at = this.previousText[before];
+                break;
+            case XMLElement.ALL:
+                at = before - 1;
+                break;
+            default:
+                at = -1;
+        }
+        return (at < 0) ? null : this.nodes[at];
+    }
+
+    /**
+     * @return <code>true</code> if a node (possibly <code>null</code>) is
+     * still a child of the indexed node.
+     */
+    boolean holds(Node n) {
+        return n == null || n.getParentNode() == this.parent;
+    }
+
+    /**
+     * @return wrappers for the children of a type, in document order, or
+     * <code>null</code> if one of them is no longer a child.
+     */
+    XMLElement[] children(int type) {
+        int count = 0;
+        for (Node n : this.nodes) {
+            if (matches(n, type)) {
+                if (!holds(n)) {
+                    return null;
+                }
+                count++;
+            }
+        }
+        XMLElement[] ret = new XMLElement[count];
+        int i = 0;
+        for (Node n : this.nodes) {
+            if (matches(n, type)) {
+                ret[i++] = new XMLElement(n);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return <code>true</code> if a node is of a type (<code>ELEMENT</code>,
+     * <code>TEXT</code> or <code>ALL</code>) of <code>XMLElement</code>.
+     */
+    static boolean matches(Node n, int type) {
+        switch (type) {
+            case XMLElement.ELEMENT:
+                return n.getNodeType() == Node.ELEMENT_NODE;
+            case XMLElement.TEXT:
+                return n.getNodeType() == Node.TEXT_NODE;
+            case XMLElement.ALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
@@ -0,0 +1,367 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dbms.DBFile;
+import isl.dbms.DBMSException;
+import isl.dms.DMSException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * A <code>CompactDocument</code> is a read-only XML tree that needs a
+ * fraction of the memory of a DOM tree, meant for documents that are cached
+ * and only read. <br> <br>
+ * Nodes are numbers (in document order) rather than objects: the structure
+ * of the tree is kept in <code>int</code> arrays (parent, first child, next
+ * sibling and name of every node), element and attribute names are kept
+ * once in a name table, and all text and attribute values share a single
+ * character buffer. Only elements and text are kept; comments and
+ * processing instructions are dropped. The tree is read through
+ * <code>CompactElement</code>, which offers the read methods of
+ * <code>XMLElement</code>.
+ */
+public final class CompactDocument {
+
+    static final int NONE = -1;
+    private static final SAXParserFactory FACTORY = SAXParserFactory.newInstance();
+
+    int count;
+    int[] parent;
+    int[] firstChild;
+    int[] nextSibling;
+    /** Name of an element node, <code>NONE</code> for a text node. */
+    int[] name;
+    /** Text node: start of the text; element node: index of the first attribute. */
+    int[] offset;
+    /** Text node: length of the text; element node: number of attributes. */
+    int[] length;
+
+    int attributeCount;
+    int[] attributeName;
+    int[] attributeOffset;
+    int[] attributeLength;
+
+    String[] names;
+    private final HashMap<String, Integer> nameIds = new HashMap<String, Integer>();
+    char[] chars;
+    int charCount;
+
+    private CompactDocument() {
+        int capacity = 256;
+        this.parent = new int[capacity];
+        this.firstChild = new int[capacity];
+        this.nextSibling = new int[capacity];
+        this.name = new int[capacity];
+        this.offset = new int[capacity];
+        this.length = new int[capacity];
+        this.attributeName = new int[64];
+        this.attributeOffset = new int[64];
+        this.attributeLength = new int[64];
+        this.names = new String[32];
+        this.chars = new char[4096];
+    }
+
+    /**
+     * Parses an XML <code>String</code> into a <code>CompactDocument</code>.
+     *
+     * @param xml the XML to parse.
+     * @return the parsed document.
+     * @throws DMSException with expected error codes.
+     */
+    public static CompactDocument parse(String xml) throws DMSException {
+        return parse(new InputSource(new StringReader(xml)));
+    }
+
+    /**
+     * Parses XML read from a stream into a <code>CompactDocument</code>.
+     *
+     * @param xml the stream to read the XML from.
+     * @return the parsed document.
+     * @throws DMSException with expected error codes.
+     */
+    public static CompactDocument parse(InputStream xml) throws DMSException {
+        return parse(new InputSource(xml));
+    }
+
+    /**
+     * Reads an XML file of the database into a <code>CompactDocument</code>,
+     * without building an intermediate <code>String</code> or DOM tree.
+     *
+     * @param file the XML file.
+     * @return the document.
+     * @throws DBMSException with expected error codes.
+     */
+    public static CompactDocument load(DBFile file) throws DBMSException {
+        Builder builder = new Builder();
+        file.getXMLAsSAX(builder);
+        return builder.finish();
+    }
+
+    private static CompactDocument parse(InputSource source) throws DMSException {
+        Builder builder = new Builder();
+        try {
+            FACTORY.newSAXParser().parse(source, builder);
+        } catch (ParserConfigurationException ex) {
+            throw new DMSException(ex.getMessage());
+        } catch (SAXException ex) {
+            throw new DMSException(ex.getMessage());
+        } catch (IOException ex) {
+            throw new DMSException(ex.getMessage());
+        }
+        return builder.finish();
+    }
+
+    /**
+     * @return the document element.
+     * @throws DMSException if the document has no element.
+     */
+    public CompactElement getRootElement() throws DMSException {
+        if (this.count == 0) {
+            throw new DMSException("Empty document");
+        }
+        return new CompactElement(this, 0);
+    }
+
+    /**
+     * @return the number of element and text nodes of the document.
+     */
+    public int getNodeCount() {
+        return this.count;
+    }
+
+    /**
+     * @return an estimate, in bytes, of the memory the document occupies.
+     */
+    public long getMemorySize() {
+        long size = 6L * 4 * this.parent.length
+                + 3L * 4 * this.attributeName.length
+                + 2L * this.chars.length;
+        for (int i = 0; i < this.nameIds.size(); i++) {
+            size += 48 + 2L * this.names[i].length();
+        }
+        return size;
+    }
+
+    /**
+     * @return the id of a name, or <code>NONE</code> if no node has it.
+     */
+    int nameId(String elementName) {
+        Integer id = this.nameIds.get(elementName);
+        return (id == null) ? NONE : id;
+    }
+
+    String text(int start, int len) {
+        return new String(this.chars, start, len);
+    }
+
+    /**
+     * @return the node after the last descendant of a node.
+     */
+    int end(int node) {
+        for (int n = node; n != NONE; n = this.parent[n]) {
+            if (this.nextSibling[n] != NONE) {
+                return this.nextSibling[n];
+            }
+        }
+        return this.count;
+    }
+
+    private int intern(String s) {
+        Integer id = this.nameIds.get(s);
+        if (id == null) {
+            id = this.nameIds.size();
+            if (id == this.names.length) {
+                this.names = Arrays.copyOf(this.names, id * 2);
+            }
+            this.names[id] = s;
+            this.nameIds.put(s, id);
+        }
+        return id;
+    }
+
+    private int appendChars(char[] ch, int start, int len) {
+        if (this.charCount + len > this.chars.length) {
+            this.chars = Arrays.copyOf(this.chars, Math.max(this.chars.length * 2, this.charCount + len));
+        }
+        System.arraycopy(ch, start, this.chars, this.charCount, len);
+        int at = this.charCount;
+        this.charCount += len;
+        return at;
+    }
+
+    private int appendChars(String s) {
+        char[] ch = s.toCharArray();
+        return appendChars(ch, 0, ch.length);
+    }
+
+    private int newNode(int parentNode, int lastChild, int nameId) {
+        if (this.count == this.parent.length) {
+            int capacity = this.count * 2;
+            this.parent = Arrays.copyOf(this.parent, capacity);
+            this.firstChild = Arrays.copyOf(this.firstChild, capacity);
+            this.nextSibling = Arrays.copyOf(this.nextSibling, capacity);
+            this.name = Arrays.copyOf(this.name, capacity);
+            this.offset = Arrays.copyOf(this.offset, capacity);
+            this.length = Arrays.copyOf(this.length, capacity);
+        }
+        int n = this.count++;
+        this.parent[n] = parentNode;
+        this.firstChild[n] = NONE;
+        this.nextSibling[n] = NONE;
+        this.name[n] = nameId;
+        if (lastChild != NONE) {
+            this.nextSibling[lastChild] = n;
+        } else if (parentNode != NONE) {
+            this.firstChild[parentNode] = n;
+        }
+        return n;
+    }
+
+    private void addAttribute(String attributeQName, String value) {
+        if (this.attributeCount == this.attributeName.length) {
+            int capacity = this.attributeCount * 2;
+            this.attributeName = Arrays.copyOf(this.attributeName, capacity);
+            this.attributeOffset = Arrays.copyOf(this.attributeOffset, capacity);
+            this.attributeLength = Arrays.copyOf(this.attributeLength, capacity);
+        }
+        this.attributeName[this.attributeCount] = intern(attributeQName);
+        this.attributeOffset[this.attributeCount] = appendChars(value);
+        this.attributeLength[this.attributeCount] = value.length();
+        this.attributeCount++;
+    }
+
+    private void trim() {
+        this.parent = Arrays.copyOf(this.parent, this.count);
+        this.firstChild = Arrays.copyOf(this.firstChild, this.count);
+        this.nextSibling = Arrays.copyOf(this.nextSibling, this.count);
+        this.name = Arrays.copyOf(this.name, this.count);
+        this.offset = Arrays.copyOf(this.offset, this.count);
+        this.length = Arrays.copyOf(this.length, this.count);
+        this.attributeName = Arrays.copyOf(this.attributeName, this.attributeCount);
+        this.attributeOffset = Arrays.copyOf(this.attributeOffset, this.attributeCount);
+        this.attributeLength = Arrays.copyOf(this.attributeLength, this.attributeCount);
+        this.names = Arrays.copyOf(this.names, this.nameIds.size());
+        this.chars = Arrays.copyOf(this.chars, this.charCount);
+    }
+
+    /**
+     * Builds a <code>CompactDocument</code> from SAX events.
+     */
+    private static final class Builder extends DefaultHandler {
+
+        private final CompactDocument doc = new CompactDocument();
+        /** Open elements and the last child of each. */
+        private int[] open = new int[32];
+        private int[] last = new int[32];
+        private int depth = -1;
+        private String[][] prefixes = new String[0][];
+        private int prefixCount;
+
+        public void startPrefixMapping(String prefix, String uri) {
+            if (this.prefixCount == this.prefixes.length) {
+                this.prefixes = Arrays.copyOf(this.prefixes, this.prefixCount * 2 + 2);
+            }
+            this.prefixes[this.prefixCount++] = new String[]{prefix.length() == 0 ? "xmlns" : "xmlns:" + prefix, uri};
+        }
+
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            if (this.depth < 0 && this.doc.count > 0) {
+                throw new SAXException("More than one document element");
+            }
+            int parentNode = (this.depth >= 0) ? this.open[this.depth] : NONE;
+            int lastChild = (this.depth >= 0) ? this.last[this.depth] : NONE;
+            int n = this.doc.newNode(parentNode, lastChild, this.doc.intern(qualified(localName, qName)));
+            if (this.depth >= 0) {
+                this.last[this.depth] = n;
+            }
+            this.doc.offset[n] = this.doc.attributeCount;
+            for (int i = 0; i < attributes.getLength(); i++) {
+                this.doc.addAttribute(qualified(attributes.getLocalName(i), attributes.getQName(i)),
+                        attributes.getValue(i));
+            }
+            for (int i = 0; i < this.prefixCount; i++) {
+                if (attributes.getIndex(this.prefixes[i][0]) < 0) {
+                    this.doc.addAttribute(this.prefixes[i][0], this.prefixes[i][1]);
+                }
+            }
+            this.prefixCount = 0;
+            this.doc.length[n] = this.doc.attributeCount - this.doc.offset[n];
+            if (++this.depth == this.open.length) {
+                this.open = Arrays.copyOf(this.open, this.depth * 2);
+                this.last = Arrays.copyOf(this.last, this.depth * 2);
+            }
+            this.open[this.depth] = n;
+            this.last[this.depth] = NONE;
+        }
+
+        public void endElement(String uri, String localName, String qName) {
+            this.depth--;
+        }
+
+        public void characters(char[] ch, int start, int len) {
+            if (this.depth < 0 || len == 0) {
+                return;
+            }
+            CompactDocument d = this.doc;
+            int lastChild = this.last[this.depth];
+            if (lastChild != NONE && d.name[lastChild] == NONE) {
+                // SAX may split a text node: continue the previous one
+                d.appendChars(ch, start, len);
+                d.length[lastChild] += len;
+                return;
+            }
+            int n = d.newNode(this.open[this.depth], lastChild, NONE);
+            d.offset[n] = d.appendChars(ch, start, len);
+            d.length[n] = len;
+            this.last[this.depth] = n;
+        }
+
+        public void ignorableWhitespace(char[] ch, int start, int len) {
+            characters(ch, start, len);
+        }
+
+        CompactDocument finish() {
+            this.doc.trim();
+            return this.doc;
+        }
+
+        private static String qualified(String localName, String qName) {
+            return (qName != null && qName.length() > 0) ? qName : localName;
+        }
+    }
+}
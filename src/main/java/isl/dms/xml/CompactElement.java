@@ -0,0 +1,399 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dms.DMSException;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * A <code>CompactElement</code> is an element or text node of a
+ * <code>CompactDocument</code>. It offers the read methods of
+ * <code>XMLElement</code>, with the same results, and holds no more than a
+ * reference to the document and the number of the node.
+ */
+public final class CompactElement {
+
+    private static final int NONE = CompactDocument.NONE;
+    private final CompactDocument doc;
+    private final int node;
+
+    CompactElement(CompactDocument doc, int node) {
+        this.doc = doc;
+        this.node = node;
+    }
+
+    /**
+     * @return the <code>CompactDocument</code> of this node.
+     */
+    public CompactDocument getDocument() {
+        return this.doc;
+    }
+
+    /**
+     * @return <code>true</code> if this node is a text node.
+     */
+    public boolean isText() {
+        return this.doc.name[this.node] == NONE;
+    }
+
+    /**
+     * Returns name of element or "Text" followed by the index if this is a
+     * text node.
+     *
+     * @return the name as a <code>String</code>.
+     */
+    public String getName() {
+        if (isText()) {
+            return "Text" + getIndex();
+        }
+        return this.doc.names[this.doc.name[this.node]];
+    }
+
+    /**
+     * Returns the index of this node among the children of its parent.
+     *
+     * @return the index, or -1 for the document element.
+     */
+    public int getIndex() {
+        int p = this.doc.parent[this.node];
+        if (p == NONE) {
+            return -1;
+        }
+        int index = 0;
+        for (int n = this.doc.firstChild[p]; n != this.node; n = this.doc.nextSibling[n]) {
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return the parent element, or <code>null</code> for the document
+     * element.
+     */
+    public CompactElement getParent() {
+        return wrap(this.doc.parent[this.node]);
+    }
+
+    /**
+     * @return the first child, or <code>null</code> if there are no
+     * children.
+     */
+    public CompactElement getFirstChild() {
+        return wrap(this.doc.firstChild[this.node]);
+    }
+
+    /**
+     * @return the next sibling, or <code>null</code> if there is none.
+     */
+    public CompactElement getNextSibling() {
+        return wrap(this.doc.nextSibling[this.node]);
+    }
+
+    /**
+     * Returns all children of a specific type.
+     *
+     * @param type Type of children to return (<code>XMLElement.ELEMENT</code>,
+     * <code>TEXT</code> or <code>ALL</code>).
+     * @return the children as a <code>CompactElement[]</code>.
+     * @throws DMSException if this is a text node.
+     */
+    public CompactElement[] getChildren(int type) throws DMSException {
+        checkElement();
+        int count = 0;
+        for (int n = this.doc.firstChild[this.node]; n != NONE; n = this.doc.nextSibling[n]) {
+            if (matches(n, type)) {
+                count++;
+            }
+        }
+        CompactElement[] children = new CompactElement[count];
+        count = 0;
+        for (int n = this.doc.firstChild[this.node]; n != NONE; n = this.doc.nextSibling[n]) {
+            if (matches(n, type)) {
+                children[count++] = new CompactElement(this.doc, n);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns child elements with a given tag name.
+     *
+     * @param childName the name of the tag to match on.
+     * @return the children as a <code>CompactElement[]</code>.
+     * @throws DMSException if this is a text node.
+     */
+    public CompactElement[] getChildren(String childName) throws DMSException {
+        return getChildren(childName, null, null);
+    }
+
+    /**
+     * Returns child elements with a given tag name, attribute name and value.
+     *
+     * @param childName the name of the tag to match on.
+     * @param attributeName the name of the attribute to match on.
+     * @param attributeValue the value of the attribute to match on.
+     * @return the children as a <code>CompactElement[]</code>.
+     * @throws DMSException if this is a text node.
+     */
+    public CompactElement[] getChildren(String childName, String attributeName, String attributeValue)
+            throws DMSException {
+        checkElement();
+        int id = this.doc.nameId(childName);
+        int count = 0;
+        for (int n = this.doc.firstChild[this.node]; n != NONE; n = this.doc.nextSibling[n]) {
+            if (id != NONE && this.doc.name[n] == id && hasAttribute(n, attributeName, attributeValue)) {
+                count++;
+            }
+        }
+        CompactElement[] children = new CompactElement[count];
+        count = 0;
+        for (int n = this.doc.firstChild[this.node]; n != NONE && count < children.length; n = this.doc.nextSibling[n]) {
+            if (this.doc.name[n] == id && hasAttribute(n, attributeName, attributeValue)) {
+                children[count++] = new CompactElement(this.doc, n);
+            }
+        }
+        return children;
+    }
+
+    /**
+     * Returns all descendant elements with the given name, in document
+     * order. The name "*" matches all elements.
+     *
+     * @param elementName the name of the elements.
+     * @return the elements as a <code>CompactElement[]</code>.
+     * @throws DMSException if this is a text node.
+     */
+    public CompactElement[] getElementsNamed(String elementName) throws DMSException {
+        checkElement();
+        boolean all = elementName.equals("*");
+        int id = this.doc.nameId(elementName);
+        if (!all && id == NONE) {
+            return new CompactElement[0];
+        }
+        // nodes are numbered in document order, so descendants are a range
+        int end = this.doc.end(this.node);
+        int count = 0;
+        for (int n = this.node + 1; n < end; n++) {
+            if (all ? this.doc.name[n] != NONE : this.doc.name[n] == id) {
+                count++;
+            }
+        }
+        CompactElement[] elements = new CompactElement[count];
+        count = 0;
+        for (int n = this.node + 1; n < end; n++) {
+            if (all ? this.doc.name[n] != NONE : this.doc.name[n] == id) {
+                elements[count++] = new CompactElement(this.doc, n);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Gets the first child element with the given name.
+     *
+     * @param childName the name of the tag to match on.
+     * @param deepSearch if <code>true</code> the search is performed on all
+     * levels, otherwise only direct children are searched.
+     * @return the element, or <code>null</code> if one can't be found.
+     * @throws DMSException if this is a text node.
+     */
+    public CompactElement getFirstElementNamed(String childName, boolean deepSearch) throws DMSException {
+        checkElement();
+        int id = this.doc.nameId(childName);
+        if (id == NONE) {
+            return null;
+        }
+        int end = deepSearch ? this.doc.end(this.node) : NONE;
+        if (deepSearch) {
+            // first in document order
+            for (int n = this.node + 1; n < end; n++) {
+                if (this.doc.name[n] == id) {
+                    return new CompactElement(this.doc, n);
+                }
+            }
+            return null;
+        }
+        for (int n = this.doc.firstChild[this.node]; n != NONE; n = this.doc.nextSibling[n]) {
+            if (this.doc.name[n] == id) {
+                return new CompactElement(this.doc, n);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns an attribute value by name.
+     *
+     * @param attributeName the name of the attribute.
+     * @return the value, or an empty <code>String</code> if there is no such
+     * attribute.
+     */
+    public String getAttributeValue(String attributeName) {
+        int a = attribute(this.node, attributeName);
+        if (a == NONE) {
+            return "";
+        }
+        return this.doc.text(this.doc.attributeOffset[a], this.doc.attributeLength[a]);
+    }
+
+    /**
+     * @return the number of attributes of this element.
+     */
+    public int getAttributeCount() {
+        return isText() ? 0 : this.doc.length[this.node];
+    }
+
+    /**
+     * @return the names of the attributes of this element.
+     */
+    public String[] getAttributeNames() {
+        String[] attributeNames = new String[getAttributeCount()];
+        for (int i = 0; i < attributeNames.length; i++) {
+            attributeNames[i] = this.doc.names[this.doc.attributeName[this.doc.offset[this.node] + i]];
+        }
+        return attributeNames;
+    }
+
+    /**
+     * Gets the text of this node as <code>XMLElement.getText()</code> does:
+     * the text of a text node, or the text of all the child text nodes of an
+     * element, each preceded by a space.
+     *
+     * @return the text as a <code>String</code>.
+     */
+    public String getText() {
+        if (isText()) {
+            return this.doc.text(this.doc.offset[this.node], this.doc.length[this.node]);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int n = this.doc.firstChild[this.node]; n != NONE; n = this.doc.nextSibling[n]) {
+            if (this.doc.name[n] == NONE) {
+                text.append(' ').append(this.doc.chars, this.doc.offset[n], this.doc.length[n]);
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * Copies this node and its descendants into a new DOM tree.
+     *
+     * @return the copy as an <code>XMLElement</code>.
+     * @throws DMSException with expected error codes.
+     */
+    public XMLElement toXMLElement() throws DMSException {
+        Document dom = XMLParser.newDocument();
+        Node copy = copy(dom, this.node);
+        dom.appendChild(copy);
+        return new XMLElement(copy);
+    }
+
+    /**
+     * @return the XML of this node and its descendants.
+     */
+    public String toString() {
+        try {
+            return toXMLElement().toString();
+        } catch (DMSException ex) {
+            return null;
+        }
+    }
+
+    private Node copy(Document dom, int n) {
+        if (this.doc.name[n] == NONE) {
+            return dom.createTextNode(this.doc.text(this.doc.offset[n], this.doc.length[n]));
+        }
+        Element element = dom.createElement(this.doc.names[this.doc.name[n]]);
+        for (int a = this.doc.offset[n]; a < this.doc.offset[n] + this.doc.length[n]; a++) {
+            element.setAttribute(this.doc.names[this.doc.attributeName[a]],
+                    this.doc.text(this.doc.attributeOffset[a], this.doc.attributeLength[a]));
+        }
+        for (int c = this.doc.firstChild[n]; c != NONE; c = this.doc.nextSibling[c]) {
+            element.appendChild(copy(dom, c));
+        }
+        return element;
+    }
+
+    private int attribute(int n, String attributeName) {
+        if (this.doc.name[n] == NONE) {
+            return NONE;
+        }
+        int id = this.doc.nameId(attributeName);
+        if (id == NONE) {
+            return NONE;
+        }
+        for (int a = this.doc.offset[n]; a < this.doc.offset[n] + this.doc.length[n]; a++) {
+            if (this.doc.attributeName[a] == id) {
+                return a;
+            }
+        }
+        return NONE;
+    }
+
+    private boolean hasAttribute(int n, String attributeName, String attributeValue) {
+        if (attributeName == null) {
+            return true;
+        }
+        int a = attribute(n, attributeName);
+        String value = (a == NONE) ? "" : this.doc.text(this.doc.attributeOffset[a], this.doc.attributeLength[a]);
+        return value.equals(attributeValue);
+    }
+
+    private boolean matches(int n, int type) {
+        switch (type) {
+            case XMLElement.ELEMENT:
+                return this.doc.name[n] != NONE;
+            case XMLElement.TEXT:
+                return this.doc.name[n] == NONE;
+            case XMLElement.ALL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void checkElement() throws DMSException {
+        if (isText()) {
+            throw new DMSException("Text objects don't have children!");
+        }
+    }
+
+    private CompactElement wrap(int n) {
+        return (n == NONE) ? null : new CompactElement(this.doc, n);
+    }
+
+    public boolean equals(Object o) {
+        return (o instanceof CompactElement) && ((CompactElement) o).doc == this.doc
+                && ((CompactElement) o).node == this.node;
+    }
+
+    public int hashCode() {
+        return System.identityHashCode(this.doc) * 31 + this.node;
+    }
+}
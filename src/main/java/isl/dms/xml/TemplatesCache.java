@@ -0,0 +1,300 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dbms.DBMSException;
+import isl.dms.DMSException;
+import java.io.File;
+import java.io.StringReader;
+import java.net.URI;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamSource;
+
+/**
+ * A <code>TemplatesCache</code> keeps compiled XSLT stylesheets
+ * (<code>Templates</code>), so that <code>XMLTransform</code> compiles a
+ * stylesheet once instead of on every transformation. <code>Templates</code>
+ * are thread-safe, so one compiled stylesheet serves all threads. <br> <br>
+ * Stylesheets stored in the database are cached by the URI of their
+ * <code>XMLDocument</code> and its last modification time; stylesheets given
+ * by a system identifier are cached by that identifier (and, for local files,
+ * their modification time). Storing or updating a stylesheet
+ * <code>XMLDocument</code> drops its entries. The cache holds at most
+ * <code>maxSize</code> stylesheets and drops the least recently used ones
+ * first.
+ */
+public class TemplatesCache {
+
+    private static final TemplatesCache DEFAULT = new TemplatesCache();
+    private final TransformerFactory factory = TransformerFactory.newInstance();
+    private int maxSize = 64;
+    private long hits, misses, evictions, invalidations;
+    private final LinkedHashMap<String, Templates> templates = new LinkedHashMap<String, Templates>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, Templates> eldest) {
+            if (size() > maxSize) {
+                evictions++;
+                return true;
+            }
+            return false;
+        }
+    };
+
+    /**
+     * Returns the cache used by <code>XMLTransform</code>.
+     *
+     * @return the default <code>TemplatesCache</code>.
+     */
+    public static TemplatesCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns the compiled form of a stylesheet stored in the database.
+     *
+     * @param xsl the <code>XMLDocument</code> holding the stylesheet.
+     * @param base the 'base' against which relative URIs of the stylesheet
+     * (<code>xsl:include</code>, <code>xsl:import</code>) are resolved, or
+     * <code>null</code>.
+     * @return the compiled stylesheet.
+     * @throws DMSException if the stylesheet cannot be compiled.
+     * @throws DBMSException with expected error codes.
+     */
+    public Templates get(XMLDocument xsl, String base) throws DMSException, DBMSException {
+        String systemId = (base != null) ? base + "/" + xsl.getName() : null;
+        String uri = xsl.getURI();
+        Date modified = (uri != null) ? xsl.getLastModificationTime() : null;
+        String key = (uri != null)
+                ? identity(xsl) + (modified != null ? modified.getTime() : "") + "\n" + systemId
+                : null;
+        Templates compiled = lookup(key);
+        if (compiled == null) {
+            StreamSource source = new StreamSource(new StringReader(xsl.getContent()));
+            if (systemId != null) {
+                source.setSystemId(systemId);
+            }
+            compiled = compile(source);
+            store(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Returns the compiled form of a stylesheet given by a system identifier
+     * (URL).
+     *
+     * @param systemId the system identifier of the stylesheet.
+     * @return the compiled stylesheet.
+     * @throws DMSException if the stylesheet cannot be compiled.
+     */
+    public Templates get(String systemId) throws DMSException {
+        String key = "\n" + systemId + "\n" + fileVersion(systemId);
+        Templates compiled = lookup(key);
+        if (compiled == null) {
+            compiled = compile(new StreamSource(systemId));
+            store(key, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Drops the compiled versions of a stylesheet stored in the database.
+     *
+     * @param xsl the <code>XMLDocument</code> holding the stylesheet.
+     */
+    public synchronized void invalidate(XMLDocument xsl) {
+        if (xsl.getURI() == null) {
+            return;
+        }
+        String prefix = identity(xsl);
+        for (Iterator<String> i = this.templates.keySet().iterator(); i.hasNext();) {
+            if (i.next().startsWith(prefix)) {
+                i.remove();
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Drops all compiled stylesheets.
+     */
+    public synchronized void clear() {
+        invalidations += this.templates.size();
+        this.templates.clear();
+    }
+
+    /**
+     * @param maxSize the maximum number of compiled stylesheets to keep.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a snapshot of the counters of this cache.
+     *
+     * @return the cache statistics.
+     */
+    public synchronized Statistics getStatistics() {
+        Statistics s = new Statistics();
+        s.hits = hits;
+        s.misses = misses;
+        s.evictions = evictions;
+        s.invalidations = invalidations;
+        s.size = this.templates.size();
+        return s;
+    }
+
+    private synchronized Templates lookup(String key) {
+        Templates compiled = (key != null) ? this.templates.get(key) : null;
+        if (compiled != null) {
+            hits++;
+        } else {
+            misses++;
+        }
+        return compiled;
+    }
+
+    private synchronized void store(String key, Templates compiled) {
+        if (key != null && this.maxSize > 0) {
+            this.templates.put(key, compiled);
+        }
+    }
+
+    private Templates compile(StreamSource source) throws DMSException {
+        try {
+            // TransformerFactory is not thread-safe
+            synchronized (this.factory) {
+                return this.factory.newTemplates(source);
+            }
+        } catch (TransformerConfigurationException ex) {
+            throw new DMSException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Returns a SAX <code>TransformerHandler</code> that applies a compiled
+     * stylesheet to the events it receives.
+     */
+    TransformerHandler newTransformerHandler(Templates compiled) throws DMSException {
+        if (!this.factory.getFeature(SAXTransformerFactory.FEATURE)) {
+            throw new DMSException("The XSLT processor does not support SAX transformations");
+        }
+        try {
+            synchronized (this.factory) {
+                return ((SAXTransformerFactory) this.factory).newTransformerHandler(compiled);
+            }
+        } catch (TransformerConfigurationException ex) {
+            throw new DMSException(ex.getMessage());
+        }
+    }
+
+    private static String identity(XMLDocument xsl) {
+        return xsl.getURI() + "\n";
+    }
+
+    /**
+     * Returns the modification time of a stylesheet that is a local file, so
+     * that editing the file recompiles it.
+     */
+    private static long fileVersion(String systemId) {
+        try {
+            if (systemId.startsWith("file:")) {
+                return new File(new URI(systemId)).lastModified();
+            }
+        } catch (Exception e) {
+            // not a plain file URI, cache by identifier only
+        }
+        return 0;
+    }
+
+    /**
+     * A snapshot of the counters of a <code>TemplatesCache</code>.
+     */
+    public static class Statistics {
+
+        long hits, misses, evictions, invalidations;
+        int size;
+
+        /**
+         * @return the number of stylesheets found compiled.
+         */
+        public long getHits() {
+            return hits;
+        }
+
+        /**
+         * @return the number of stylesheets that had to be compiled.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * @return the number of stylesheets dropped to stay within
+         * <code>maxSize</code>.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        /**
+         * @return the number of stylesheets dropped because they were stored
+         * again or the cache was cleared.
+         */
+        public long getInvalidations() {
+            return invalidations;
+        }
+
+        /**
+         * @return the number of compiled stylesheets in the cache.
+         */
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * @return the hit ratio of the cache, between 0 and 1.
+         */
+        public double getHitRatio() {
+            return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+        }
+
+        public String toString() {
+            return "TemplatesCache[hits=" + hits + ", misses=" + misses + ", evictions=" + evictions
+                    + ", invalidations=" + invalidations + ", size=" + size + "]";
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * An <code>XMLCursor</code> walks over the children of an
+ * <code>XMLElement</code> without creating an <code>XMLElement</code> for
+ * every child:
+ *
+ * <pre>
+ * XMLCursor cursor = element.children(XMLElement.ELEMENT);
+ * while (cursor.next()) {
+ *     if (cursor.getName().equals("title"))
+ *         ...
+ * }
+ * </pre>
+ *
+ * The children must not be changed while the cursor is in use.
+ */
+public final class XMLCursor {
+
+    private final Node parent;
+    private final int type;
+    private Node current;
+    private int index;
+
+    XMLCursor(Node parent, int type) {
+        this.parent = parent;
+        this.type = type;
+        reset();
+    }
+
+    /**
+     * Moves the cursor to the next child of the requested type.
+     *
+     * @return <code>true</code> if there is such a child,
+     * <code>false</code> when the children are exhausted.
+     */
+    public boolean next() {
+        Node n = (this.current == null) ? this.parent.getFirstChild() : this.current.getNextSibling();
+        int i = this.index + 1;
+        while (n != null && !ChildIndex.matches(n, this.type)) {
+            n = n.getNextSibling();
+            i++;
+        }
+        if (n == null) {
+            // stay past the end
+            this.index = -2;
+            return false;
+        }
+        this.current = n;
+        this.index = i;
+        return true;
+    }
+
+    /**
+     * Moves the cursor back before the first child.
+     */
+    public void reset() {
+        this.current = null;
+        this.index = -1;
+    }
+
+    /**
+     * @return the current child as a DOM <code>Node</code>.
+     */
+    public Node getNode() {
+        return this.current;
+    }
+
+    /**
+     * @return the index of the current child among all children of its
+     * parent, as <code>XMLElement.getIndex()</code> returns it.
+     */
+    public int getIndex() {
+        return this.index;
+    }
+
+    /**
+     * @return <code>true</code> if the current child is an element.
+     */
+    public boolean isElement() {
+        return this.current != null && this.current.getNodeType() == Node.ELEMENT_NODE;
+    }
+
+    /**
+     * @return <code>true</code> if the current child is a text node.
+     */
+    public boolean isText() {
+        return this.current != null && this.current.getNodeType() == Node.TEXT_NODE;
+    }
+
+    /**
+     * @return the name of the current child, as
+     * <code>XMLElement.getName()</code> returns it.
+     */
+    public String getName() {
+        if (isText()) {
+            return "Text" + this.index;
+        }
+        return this.current.getNodeName();
+    }
+
+    /**
+     * @return the text of the current child if it is a text node,
+     * <code>null</code> otherwise.
+     */
+    public String getValue() {
+        return isText() ? this.current.getNodeValue() : null;
+    }
+
+    /**
+     * @param attributeName the name of the attribute.
+     * @return the value of an attribute of the current child, or an empty
+     * <code>String</code> if it has no such attribute or is not an element.
+     */
+    public String getAttributeValue(String attributeName) {
+        return isElement() ? ((Element) this.current).getAttribute(attributeName) : "";
+    }
+
+    /**
+     * @return the current child as an <code>XMLElement</code>.
+     */
+    public XMLElement getXMLElement() {
+        return new XMLElement(this.current);
+    }
+}
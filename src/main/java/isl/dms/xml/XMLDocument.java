@@ -98,6 +98,17 @@ public class XMLDocument extends DBFile{
 		return this.toString();
 	}
 
+	/**
+	 * Drops any compiled version of this <code>XMLDocument</code> kept by
+	 * the <code>TemplatesCache</code> once its content was written: by
+	 * <code>store</code>, <code>update</code> (and so the XUpdate methods),
+	 * <code>storeInto</code> or <code>DBCollection.storeFile</code>.
+	 */
+	protected void stored() {
+		super.stored();
+		TemplatesCache.getDefault().invalidate(this);
+	}
+
 	/**
 	 * Sets the value of an admin property. Admin properties are
 	 * in the 'admin part' of a file. This method is used when
@@ -29,14 +29,8 @@ package isl.dms.xml;
 
 import isl.dms.DMSException;
 
-import java.io.StringWriter;
 import java.util.Vector;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.xpath.XPathConstants;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.Element;
@@ -146,18 +140,7 @@ public class XMLElement {
 	 *             with expected error codes.
 	 */
 	public XMLElement(String XML) throws DMSException {
-		try {
-			DocumentBuilderFactory docBuilderF = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docBuilderF.newDocumentBuilder();
-			this.setElement(docBuilder.parse(
-					new org.xml.sax.InputSource(new java.io.StringReader(XML))).getDocumentElement());
-		} catch (ParserConfigurationException PCEx) {
-			throw new DMSException(PCEx.getMessage());
-		} catch (java.io.IOException IOEx) {
-			throw new DMSException(IOEx.getMessage());
-		} catch (org.xml.sax.SAXException SAXEx) {
-			throw new DMSException(SAXEx.getMessage());
-		}
+		this.setElement(XMLParser.parse(XML).getDocumentElement());
 	}
 
     /**
@@ -176,18 +159,7 @@ public class XMLElement {
      * @return New empty <CODE>Document</CODE>.
      */
     private Document createNewDocument() throws DMSException {
-        try {
-            DocumentBuilderFactory factory;
-            DocumentBuilder builder;
-            factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(false);
-            factory.setValidating(false);
-            builder = factory.newDocumentBuilder();
-            
-            return builder.newDocument();
-        } catch (ParserConfigurationException e) {
-            throw new DMSException("Error creating new DOM Document");
-        }
+        return XMLParser.newDocument();
     }
     
 	/**
@@ -198,11 +170,7 @@ public class XMLElement {
 	 */
     public String toString() {
     	try{
-    		StringWriter output = new StringWriter();
-    		StreamResult outResult = new StreamResult(output);
-    		DOMSource domSource = new DOMSource(this.getElement());
-    		TransformerFactory.newInstance().newTransformer().transform(domSource, outResult);
-    		return output.toString();
+    		return XMLSerializer.getDefault().toString(this.getElement());
     	} catch (Exception Ex) {
     		Ex.printStackTrace();
     		return null;
@@ -299,17 +267,16 @@ public class XMLElement {
             if (type==ALL) {
                 sibling = this.getNextSibling();
             } else {
-                int index = this.getIndex();
-                
-                XMLElement typeSiblings [] = this.getParent().getChildren(type);
-                
-                for (int i=0;i<typeSiblings.length;i++) {
-                    if (typeSiblings[i].getIndex()>index) {
-                        sibling = typeSiblings[i];
-                        break;
-                    }
+                Node node = this.getNode();
+                ChildIndex siblings = siblings(node);
+                Node next = siblings.next(siblings.indexOf(node), type);
+                if (!siblings.holds(next)) {
+                    siblings = ChildIndex.rebuild(node.getParentNode());
+                    next = siblings.next(siblings.indexOf(node), type);
+                }
+                if (next != null) {
+                    sibling = new XMLElement(next);
                 }
-                
             }
             return sibling;
         }catch(Exception Ex){
@@ -331,17 +298,16 @@ public class XMLElement {
             if (type==ALL) {
                 sibling = this.getPreviousSibling();
             } else {
-                int index = this.getIndex();
-                
-                XMLElement typeSiblings [] = this.getParent().getChildren(type);
-                
-                int i=0;
-                while (typeSiblings[i].getIndex()<index) {
-                    sibling = typeSiblings[i];
-                    
-                    i++;
+                Node node = this.getNode();
+                ChildIndex siblings = siblings(node);
+                Node previous = siblings.previous(siblings.indexOf(node), type);
+                if (!siblings.holds(previous)) {
+                    siblings = ChildIndex.rebuild(node.getParentNode());
+                    previous = siblings.previous(siblings.indexOf(node), type);
+                }
+                if (previous != null) {
+                    sibling = new XMLElement(previous);
                 }
-                
             }
             return sibling;
         }catch(Exception Ex){
@@ -380,6 +346,8 @@ public class XMLElement {
             if (this.XMLType.equals("Text")) {
                 throw new DMSException("Text objects don't have children!");
             }
+            ChildIndex.invalidate(object.getNode().getParentNode());
+            ChildIndex.invalidate(this.XMLElem);
             if (object.XMLType.equals("Element")) {
                 
                 this.XMLDoc.adoptNode(object.XMLElem);
@@ -407,6 +375,8 @@ public class XMLElement {
             if (this.XMLType.equals("Text")) {
                 throw new DMSException("Text objects don't have children!");
             }
+            ChildIndex.invalidate(newChild.getNode().getParentNode());
+            ChildIndex.invalidate(this.XMLElem);
             
             if (newChild.XMLType.equals("Element")) {
                 this.XMLDoc.adoptNode(newChild.XMLElem);
@@ -460,6 +430,8 @@ public class XMLElement {
             if (this.XMLType.equals("Text")) {
                 throw new DMSException("Text objects don't have children!");
             } else {
+                ChildIndex.invalidate(newChild.getNode().getParentNode());
+                ChildIndex.invalidate(this.XMLElem);
                 if (newChild.XMLType.equals("Element")) {
                     
                     this.XMLDoc.adoptNode(newChild.XMLElem);
@@ -505,6 +477,7 @@ public class XMLElement {
             } else {
                 toBeRemoved = this.getChildren(childName);
             }
+            ChildIndex.invalidate(this.XMLElem);
             for (int i=0;i<toBeRemoved.length;i++) {
                 this.XMLElem.removeChild(toBeRemoved[i].XMLElem);
             }
@@ -527,17 +500,9 @@ public class XMLElement {
             	return this.getText();
             }
 
-            String childrenStr = "";
-            XMLElement [] children = this.getChildren(ALL);
-
-            for (int i=0;i<children.length;i++){
-                if (children[i].XMLType.equals("Text")) {
-                	childrenStr += children[i].getText();
-                } else if (children[i].XMLType.equals("Element")) {
-                	childrenStr += "<"+children[i].getName()+">"+children[i].getContentAsString()+"</"+children[i].getName()+">";
-                }
-            }
-            return childrenStr;
+            StringBuilder childrenStr = new StringBuilder();
+            appendContent(this.XMLElem, childrenStr);
+            return childrenStr.toString();
         }catch(Exception Ex){
             throw new DMSException(Ex.getMessage());
         }
@@ -554,23 +519,34 @@ public class XMLElement {
             if (this.XMLType.equals("Text")) {
                 throw new DMSException("Text objects don't have children!");
             }
-            String childrenMarkup = "";
-            XMLElement [] children = this.getChildren(ALL);
-            
-            for (int i=0;i<children.length;i++){
-                if (children[i].XMLType.equals("Text")) {
-                    childrenMarkup += "No"+i+":("+children[i].getText()+")\n";
-                } else if (children[i].XMLType.equals("Element")) {
-                    childrenMarkup += "No"+i+":(<"+children[i].getName()+"/>)\n";
+            StringBuilder childrenMarkup = new StringBuilder();
+            int i = 0;
+            for (Node n = this.XMLElem.getFirstChild(); n != null; n = n.getNextSibling(), i++) {
+                if (n.getNodeType() == Node.TEXT_NODE) {
+                    childrenMarkup.append("No").append(i).append(":(").append(n.getNodeValue()).append(")\n");
+                } else if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    childrenMarkup.append("No").append(i).append(":(<").append(n.getNodeName()).append("/>)\n");
                 }
             }
-            return childrenMarkup;
+            return childrenMarkup.toString();
         }catch(Exception Ex){
             throw new DMSException(Ex.getMessage());
         }
     }
     
     
+    private static void appendContent(Node parent, StringBuilder out) {
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.TEXT_NODE) {
+                out.append(n.getNodeValue());
+            } else if (n.getNodeType() == Node.ELEMENT_NODE) {
+                out.append('<').append(n.getNodeName()).append('>');
+                appendContent(n, out);
+                out.append("</").append(n.getNodeName()).append('>');
+            }
+        }
+    }
+
     /**
      * Returns all child objects of a specific type.
      * @return Returns a <CODE>XMLElement[]</CODE> of all the Child Elements.
@@ -583,25 +559,11 @@ public class XMLElement {
             if (this.XMLType.equals("Text")) {
                 throw new DMSException("Text objects don't have children!");
             }
-            NodeList children = XMLElem.getChildNodes();
-            int childrenNum = children.getLength();
-            Vector<XMLElement> vect = new Vector<XMLElement>();
-            
-            for(int i=0;i<childrenNum;i++){
-                Node n = children.item(i);
-                if(type==ELEMENT && n.getNodeType() == Node.ELEMENT_NODE){
-                    XMLElement x = new XMLElement(n);
-                    vect.add(x);
-                } else if (type==TEXT && n.getNodeType() == Node.TEXT_NODE) {
-                    XMLElement x = new XMLElement(n);
-                    vect.add(x);
-                } else if (type==ALL) {
-                    XMLElement x = new XMLElement(n);
-                    vect.add(x);
-                }
+            XMLElement[] children = ChildIndex.of(this.XMLElem).children(type);
+            if (children == null) {
+                children = ChildIndex.rebuild(this.XMLElem).children(type);
             }
-            XMLElement[] ret = vect.toArray(new XMLElement[0]);
-            return ret;
+            return children;
         }catch(Exception Ex){
             throw new DMSException(Ex.getMessage());
         }
@@ -692,30 +654,104 @@ public class XMLElement {
      */
     public int getIndex() throws DMSException{
         try {
-            int index=-1;
-            Node node = null;
-            if (this.XMLType.equals("Element")) {
-                node = this.XMLElem;
-            } else if (this.XMLType.equals("Text")) {
-                node = this.XMLText;
-            }
-            XMLElement parent = this.getParent();
-            NodeList children = parent.XMLElem.getChildNodes();
-            
-            for (int i=0;i<children.getLength();i++) {
-                
-                if (node.isSameNode(children.item(i))) {
-                    
-                    index = i;
-                }
-            }
-            
-            return index;
+            Node node = this.getNode();
+            return siblings(node).indexOf(node);
         }catch(Exception Ex){
             throw new DMSException(Ex.getMessage());
         }
     }
     
+    /**
+     * The index of the siblings of a node. A node that was put in place with
+     * the DOM API after the index was built is found by rebuilding the index.
+     */
+    private static ChildIndex siblings(Node node) {
+        ChildIndex siblings = ChildIndex.of(node.getParentNode());
+        if (siblings.indexOf(node) < 0 && node.getParentNode() != null) {
+            siblings = ChildIndex.rebuild(node.getParentNode());
+        }
+        return siblings;
+    }
+
+    /**
+     * Drops the index of the children of a node that index and sibling
+     * lookups keep. The index is dropped by itself when children are
+     * inserted or removed, through <CODE>XMLElement</CODE> methods or
+     * directly on the DOM (for instance on the <CODE>Element</CODE> of
+     * <CODE>getElement()</CODE>), so this is only needed to free it.
+     * @param parent The node whose index is dropped.
+     */
+    public static void childrenChanged(Node parent) {
+        ChildIndex.invalidate(parent);
+    }
+
+    /**
+     * Returns a cursor over the child objects of a specific type. Unlike
+     * <code>getChildren</code>, the cursor does not create an
+     * <CODE>XMLElement</CODE> for every child.
+     * @param type Type of children to visit (ELEMENT, TEXT or ALL).
+     * @throws isl.dms.DMSException with expected error codes
+     * @return Returns a <CODE>XMLCursor</CODE> positioned before the first child.
+     */
+    public XMLCursor children(int type) throws DMSException {
+        if (this.XMLType.equals("Text")) {
+            throw new DMSException("Text objects don't have children!");
+        }
+        return new XMLCursor(this.XMLElem, type);
+    }
+
+    /**
+     * Walks the elements and text nodes under this <CODE>XMLElement</CODE>
+     * (itself included) in document order, without recursion.
+     * @param visitor The <CODE>XMLVisitor</CODE> to notify.
+     * @throws isl.dms.DMSException with expected error codes
+     */
+    public void accept(XMLVisitor visitor) throws DMSException {
+        try {
+            Node root = this.getNode();
+            Node n = root;
+            int depth = 0;
+            while (n != null) {
+                boolean descend = false;
+                if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    descend = visitor.startElement((Element) n, depth) && n.getFirstChild() != null;
+                } else if (n.getNodeType() == Node.TEXT_NODE) {
+                    visitor.text((Text) n, depth);
+                }
+                if (descend) {
+                    n = n.getFirstChild();
+                    depth++;
+                    continue;
+                }
+                // leave n and every ancestor that has no following sibling
+                while (true) {
+                    if (n.getNodeType() == Node.ELEMENT_NODE) {
+                        visitor.endElement((Element) n, depth);
+                    }
+                    if (n == root) {
+                        n = null;
+                        break;
+                    }
+                    if (n.getNextSibling() != null) {
+                        n = n.getNextSibling();
+                        break;
+                    }
+                    n = n.getParentNode();
+                    depth--;
+                }
+            }
+        }catch(RuntimeException Ex){
+            throw new DMSException(Ex.getMessage());
+        }
+    }
+
+    /**
+     * The DOM node of this object.
+     */
+    private Node getNode() {
+        return this.XMLType.equals("Element") ? this.XMLElem : this.XMLText;
+    }
+
     /**
      * Returns an attribute value by name.
      * @param attributeName The name of the attribute to retrieve.
@@ -956,10 +992,12 @@ public class XMLElement {
         try {
             
             if (this.XMLType.equals("Text")) {
+                ChildIndex.invalidate(this.XMLText.getParentNode());
                 this.XMLText.replaceWholeText(text);
             }
             
             if (this.XMLType.equals("Element")) {
+                ChildIndex.invalidate(this.XMLElem);
                 Text content = this.XMLDoc.createTextNode(text);
                 if (this.XMLElem.getChildNodes().getLength()>0){
                     
@@ -1119,6 +1157,69 @@ public class XMLElement {
     }
     
     
+    /**
+     * Returns the objects selected by an XPath expression, evaluated with this
+     * <CODE>XMLElement</CODE> as the context node. Compiled expressions are
+     * cached (see <CODE>XPathCache</CODE>). Selected nodes other than
+     * elements and text nodes (attributes, comments...) are skipped.
+     * @param xpath The XPath expression.
+     * @return Returns the selected objects as a <CODE>XMLElement[]</CODE>.
+     * @throws isl.dms.DMSException with expected error codes
+     */
+    public XMLElement[] select(String xpath) throws DMSException {
+        NodeList nodes = XPathCache.getDefault().selectNodes(this.getNode(), xpath);
+        int count = 0;
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (isElementOrText(nodes.item(i))) {
+                count++;
+            }
+        }
+        XMLElement[] selected = new XMLElement[count];
+        count = 0;
+        for (int i = 0; i < nodes.getLength(); i++) {
+            if (isElementOrText(nodes.item(i))) {
+                selected[count++] = new XMLElement(nodes.item(i));
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * Returns the first object selected by an XPath expression, evaluated with
+     * this <CODE>XMLElement</CODE> as the context node.
+     * @param xpath The XPath expression.
+     * @return Returns the first selected element or text node as a
+     * <CODE>XMLElement</CODE>, or null if nothing is selected.
+     * @throws isl.dms.DMSException with expected error codes
+     */
+    public XMLElement selectFirst(String xpath) throws DMSException {
+        Node node = XPathCache.getDefault().selectNode(this.getNode(), xpath);
+        if (node != null && isElementOrText(node)) {
+            return new XMLElement(node);
+        }
+        if (node == null) {
+            return null;
+        }
+        // the first node is neither an element nor text
+        XMLElement[] selected = this.select(xpath);
+        return (selected.length > 0) ? selected[0] : null;
+    }
+
+    /**
+     * Returns the string value of an XPath expression, evaluated with this
+     * <CODE>XMLElement</CODE> as the context node.
+     * @param xpath The XPath expression.
+     * @return Returns the result of the expression as a <CODE>String</CODE>.
+     * @throws isl.dms.DMSException with expected error codes
+     */
+    public String selectString(String xpath) throws DMSException {
+        return (String) XPathCache.getDefault().evaluate(this.getNode(), xpath, XPathConstants.STRING);
+    }
+
+    private static boolean isElementOrText(Node n) {
+        return n.getNodeType() == Node.ELEMENT_NODE || n.getNodeType() == Node.TEXT_NODE;
+    }
+
     /**
      * Returns the names of all XMLElements of type Element.
      * @throws isl.dms.DMSException with expected error codes
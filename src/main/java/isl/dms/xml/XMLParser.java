@@ -0,0 +1,229 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dms.DMSException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * <code>XMLParser</code> turns XML <code>String</code>s into DOM
+ * <code>Document</code>s for <code>XMLElement</code> and
+ * <code>XMLTransform</code>. <br> <br>
+ * The <code>DocumentBuilderFactory</code> is looked up once, and
+ * <code>DocumentBuilder</code>s are kept in a pool: a parse takes a builder,
+ * and gives it back reset when it is done, so that concurrent parses
+ * neither share a builder nor create a new one each time. <br> <br>
+ * Optionally (see <code>setStAX</code>) documents are parsed with a StAX
+ * reader that builds the DOM tree directly. Its trees differ from those of
+ * a <code>DocumentBuilder</code> only in that CDATA sections become plain
+ * text nodes, merged with the text around them.
+ */
+public final class XMLParser {
+
+    private static final int MAX_POOLED = 16;
+    private static final DocumentBuilderFactory FACTORY = DocumentBuilderFactory.newInstance();
+    private static final XMLInputFactory STAX_FACTORY;
+    private static final ConcurrentLinkedQueue<DocumentBuilder> POOL = new ConcurrentLinkedQueue<DocumentBuilder>();
+    private static volatile boolean stax = false;
+
+    static {
+        FACTORY.setNamespaceAware(false);
+        FACTORY.setValidating(false);
+        XMLInputFactory factory = null;
+        try {
+            factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+        } catch (RuntimeException unavailable) {
+            // no StAX implementation: always use a DocumentBuilder
+            factory = null;
+        }
+        STAX_FACTORY = factory;
+    }
+
+    private XMLParser() {
+    }
+
+    /**
+     * Sets whether XML is parsed with StAX instead of a
+     * <code>DocumentBuilder</code>. It is ignored if no StAX implementation
+     * is available.
+     *
+     * @param useStAX <code>true</code> to parse with StAX.
+     */
+    public static void setStAX(boolean useStAX) {
+        stax = useStAX;
+    }
+
+    /**
+     * @return <code>true</code> if XML is parsed with StAX.
+     */
+    public static boolean isStAX() {
+        return stax && STAX_FACTORY != null;
+    }
+
+    /**
+     * Parses an XML <code>String</code>.
+     *
+     * @param xml the XML to parse.
+     * @return the parsed <code>Document</code>.
+     * @throws DMSException with expected error codes.
+     */
+    public static Document parse(String xml) throws DMSException {
+        if (isStAX()) {
+            return parseStAX(xml);
+        }
+        DocumentBuilder builder = borrow();
+        try {
+            return builder.parse(new InputSource(new StringReader(xml)));
+        } catch (IOException ex) {
+            throw new DMSException(ex.getMessage());
+        } catch (SAXException ex) {
+            throw new DMSException(ex.getMessage());
+        } finally {
+            giveBack(builder);
+        }
+    }
+
+    /**
+     * Creates an empty <code>Document</code>.
+     *
+     * @return a new empty <code>Document</code>.
+     * @throws DMSException with expected error codes.
+     */
+    public static Document newDocument() throws DMSException {
+        DocumentBuilder builder = borrow();
+        try {
+            return builder.newDocument();
+        } finally {
+            giveBack(builder);
+        }
+    }
+
+    private static DocumentBuilder borrow() throws DMSException {
+        DocumentBuilder builder = POOL.poll();
+        if (builder == null) {
+            try {
+                // DocumentBuilderFactory is not thread-safe
+                synchronized (FACTORY) {
+                    builder = FACTORY.newDocumentBuilder();
+                }
+            } catch (ParserConfigurationException ex) {
+                throw new DMSException("Error creating new DOM Document");
+            }
+        }
+        return builder;
+    }
+
+    private static void giveBack(DocumentBuilder builder) {
+        if (POOL.size() < MAX_POOLED) {
+            try {
+                builder.reset();
+            } catch (UnsupportedOperationException ex) {
+                // a builder that cannot be reset is not reused
+                return;
+            }
+            POOL.offer(builder);
+        }
+    }
+
+    private static Document parseStAX(String xml) throws DMSException {
+        Document doc = newDocument();
+        XMLStreamReader reader = null;
+        try {
+            reader = STAX_FACTORY.createXMLStreamReader(new StringReader(xml));
+            Node current = doc;
+            while (reader.hasNext()) {
+                switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        Element element = doc.createElement(name(reader.getPrefix(), reader.getLocalName()));
+                        for (int i = 0; i < reader.getAttributeCount(); i++) {
+                            element.setAttribute(name(reader.getAttributePrefix(i), reader.getAttributeLocalName(i)),
+                                    reader.getAttributeValue(i));
+                        }
+                        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                            String prefix = reader.getNamespacePrefix(i);
+                            element.setAttribute(prefix == null || prefix.length() == 0 ? "xmlns" : "xmlns:" + prefix,
+                                    reader.getNamespaceURI(i));
+                        }
+                        current.appendChild(element);
+                        current = element;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        current = current.getParentNode();
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        // text outside the document element is not part of the tree
+                        if (current != doc) {
+                            current.appendChild(doc.createTextNode(reader.getText()));
+                        }
+                        break;
+                    case XMLStreamConstants.COMMENT:
+                        current.appendChild(doc.createComment(reader.getText()));
+                        break;
+                    case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                        current.appendChild(doc.createProcessingInstruction(reader.getPITarget(), reader.getPIData()));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return doc;
+        } catch (XMLStreamException ex) {
+            throw new DMSException(ex.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ex) {
+                    // nothing left to read
+                }
+            }
+        }
+    }
+
+    private static String name(String prefix, String localName) {
+        return (prefix == null || prefix.length() == 0) ? localName : prefix + ":" + localName;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dms.DMSException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Properties;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.w3c.dom.Node;
+
+/**
+ * An <code>XMLSerializer</code> writes DOM trees (an
+ * <code>XMLElement</code> or any <code>Node</code>) as XML directly to a
+ * <code>Writer</code> or an <code>OutputStream</code>. <br> <br>
+ * Creating a <code>Transformer</code> is far more expensive than using one,
+ * so every thread keeps its own identity <code>Transformer</code> and reuses
+ * it for every serialization. A serializer can be shared between threads;
+ * its settings are meant to be set before it is used. By default the output
+ * has an XML declaration, is encoded in UTF-8 and is not indented, as
+ * <code>XMLElement.toString()</code> has always been.
+ */
+public class XMLSerializer {
+
+    private static final String INDENT_AMOUNT = "{http://xml.apache.org/xslt}indent-amount";
+    private static final XMLSerializer DEFAULT = new XMLSerializer();
+    private static final TransformerFactory FACTORY = TransformerFactory.newInstance();
+    private static final ThreadLocal<Transformer> TRANSFORMER = new ThreadLocal<Transformer>();
+    private volatile Properties properties = new Properties();
+
+    /**
+     * Creates a serializer with the default settings.
+     */
+    public XMLSerializer() {
+        setProperty(OutputKeys.METHOD, "xml");
+        setProperty(OutputKeys.ENCODING, "UTF-8");
+        setProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+        setProperty(OutputKeys.INDENT, "no");
+    }
+
+    /**
+     * Returns the serializer used by <code>XMLElement.toString()</code>. Its
+     * settings must not be changed.
+     */
+    static XMLSerializer getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets the indentation of the output.
+     *
+     * @param spaces the number of spaces per level, or 0 for no indentation.
+     * @return this serializer.
+     */
+    public XMLSerializer setIndent(int spaces) {
+        setProperty(OutputKeys.INDENT, spaces > 0 ? "yes" : "no");
+        setProperty(INDENT_AMOUNT, String.valueOf(Math.max(spaces, 0)));
+        return this;
+    }
+
+    /**
+     * Sets whether an XML declaration (<code>&lt;?xml ...?&gt;</code>) is
+     * written before the output.
+     *
+     * @param declaration <code>true</code> to write the declaration.
+     * @return this serializer.
+     */
+    public XMLSerializer setXmlDeclaration(boolean declaration) {
+        setProperty(OutputKeys.OMIT_XML_DECLARATION, declaration ? "no" : "yes");
+        return this;
+    }
+
+    /**
+     * Sets the encoding of the output written to an
+     * <code>OutputStream</code> (and declared in the XML declaration).
+     *
+     * @param encoding the name of the encoding.
+     * @return this serializer.
+     */
+    public XMLSerializer setEncoding(String encoding) {
+        setProperty(OutputKeys.ENCODING, encoding);
+        return this;
+    }
+
+    /**
+     * Writes an <code>XMLElement</code> and its descendants.
+     *
+     * @param element the <code>XMLElement</code> to write.
+     * @param out the <code>Writer</code> to write to.
+     * @throws DMSException with expected error codes.
+     */
+    public void write(XMLElement element, Writer out) throws DMSException {
+        write(element.getElement(), new StreamResult(out));
+    }
+
+    /**
+     * Writes an <code>XMLElement</code> and its descendants.
+     *
+     * @param element the <code>XMLElement</code> to write.
+     * @param out the <code>OutputStream</code> to write to.
+     * @throws DMSException with expected error codes.
+     */
+    public void write(XMLElement element, OutputStream out) throws DMSException {
+        write(element.getElement(), new StreamResult(out));
+    }
+
+    /**
+     * Writes a DOM <code>Node</code> and its descendants.
+     *
+     * @param node the <code>Node</code> to write.
+     * @param out the <code>Writer</code> to write to.
+     * @throws DMSException with expected error codes.
+     */
+    public void write(Node node, Writer out) throws DMSException {
+        write(node, new StreamResult(out));
+    }
+
+    /**
+     * Writes a DOM <code>Node</code> and its descendants.
+     *
+     * @param node the <code>Node</code> to write.
+     * @param out the <code>OutputStream</code> to write to.
+     * @throws DMSException with expected error codes.
+     */
+    public void write(Node node, OutputStream out) throws DMSException {
+        write(node, new StreamResult(out));
+    }
+
+    /**
+     * Returns a DOM <code>Node</code> and its descendants as XML.
+     *
+     * @param node the <code>Node</code> to serialize.
+     * @return the XML as a <code>String</code>.
+     * @throws DMSException with expected error codes.
+     */
+    public String toString(Node node) throws DMSException {
+        StringWriter out = new StringWriter();
+        write(node, new StreamResult(out));
+        return out.toString();
+    }
+
+    private void write(Node node, StreamResult result) throws DMSException {
+        if (node == null) {
+            throw new DMSException("Nothing to serialize");
+        }
+        Transformer transformer = transformer();
+        try {
+            transformer.setOutputProperties(this.properties);
+            transformer.transform(new DOMSource(node), result);
+        } catch (TransformerException ex) {
+            // a failed transformer may be left in any state
+            TRANSFORMER.remove();
+            throw new DMSException(ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            // an output property the XSLT processor does not know
+            throw new DMSException(ex.getMessage());
+        } finally {
+            transformer.reset();
+        }
+    }
+
+    private synchronized void setProperty(String name, String value) {
+        Properties copy = new Properties();
+        copy.putAll(this.properties);
+        copy.setProperty(name, value);
+        this.properties = copy;
+    }
+
+    private static Transformer transformer() throws DMSException {
+        Transformer transformer = TRANSFORMER.get();
+        if (transformer == null) {
+            try {
+                // TransformerFactory is not thread-safe
+                synchronized (FACTORY) {
+                    transformer = FACTORY.newTransformer();
+                }
+            } catch (TransformerConfigurationException ex) {
+                throw new DMSException(ex.getMessage());
+            }
+            TRANSFORMER.set(transformer);
+        }
+        return transformer;
+    }
+}
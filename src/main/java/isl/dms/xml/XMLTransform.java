@@ -27,27 +27,37 @@
  */
 package isl.dms.xml;
 
+import isl.dbms.DBFile;
 import isl.dbms.DBMSException;
 import isl.dms.DMSException;
 
+import java.io.OutputStream;
 import java.io.PrintWriter;
-import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.Result;
 import javax.xml.transform.Source;
+import javax.xml.transform.Templates;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 
 import org.w3c.dom.Element;
 
 public class XMLTransform {
+	private static final String SERVER_TRANSFORM =
+		"import module namespace transform = 'http://exist-db.org/xquery/transform'; "
+		+ "declare variable $stylesheet external; "
+		+ "declare variable $names external; "
+		+ "declare variable $values external; "
+		+ "transform:transform(/, $stylesheet, <parameters>{ "
+		+ "for $name at $i in $names return <param name='{$name}' value='{$values[$i]}'/> "
+		+ "}</parameters>)";
+	private static volatile long serverSideThreshold = 1024 * 1024;
 	private Element XMLElem;
 	private String transformBase;
 	
@@ -62,20 +72,7 @@ public class XMLTransform {
 	 *             with expected error codes.
 	 */
 	public XMLTransform(String XML) throws DMSException {
-		try {
-			DocumentBuilderFactory docBuilderF = DocumentBuilderFactory
-					.newInstance();
-			DocumentBuilder docBuilder = docBuilderF.newDocumentBuilder();
-			this.setElement(docBuilder.parse(
-					new org.xml.sax.InputSource(new java.io.StringReader(XML)))
-					.getDocumentElement());
-		} catch (ParserConfigurationException PCEx) {
-			throw new DMSException(PCEx.getMessage());
-		} catch (java.io.IOException IOEx) {
-			throw new DMSException(IOEx.getMessage());
-		} catch (org.xml.sax.SAXException SAXEx) {
-			throw new DMSException(SAXEx.getMessage());
-		}
+		this.setElement(XMLParser.parse(XML).getDocumentElement());
 	}
 
     /**
@@ -116,17 +113,27 @@ public class XMLTransform {
 	 */
     public String toString() {
     	try{
-    		StringWriter output = new StringWriter();
-    		StreamResult outResult = new StreamResult(output);
-    		DOMSource domSource = new DOMSource(this.getElement());
-    		TransformerFactory.newInstance().newTransformer().transform(domSource, outResult);
-    		return output.toString();
+    		return XMLSerializer.getDefault().toString(this.getElement());
     	} catch (Exception Ex) {
     		Ex.printStackTrace();
     		return null;
     	}
     }
 
+	/**
+	 * Returns the content of this <code>XMLTransform</code> as a
+	 * <code>Source</code> for a transformation, without serializing it.
+	 * 
+	 * @return a <code>DOMSource</code> over the content.
+	 */
+	protected Source getSource() {
+		Element elem = this.getElement();
+		// transform the whole document, so that "/" matches as it does for parsed input
+		if (elem.getOwnerDocument() != null && elem.getOwnerDocument().getDocumentElement() == elem)
+			return new DOMSource(elem.getOwnerDocument());
+		return new DOMSource(elem);
+	}
+
 	/**
 	 * Tranforms this <code>XMLDocument</code> based upon another
 	 * <code>XMLDocument</code>.
@@ -140,17 +147,9 @@ public class XMLTransform {
 	 */
 	public String transform(XMLDocument xsl) throws DMSException, DBMSException {
 		try {
-			String xml = this.toString();
-			StreamSource xmlSource = new StreamSource(new StringReader(xml));
-			StreamSource xsltSource = new StreamSource(new StringReader(xsl.getContent()));
-			if (this.transformBase != null)
-				xsltSource.setSystemId(this.transformBase+"/"+xsl.getName());
-
-			// get the factory
-			TransformerFactory transFact = TransformerFactory.newInstance();
-
-			// get a transformer for this particular stylesheet
-			Transformer trans = transFact.newTransformer(xsltSource);
+			Source xmlSource = this.getSource();
+			// get a transformer for this particular stylesheet, compiled once
+			Transformer trans = TemplatesCache.getDefault().get(xsl, this.transformBase).newTransformer();
 
 			StringWriter out = new StringWriter();
 			// do the transformation
@@ -179,17 +178,9 @@ public class XMLTransform {
 	 */
 	public void transform(PrintWriter out, XMLDocument xsl) throws DMSException, DBMSException {
 		try {
-			String xml = this.toString();
-			Source xmlSource = new StreamSource(new StringReader(xml));
-			Source xsltSource = new StreamSource(new StringReader(xsl.getContent()));
-			if (this.transformBase != null)
-				xsltSource.setSystemId(this.transformBase+"/"+xsl.getName());
-
-			// get the factory
-			TransformerFactory transFact = TransformerFactory.newInstance();
-
-			// get a transformer for this particular stylesheet
-			Transformer trans = transFact.newTransformer(xsltSource);
+			Source xmlSource = this.getSource();
+			// get a transformer for this particular stylesheet, compiled once
+			Transformer trans = TemplatesCache.getDefault().get(xsl, this.transformBase).newTransformer();
 
 			// do the transformation
 			StreamResult output = new StreamResult(out);
@@ -212,15 +203,9 @@ public class XMLTransform {
 	 */
 	public String transform(String systemId) throws DMSException {
 		try {
-			String xml = this.toString();
-			StreamSource xmlSource = new StreamSource(new StringReader(xml));
-			StreamSource xsltSource = new StreamSource(systemId);
-
-			// get the factory
-			TransformerFactory transFact = TransformerFactory.newInstance();
-
-			// get a transformer for this particular stylesheet
-			Transformer trans = transFact.newTransformer(xsltSource);
+			Source xmlSource = this.getSource();
+			// get a transformer for this particular stylesheet, compiled once
+			Transformer trans = TemplatesCache.getDefault().get(systemId).newTransformer();
 
 			StringWriter out = new StringWriter();
 			// do the transformation
@@ -248,15 +233,9 @@ public class XMLTransform {
 	 */
 	public void transform(PrintWriter out, String systemId) throws DMSException {
 		try {
-			String xml = this.toString();
-			StreamSource xmlSource = new StreamSource(new StringReader(xml));
-			StreamSource xsltSource = new StreamSource(systemId);
-
-			// get the factory
-			TransformerFactory transFact = TransformerFactory.newInstance();
-
-			// get a transformer for this particular stylesheet
-			Transformer trans = transFact.newTransformer(xsltSource);
+			Source xmlSource = this.getSource();
+			// get a transformer for this particular stylesheet, compiled once
+			Transformer trans = TemplatesCache.getDefault().get(systemId).newTransformer();
 
 			// do the transformation
 			StreamResult output = new StreamResult(out);
@@ -266,4 +245,185 @@ public class XMLTransform {
 			throw new DMSException(ex.getMessage());
 		}
 	}
+
+	/**
+	 * Tranforms an XML <code>DBFile</code> based upon an
+	 * <code>XMLDocument</code>, writing the results to an
+	 * <code>OutputStream</code>. The file is read from the database as SAX
+	 * events and fed straight into the transformation, so neither the input
+	 * nor the output is kept in memory as a whole.
+	 * 
+	 * @param xml
+	 *            the XML <code>DBFile</code> to transform.
+	 * @param xsl
+	 *            the <code>XMLDocument</code> upon which the transformation
+	 *            is basen on.
+	 * @param base
+	 *            the 'base' for the transformation, or <code>null</code>.
+	 * @param out
+	 *            the <code>OutputStream</code> to which the results of the
+	 *            transformation are written. It is not closed.
+	 * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+	 */
+	public static void transform(DBFile xml, XMLDocument xsl, String base, OutputStream out)
+	throws DMSException, DBMSException {
+		transform(xml, TemplatesCache.getDefault().get(xsl, base), out);
+	}
+
+	/**
+	 * Tranforms an XML <code>DBFile</code> based upon a system identifier
+	 * (URL), writing the results to an <code>OutputStream</code>. The file
+	 * is read from the database as SAX events and fed straight into the
+	 * transformation.
+	 * 
+	 * @param xml
+	 *            the XML <code>DBFile</code> to transform.
+	 * @param systemId
+	 *            the system identifier upon which the transformation
+	 *            is basen on.
+	 * @param out
+	 *            the <code>OutputStream</code> to which the results of the
+	 *            transformation are written. It is not closed.
+	 * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+	 */
+	public static void transform(DBFile xml, String systemId, OutputStream out)
+	throws DMSException, DBMSException {
+		transform(xml, TemplatesCache.getDefault().get(systemId), out);
+	}
+
+	/**
+	 * Tranforms an <code>XMLDocument</code> based upon another
+	 * <code>XMLDocument</code>, with parameters. Small documents are
+	 * transformed here; documents larger than the server-side threshold
+	 * (see <code>setServerSideThreshold</code>) are transformed inside the
+	 * database, so that only the result travels over the wire. Stylesheets
+	 * that can only be resolved against a 'base' outside the database are
+	 * always applied here.
+	 * 
+	 * @param xml
+	 *            the <code>XMLDocument</code> to transform.
+	 * @param xsl
+	 *            the <code>XMLDocument</code> upon which the transformation
+	 *            is basen on.
+	 * @param base
+	 *            the 'base' for the transformation, or <code>null</code>.
+	 * @param parameters
+	 *            the stylesheet parameters, by name, or <code>null</code>.
+	 * @return the result of the transformation as a <code>String</code>.
+	 * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+	 */
+	public static String transform(XMLDocument xml, XMLDocument xsl, String base, Map<String, String> parameters)
+	throws DMSException, DBMSException {
+		long threshold = serverSideThreshold;
+		boolean serverBase = base == null || base.startsWith("xmldb:");
+		if (threshold >= 0 && serverBase && xml.getSize() > threshold)
+			return transformOnServer(xml, xsl, base, parameters);
+		return transformOnClient(xml, xsl, base, parameters);
+	}
+
+	/**
+	 * Tranforms an <code>XMLDocument</code> based upon another
+	 * <code>XMLDocument</code> here, streaming the document from the
+	 * database into the transformation.
+	 * 
+	 * @param xml
+	 *            the <code>XMLDocument</code> to transform.
+	 * @param xsl
+	 *            the <code>XMLDocument</code> upon which the transformation
+	 *            is basen on.
+	 * @param base
+	 *            the 'base' for the transformation, or <code>null</code>.
+	 * @param parameters
+	 *            the stylesheet parameters, by name, or <code>null</code>.
+	 * @return the result of the transformation as a <code>String</code>.
+	 * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+	 */
+	public static String transformOnClient(XMLDocument xml, XMLDocument xsl, String base, Map<String, String> parameters)
+	throws DMSException, DBMSException {
+		StringWriter out = new StringWriter();
+		transform(xml, TemplatesCache.getDefault().get(xsl, base), parameters, new StreamResult(out));
+		return out.toString();
+	}
+
+	/**
+	 * Tranforms an <code>XMLDocument</code> based upon another
+	 * <code>XMLDocument</code> inside the database, using eXist's transform
+	 * module. Only the result is sent back. The stylesheet is addressed as
+	 * <code>base/name</code> when a 'base' is given, as the client-side
+	 * transformation does, and by its location in the database otherwise.
+	 * 
+	 * @param xml
+	 *            the <code>XMLDocument</code> to transform.
+	 * @param xsl
+	 *            the <code>XMLDocument</code> upon which the transformation
+	 *            is basen on.
+	 * @param base
+	 *            the 'base' for the transformation, or <code>null</code>.
+	 * @param parameters
+	 *            the stylesheet parameters, by name, or <code>null</code>.
+	 * @return the result of the transformation as a <code>String</code>.
+	 * @throws DMSException with expected error codes.
+	 * @throws DBMSException with expected error codes.
+	 */
+	public static String transformOnServer(XMLDocument xml, XMLDocument xsl, String base, Map<String, String> parameters)
+	throws DMSException, DBMSException {
+		if (base == null && xsl.getCollectionPath() == null)
+			throw new DMSException("The stylesheet " + xsl.getName() + " is not stored in a collection");
+		String stylesheet = (base != null)
+				? base + "/" + xsl.getName()
+				: "xmldb:exist://" + xsl.getCollectionPath() + "/" + xsl.getName();
+		int n = (parameters == null) ? 0 : parameters.size();
+		String[] names = new String[n], values = new String[n];
+		if (parameters != null) {
+			int i = 0;
+			for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+				names[i] = parameter.getKey();
+				values[i++] = parameter.getValue();
+			}
+		}
+		Map<String, Object> variables = new HashMap<String, Object>();
+		variables.put("stylesheet", stylesheet);
+		variables.put("names", names);
+		variables.put("values", values);
+		StringBuilder ret = new StringBuilder();
+		for (String item : xml.queryString(SERVER_TRANSFORM, variables))
+			ret.append(item);
+		return ret.toString();
+	}
+
+	/**
+	 * Sets the size (in bytes) above which
+	 * <code>transform(XMLDocument, XMLDocument, String, Map)</code> runs the
+	 * transformation inside the database.
+	 * 
+	 * @param bytes the threshold, or a negative number to always transform
+	 *            here.
+	 */
+	public static void setServerSideThreshold(long bytes) {
+		serverSideThreshold = bytes;
+	}
+
+	private static void transform(DBFile xml, Templates templates, OutputStream out)
+	throws DMSException, DBMSException {
+		transform(xml, templates, null, new StreamResult(out));
+		try {
+			out.flush();
+		} catch (java.io.IOException IOEx) {
+			throw new DMSException(IOEx.getMessage());
+		}
+	}
+
+	private static void transform(DBFile xml, Templates templates, Map<String, String> parameters, Result result)
+	throws DMSException, DBMSException {
+		TransformerHandler handler = TemplatesCache.getDefault().newTransformerHandler(templates);
+		if (parameters != null)
+			for (Map.Entry<String, String> parameter : parameters.entrySet())
+				handler.getTransformer().setParameter(parameter.getKey(), parameter.getValue());
+		handler.setResult(result);
+		xml.getXMLAsSAX(handler);
+	}
 }
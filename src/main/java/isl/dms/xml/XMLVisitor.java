@@ -0,0 +1,67 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Text;
+
+/**
+ * An <code>XMLVisitor</code> receives the elements and text nodes of an
+ * <code>XMLElement</code> tree in document order, from
+ * <code>XMLElement.accept</code>. No objects are created during the walk.
+ */
+public interface XMLVisitor {
+
+    /**
+     * Called when an element is reached.
+     *
+     * @param element the element.
+     * @param depth the depth of the element, 0 for the element the walk
+     * started from.
+     * @return <code>true</code> to visit the children of the element,
+     * <code>false</code> to skip them.
+     */
+    boolean startElement(Element element, int depth);
+
+    /**
+     * Called for every text node.
+     *
+     * @param text the text node.
+     * @param depth the depth of the text node.
+     */
+    void text(Text text, int depth);
+
+    /**
+     * Called after the children of an element have been visited (or
+     * skipped).
+     *
+     * @param element the element.
+     * @param depth the depth of the element.
+     */
+    void endElement(Element element, int depth);
+}
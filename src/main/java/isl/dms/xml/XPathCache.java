@@ -0,0 +1,190 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import isl.dms.DMSException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import javax.xml.namespace.QName;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * An <code>XPathCache</code> keeps compiled XPath expressions, so that
+ * <code>XMLElement.select</code> compiles an expression once instead of on
+ * every call. <code>XPathExpression</code>s are not thread-safe, so every
+ * expression has a small pool of compiled copies: a thread takes a copy,
+ * evaluates it and puts it back, and a new copy is compiled only when all
+ * copies are in use. The cache holds at most <code>maxSize</code>
+ * expressions and drops the least recently used ones first.
+ */
+public class XPathCache {
+
+    private static final XPathCache DEFAULT = new XPathCache();
+    private static final int COPIES = 8;
+    private final XPathFactory factory = XPathFactory.newInstance();
+    private int maxSize = 256;
+    private long hits, misses;
+    private final LinkedHashMap<String, ConcurrentLinkedQueue<XPathExpression>> expressions =
+            new LinkedHashMap<String, ConcurrentLinkedQueue<XPathExpression>>(16, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, ConcurrentLinkedQueue<XPathExpression>> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * Returns the cache used by <code>XMLElement</code>.
+     *
+     * @return the default <code>XPathCache</code>.
+     */
+    public static XPathCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Evaluates an XPath expression against a node.
+     *
+     * @param context the context node of the expression.
+     * @param xpath the XPath expression.
+     * @param returnType one of the <code>XPathConstants</code> types.
+     * @return the result of the expression, of the requested type.
+     * @throws DMSException if the expression cannot be compiled or evaluated.
+     */
+    public Object evaluate(Node context, String xpath, QName returnType) throws DMSException {
+        ConcurrentLinkedQueue<XPathExpression> copies = copies(xpath);
+        XPathExpression expression = copies.poll();
+        if (expression == null) {
+            expression = compile(xpath);
+        }
+        try {
+            return expression.evaluate(context, returnType);
+        } catch (XPathExpressionException ex) {
+            throw new DMSException(message(ex));
+        } finally {
+            if (copies.size() < COPIES) {
+                copies.offer(expression);
+            }
+        }
+    }
+
+    /**
+     * Evaluates an XPath expression against a node as a node set.
+     *
+     * @param context the context node of the expression.
+     * @param xpath the XPath expression.
+     * @return the selected nodes.
+     * @throws DMSException if the expression cannot be compiled or evaluated.
+     */
+    public NodeList selectNodes(Node context, String xpath) throws DMSException {
+        return (NodeList) evaluate(context, xpath, XPathConstants.NODESET);
+    }
+
+    /**
+     * Evaluates an XPath expression against a node as a single node.
+     *
+     * @param context the context node of the expression.
+     * @param xpath the XPath expression.
+     * @return the first selected node, or <code>null</code>.
+     * @throws DMSException if the expression cannot be compiled or evaluated.
+     */
+    public Node selectNode(Node context, String xpath) throws DMSException {
+        return (Node) evaluate(context, xpath, XPathConstants.NODE);
+    }
+
+    /**
+     * Drops all compiled expressions.
+     */
+    public synchronized void clear() {
+        this.expressions.clear();
+    }
+
+    /**
+     * @param maxSize the maximum number of expressions to keep compiled.
+     */
+    public synchronized void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the number of times an expression was found in the cache.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of times an expression was not in the cache.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of expressions in the cache.
+     */
+    public synchronized int getSize() {
+        return this.expressions.size();
+    }
+
+    private synchronized ConcurrentLinkedQueue<XPathExpression> copies(String xpath) {
+        ConcurrentLinkedQueue<XPathExpression> copies = this.expressions.get(xpath);
+        if (copies != null) {
+            hits++;
+        } else {
+            misses++;
+            copies = new ConcurrentLinkedQueue<XPathExpression>();
+            if (this.maxSize > 0) {
+                this.expressions.put(xpath, copies);
+            }
+        }
+        return copies;
+    }
+
+    private XPathExpression compile(String xpath) throws DMSException {
+        try {
+            // XPathFactory and XPath are not thread-safe
+            synchronized (this.factory) {
+                return this.factory.newXPath().compile(xpath);
+            }
+        } catch (XPathExpressionException ex) {
+            throw new DMSException(message(ex));
+        }
+    }
+
+    private static String message(XPathExpressionException ex) {
+        if (ex.getMessage() == null && ex.getCause() != null) {
+            return ex.getCause().getMessage();
+        }
+        return ex.getMessage();
+    }
+}
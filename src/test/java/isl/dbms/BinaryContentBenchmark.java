@@ -0,0 +1,145 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dbms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.modules.BinaryResource;
+
+/**
+ * Compares setting the binary content of a <code>DBFile</code> from a
+ * stream through a heap array (the only way before the streaming API) with
+ * <code>setBinary(InputStream)</code>, which spools it in chunks. Run with
+ * <code>-prof gc</code> to see the bytes allocated per upload. The resource
+ * is held in memory, so no database is needed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BinaryContentBenchmark {
+
+    @Param({"1048576", "67108864"})
+    int size;
+    private DBFile file;
+
+    @Setup
+    public void setUp() throws Exception {
+        this.file = new DBFile(null, null, new MemoryResource(), "BinaryDBFile", null, null);
+    }
+
+    @Benchmark
+    public DBFile bytesBaseline() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        InputStream in = new Payload(this.size);
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            buffer.write(chunk, 0, n);
+        }
+        this.file.setBinary(buffer.toByteArray());
+        return this.file;
+    }
+
+    @Benchmark
+    public DBFile streamSpooled() throws Exception {
+        this.file.setBinary(new Payload(this.size));
+        this.file.discardSpool();
+        return this.file;
+    }
+
+    /**
+     * A stream of zeros that does not hold its content.
+     */
+    private static final class Payload extends InputStream {
+
+        private long left;
+
+        Payload(long size) {
+            this.left = size;
+        }
+
+        public int read() {
+            return this.left-- > 0 ? 0 : -1;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.left <= 0) {
+                return -1;
+            }
+            int n = (int) Math.min(len, this.left);
+            java.util.Arrays.fill(b, off, off + n, (byte) 0);
+            this.left -= n;
+            return n;
+        }
+    }
+
+    /**
+     * A binary resource that only keeps a reference to its content.
+     */
+    private static final class MemoryResource implements BinaryResource {
+
+        private Object content;
+
+        public Collection getParentCollection() {
+            return null;
+        }
+
+        public String getId() {
+            return "benchmark.bin";
+        }
+
+        public String getResourceType() {
+            return RESOURCE_TYPE;
+        }
+
+        public Object getContent() {
+            return this.content;
+        }
+
+        public void setContent(Object value) {
+            this.content = value;
+        }
+    }
+}
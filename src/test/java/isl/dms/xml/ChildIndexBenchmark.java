@@ -0,0 +1,139 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Compares the indexed <code>getIndex()</code> and
+ * <code>getNextSibling(int)</code> of <code>XMLElement</code> with the
+ * scans they replaced, for a child in the middle of its parent, and
+ * <code>getChildren(int)</code> with its old loop.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChildIndexBenchmark {
+
+    @Param({"10", "1000"})
+    int children;
+    private XMLElement parent;
+    private XMLElement middle;
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder xml = new StringBuilder("<root>");
+        for (int i = 0; i < this.children; i++) {
+            // mixed content, so that typed lookups skip text nodes
+            xml.append("<item/>text");
+        }
+        this.parent = new XMLElement(xml.append("</root>").toString());
+        this.middle = this.parent.getChildren(XMLElement.ELEMENT)[this.children / 2];
+    }
+
+    @Benchmark
+    public int indexBaseline() {
+        return index(this.middle.getElement());
+    }
+
+    @Benchmark
+    public int indexIndexed() throws Exception {
+        return this.middle.getIndex();
+    }
+
+    @Benchmark
+    public Node nextSiblingBaseline() {
+        // the old getNextSibling(ELEMENT): the typed children of the parent,
+        // each located with getIndex(), until one follows this node
+        Node node = this.middle.getElement();
+        int index = index(node);
+        NodeList siblings = node.getParentNode().getChildNodes();
+        for (int i = 0; i < siblings.getLength(); i++) {
+            Node n = siblings.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE && index(n) > index) {
+                return n;
+            }
+        }
+        return null;
+    }
+
+    @Benchmark
+    public XMLElement nextSiblingIndexed() throws Exception {
+        return this.middle.getNextSibling(XMLElement.ELEMENT);
+    }
+
+    @Benchmark
+    public XMLElement[] childrenBaseline() {
+        // the old getChildren(ELEMENT)
+        NodeList children = this.parent.getElement().getChildNodes();
+        Vector<XMLElement> vect = new Vector<XMLElement>();
+        for (int i = 0; i < children.getLength(); i++) {
+            Node n = children.item(i);
+            if (n.getNodeType() == Node.ELEMENT_NODE) {
+                vect.add(new XMLElement(n));
+            }
+        }
+        return vect.toArray(new XMLElement[0]);
+    }
+
+    @Benchmark
+    public XMLElement[] childrenIndexed() throws Exception {
+        return this.parent.getChildren(XMLElement.ELEMENT);
+    }
+
+    /**
+     * getIndex() as it was: a scan of all the children of the parent.
+     */
+    private static int index(Node node) {
+        int index = -1;
+        NodeList children = node.getParentNode().getChildNodes();
+        for (int i = 0; i < children.getLength(); i++) {
+            if (node.isSameNode(children.item(i))) {
+                index = i;
+            }
+        }
+        return index;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2006-2015 Institute of Computer Science,
+ * Foundation for Research and Technology - Hellas
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they will be approved
+ * by the European Commission - subsequent versions of the EUPL (the "Licence");
+ * You may not use this work except in compliance with the Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the Licence is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the Licence for the specific language governing permissions and limitations
+ * under the Licence.
+ *
+ * Contact:  POBox 1385, Heraklio Crete, GR-700 13 GREECE
+ * Tel:+30-2810-391632
+ * Fax: +30-2810-391638
+ * E-mail: isl@ics.forth.gr
+ * http://www.ics.forth.gr/isl
+ *
+ * Authors : Nikos Papadopoulos, Georgios Samaritakis, Konstantina Konsolaki.
+ *
+ * This file is part of the DMS project.
+ */
+package isl.dms.xml;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Node;
+
+/**
+ * Compares <code>XMLSerializer</code> with the serialization code it
+ * replaced: a <code>TransformerFactory</code> and <code>Transformer</code>
+ * created for every <code>toString()</code>, and String concatenation in
+ * <code>getContentAsString()</code>.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XMLSerializerBenchmark {
+
+    @Param({"10", "1000"})
+    int children;
+    private XMLElement element;
+    private final Writer sink = new Writer() {
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+    };
+
+    @Setup
+    public void setUp() throws Exception {
+        StringBuilder xml = new StringBuilder("<root>");
+        for (int i = 0; i < this.children; i++) {
+            xml.append("<item id=\"").append(i).append("\"><name>Item ").append(i)
+                    .append("</name><value>").append(i * 7).append("</value></item>");
+        }
+        this.element = new XMLElement(xml.append("</root>").toString());
+    }
+
+    @Benchmark
+    public String toStringBaseline() throws Exception {
+        StringWriter output = new StringWriter();
+        TransformerFactory.newInstance().newTransformer()
+                .transform(new DOMSource(this.element.getElement()), new StreamResult(output));
+        return output.toString();
+    }
+
+    @Benchmark
+    public String toStringSerializer() {
+        return this.element.toString();
+    }
+
+    @Benchmark
+    public Writer writeSerializer() throws Exception {
+        XMLSerializer.getDefault().write(this.element, this.sink);
+        return this.sink;
+    }
+
+    @Benchmark
+    public String contentBaseline() {
+        return content(this.element.getElement());
+    }
+
+    @Benchmark
+    public String contentBuilder() throws Exception {
+        return this.element.getContentAsString();
+    }
+
+    /**
+     * getContentAsString() as it was, on the DOM.
+     */
+    private static String content(Node parent) {
+        String childrenStr = "";
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.TEXT_NODE) {
+                childrenStr += n.getNodeValue();
+            } else if (n.getNodeType() == Node.ELEMENT_NODE) {
+                childrenStr += "<" + n.getNodeName() + ">" + content(n) + "</" + n.getNodeName() + ">";
+            }
+        }
+        return childrenStr;
+    }
+}